@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+/**
+ * <p>
+ * Mutable context passed through the benchmarked chains. One instance is kept
+ * per benchmark thread and reset before every execution.
+ * </p>
+ */
+public class BenchContext {
+
+	/**
+	 * <p>
+	 * Index of the command that should throw during this execution, or
+	 * <code>-1</code> if no command should throw.
+	 * </p>
+	 */
+	int throwAt = -1;
+
+	/**
+	 * <p>
+	 * Running value the synthetic commands fold their work into, so that the
+	 * JIT cannot eliminate them.
+	 * </p>
+	 */
+	long value;
+}
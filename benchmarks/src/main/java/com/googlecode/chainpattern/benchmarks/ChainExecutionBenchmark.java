@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.impl.ChainBase;
+
+/**
+ * <p>
+ * Measures {@link ChainBase#execute(Object)} across chain shapes: the length of
+ * the chain, the share of its commands that are filters, the point at which a
+ * command returns <code>PROCESSING_COMPLETE</code> and how often a command
+ * throws. Each shape is measured on a single thread and with every available
+ * thread executing the same shared chain.
+ * </p>
+ */
+@BenchmarkMode( { Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChainExecutionBenchmark {
+
+	/**
+	 * <p>
+	 * Where in the chain a command returns <code>PROCESSING_COMPLETE</code>.
+	 * </p>
+	 */
+	public enum CompleteAt {
+		NONE, FIRST, MIDDLE, LAST;
+
+		int index(int length) {
+			switch (this) {
+			case FIRST:
+				return 0;
+			case MIDDLE:
+				return length / 2;
+			case LAST:
+				return length - 1;
+			default:
+				return -1;
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ChainState {
+
+		@Param( { "1", "4", "16", "64" })
+		int chainLength;
+
+		@Param( { "0", "25", "100" })
+		int filterPercent;
+
+		@Param( { "NONE", "FIRST", "MIDDLE", "LAST" })
+		CompleteAt completeAt;
+
+		@Param( { "0", "1", "10" })
+		int exceptionPercent;
+
+		Chain<BenchContext> chain;
+
+		/**
+		 * <p>
+		 * Index of the last command that runs, and therefore the one that
+		 * throws when an execution is chosen to fail.
+		 * </p>
+		 */
+		int lastExecuted;
+
+		@Setup(Level.Trial)
+		public void buildChain() throws Exception {
+			int completeIndex = completeAt.index(chainLength);
+			chain = new ChainBase<BenchContext>();
+			for (int i = 0; i < chainLength; i++) {
+				boolean result = i == completeIndex ? Command.PROCESSING_COMPLETE : Command.CONTINUE_PROCESSING;
+				boolean filter = (i + 1) * filterPercent / 100 > i * filterPercent / 100;
+				chain.addCommand(filter ? new SyntheticFilter(i, result) : new SyntheticCommand(i, result));
+			}
+			lastExecuted = completeIndex < 0 ? chainLength - 1 : completeIndex;
+			// freeze the chain before measurement starts
+			chain.execute(new BenchContext());
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ContextState {
+		final BenchContext context = new BenchContext();
+		int sequence;
+
+		BenchContext next(ChainState chainState) {
+			sequence = (sequence + 1) % 100;
+			context.throwAt = sequence < chainState.exceptionPercent ? chainState.lastExecuted : -1;
+			return context;
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void singleThreaded(ChainState chainState, ContextState contextState, Blackhole bh) {
+		execute(chainState, contextState, bh);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void contended(ChainState chainState, ContextState contextState, Blackhole bh) {
+		execute(chainState, contextState, bh);
+	}
+
+	private static void execute(ChainState chainState, ContextState contextState, Blackhole bh) {
+		BenchContext context = contextState.next(chainState);
+		try {
+			bh.consume(chainState.chain.execute(context));
+		} catch (Exception unhandled) {
+			bh.consume(unhandled);
+		}
+		bh.consume(context.value);
+	}
+}
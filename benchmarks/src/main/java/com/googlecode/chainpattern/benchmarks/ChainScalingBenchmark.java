@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.impl.ChainBase;
+
+/**
+ * <p>
+ * Measures the throughput of one shared {@link ChainBase} as the number of
+ * executing threads grows. Each thread has its own context, so the only state
+ * the threads share is the chain itself; if <code>execute()</code> takes no
+ * locks and writes no shared fields, throughput per thread stays flat up to
+ * the number of cores.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChainScalingBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class SharedChain {
+		ChainBase<BenchContext> chain;
+
+		@Setup(Level.Trial)
+		public void buildChain() throws Exception {
+			chain = new ChainBase<BenchContext>();
+			for (int i = 0; i < 8; i++) {
+				chain.addCommand(i % 4 == 0 ? new SyntheticFilter(i, Command.CONTINUE_PROCESSING)
+						: new SyntheticCommand(i, Command.CONTINUE_PROCESSING));
+			}
+			chain.execute(new BenchContext());
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadContext {
+		final BenchContext context = new BenchContext();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long threads1(SharedChain shared, ThreadContext local) throws Exception {
+		return execute(shared, local);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public long threads2(SharedChain shared, ThreadContext local) throws Exception {
+		return execute(shared, local);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long threads4(SharedChain shared, ThreadContext local) throws Exception {
+		return execute(shared, local);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public long threads8(SharedChain shared, ThreadContext local) throws Exception {
+		return execute(shared, local);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public long threadsMax(SharedChain shared, ThreadContext local) throws Exception {
+		return execute(shared, local);
+	}
+
+	private static long execute(SharedChain shared, ThreadContext local) throws Exception {
+		shared.chain.execute(local.context);
+		return local.context.value;
+	}
+}
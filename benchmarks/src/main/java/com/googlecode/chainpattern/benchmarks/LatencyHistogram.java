@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Thread safe histogram of latencies in nanoseconds, from one nanosecond to
+ * the largest <code>long</code>. Values below 128 are counted exactly; above
+ * that each power of two is split into 64 buckets, so that any percentile is
+ * reported to within 1.6% without a fixed upper bound.
+ * </p>
+ */
+public class LatencyHistogram {
+
+	private static final int EXACT = 128;
+	private static final int SUB_BITS = 6;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = EXACT + (63 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            The latency to record; negative values count as zero
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0L, nanos);
+		counts.incrementAndGet(indexOf(value));
+		total.incrementAndGet();
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long getCount() {
+		return total.get();
+	}
+
+	/**
+	 * @return the largest latency recorded, exactly
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            Between 0 and 100, for example 99.9
+	 * @return the latency that this percentage of recorded latencies did not
+	 *         exceed, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = total.get();
+		if (0 == count) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int indexOf(long value) {
+		if (value < EXACT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return EXACT + (shift - 1) * SUB + (int) ((value >>> shift) - SUB);
+	}
+
+	static long highestValueOf(int index) {
+		if (index < EXACT) {
+			return index;
+		}
+		int shift = (index - EXACT) / SUB + 1;
+		long lowest = (long) ((index - EXACT) % SUB + SUB) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+import com.googlecode.chainpattern.impl.ChainBase;
+
+/**
+ * <p>
+ * Synthetic {@link Command}s for {@link LoadTest}, and the parser that builds
+ * a chain of them from a comma separated specification such as
+ * <code>filter,cpu:2000,sleep:100,throw:0.01</code>:
+ * </p>
+ * 
+ * <ul>
+ * <li><code>cpu:N</code> performs N rounds of arithmetic</li>
+ * <li><code>sleep:N</code> blocks for N microseconds, like a call to a
+ * backend</li>
+ * <li><code>throw:P</code> fails a fraction P of the requests</li>
+ * <li><code>filter</code> handles any exception thrown after it</li>
+ * <li><code>stop</code> completes the chain</li>
+ * </ul>
+ */
+public final class LoadCommands {
+
+	/**
+	 * <p>
+	 * Shared, stackless exception, as in {@link SyntheticCommand}.
+	 * </p>
+	 */
+	static final Exception FAILURE = new Exception("synthetic failure", null, false, false) {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private LoadCommands() {
+
+	}
+
+	/**
+	 * @param specification
+	 *            The comma separated {@link Command}s, in order
+	 * @return a chain of the specified {@link Command}s
+	 * @exception IllegalArgumentException
+	 *                if the specification cannot be parsed
+	 */
+	public static Chain<LoadContext> parse(String specification) {
+		Chain<LoadContext> chain = new ChainBase<LoadContext>();
+		for (String entry : specification.split(",")) {
+			String[] parts = entry.trim().split(":", 2);
+			String argument = parts.length > 1 ? parts[1].trim() : null;
+			try {
+				switch (parts[0].trim()) {
+				case "cpu":
+					chain.addCommand(new Cpu(Integer.parseInt(argument)));
+					break;
+				case "sleep":
+					chain.addCommand(new Sleep(Long.parseLong(argument)));
+					break;
+				case "throw":
+					chain.addCommand(new Throw(Double.parseDouble(argument)));
+					break;
+				case "filter":
+					chain.addCommand(new Handler());
+					break;
+				case "stop":
+					chain.addCommand(context -> Chain.PROCESSING_COMPLETE);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown command " + entry);
+				}
+			} catch (NumberFormatException | NullPointerException malformed) {
+				throw new IllegalArgumentException("Malformed command " + entry, malformed);
+			}
+		}
+		return chain;
+	}
+
+	static final class Cpu implements Command<LoadContext> {
+		private final int rounds;
+
+		Cpu(int rounds) {
+			this.rounds = rounds;
+		}
+
+		public boolean execute(LoadContext context) {
+			long value = context.value;
+			for (int i = 0; i < rounds; i++) {
+				value = value * 6364136223846793005L + 1442695040888963407L;
+			}
+			context.value = value;
+			return Chain.CONTINUE_PROCESSING;
+		}
+	}
+
+	static final class Sleep implements Command<LoadContext> {
+		private final long nanos;
+
+		Sleep(long micros) {
+			this.nanos = TimeUnit.MICROSECONDS.toNanos(micros);
+		}
+
+		public boolean execute(LoadContext context) {
+			long deadline = System.nanoTime() + nanos;
+			for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+				LockSupport.parkNanos(left);
+			}
+			return Chain.CONTINUE_PROCESSING;
+		}
+	}
+
+	static final class Throw implements Command<LoadContext> {
+		private final double rate;
+
+		Throw(double rate) {
+			this.rate = rate;
+		}
+
+		public boolean execute(LoadContext context) throws Exception {
+			if (context.draw < rate) {
+				throw FAILURE;
+			}
+			return Chain.CONTINUE_PROCESSING;
+		}
+	}
+
+	static final class Handler implements Filter<LoadContext> {
+		public boolean execute(LoadContext context) {
+			return Chain.CONTINUE_PROCESSING;
+		}
+
+		public boolean postprocess(LoadContext context, Exception exception) {
+			return null != exception;
+		}
+	}
+}
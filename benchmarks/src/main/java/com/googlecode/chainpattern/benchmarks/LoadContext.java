@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * Context of one request made by {@link LoadTest}. Each request gets a fresh
+ * instance, as a server would build one per request.
+ * </p>
+ */
+public class LoadContext {
+
+	/**
+	 * <p>
+	 * Random number in [0, 1) drawn for this request, which the throwing
+	 * {@link LoadCommands} compare with their failure rate.
+	 * </p>
+	 */
+	final double draw = ThreadLocalRandom.current().nextDouble();
+
+	/**
+	 * <p>
+	 * Running value the CPU bound {@link LoadCommands} fold their work into,
+	 * so that the JIT cannot eliminate them.
+	 * </p>
+	 */
+	long value;
+}
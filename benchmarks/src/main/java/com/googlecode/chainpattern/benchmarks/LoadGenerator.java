@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import com.googlecode.chainpattern.Chain;
+
+/**
+ * <p>
+ * Drives a {@link Chain} with an open model of load: requests arrive at a
+ * fixed rate whether or not earlier ones have finished, as they would from
+ * independent clients, and wait in a queue for one of a fixed number of
+ * worker threads.
+ * </p>
+ * 
+ * <p>
+ * The latency of a request is measured from the time it was due to arrive,
+ * not from the time a worker picked it up or the generator got round to
+ * issuing it. A pause anywhere, in the chain, the queue, a garbage
+ * collection or the generator itself, therefore shows up in the latency of
+ * every request that should have arrived during it, which is what the
+ * clients would have seen. Measuring from the actual start would hide it:
+ * the coordinated omission that makes closed loop benchmarks optimistic.
+ * </p>
+ */
+public class LoadGenerator<C> {
+
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Chain<C> chain;
+	private final Supplier<C> contexts;
+	private final int threads;
+
+	/**
+	 * @param chain
+	 *            The {@link Chain} to drive
+	 * @param contexts
+	 *            Creates the context of each request
+	 * @param threads
+	 *            The number of worker threads executing requests
+	 */
+	public LoadGenerator(Chain<C> chain, Supplier<C> contexts, int threads) {
+		if (null == chain || null == contexts) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed");
+		}
+		this.chain = chain;
+		this.contexts = contexts;
+		this.threads = threads;
+	}
+
+	/**
+	 * <p>
+	 * Generate load for the warm up period, discarding the measurements, and
+	 * then for the measured period.
+	 * </p>
+	 * 
+	 * @param ratePerSecond
+	 *            The number of requests to start per second
+	 * @param warmup
+	 *            How long to generate load before measuring
+	 * @param duration
+	 *            How long to measure for
+	 * @param unit
+	 *            The unit of <code>warmup</code> and <code>duration</code>
+	 * @return the measurements of the requests due during the measured
+	 *         period
+	 * @exception InterruptedException
+	 *                if interrupted while generating load
+	 */
+	public Report run(double ratePerSecond, long warmup, long duration, TimeUnit unit) throws InterruptedException {
+		if (ratePerSecond <= 0.0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		final AtomicInteger count = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "load-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			double period = 1e9 / ratePerSecond;
+			long start = System.nanoTime();
+			long measureFrom = start + unit.toNanos(warmup);
+			long end = measureFrom + unit.toNanos(duration);
+			Report discarded = new Report(ratePerSecond, start);
+			Report measured = new Report(ratePerSecond, measureFrom);
+			for (long n = 0;; n++) {
+				long due = start + (long) (n * period);
+				if (due >= end) {
+					break;
+				}
+				waitUntil(due);
+				Report report = due < measureFrom ? discarded : measured;
+				workers.execute(() -> execute(due, report));
+			}
+			workers.shutdown();
+			while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+				System.err.println("Waiting for outstanding requests");
+			}
+			return measured;
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private void execute(long due, Report report) {
+		boolean failed = true;
+		try {
+			chain.execute(contexts.get());
+			failed = false;
+		} catch (Exception toCount) {
+
+		} finally {
+			// an Error is counted too, rather than silently dropping the
+			// request from the measurements
+			report.record(due, System.nanoTime(), failed);
+		}
+	}
+
+	private static void waitUntil(long due) throws InterruptedException {
+		for (long left = due - System.nanoTime(); left > 0; left = due - System.nanoTime()) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (left > SPIN_NANOS) {
+				LockSupport.parkNanos(left - SPIN_NANOS);
+			} else {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * The measurements of one run.
+	 * </p>
+	 */
+	public static final class Report {
+		private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9, 99.99 };
+
+		private final double targetRate;
+		private final long measureFrom;
+		private final AtomicLong lastCompletion = new AtomicLong();
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final LongAdder failures = new LongAdder();
+
+		Report(double targetRate, long measureFrom) {
+			this.targetRate = targetRate;
+			this.measureFrom = measureFrom;
+		}
+
+		void record(long due, long completed, boolean failed) {
+			latencies.record(completed - due);
+			lastCompletion.accumulateAndGet(completed, Math::max);
+			if (failed) {
+				failures.increment();
+			}
+		}
+
+		/**
+		 * @return the latencies of the requests, from when they were due
+		 */
+		public LatencyHistogram getLatencies() {
+			return latencies;
+		}
+
+		/**
+		 * @return the number of requests that completed
+		 */
+		public long getCompleted() {
+			return latencies.getCount();
+		}
+
+		/**
+		 * @return the number of requests whose chain threw an exception or
+		 *         an <code>Error</code>
+		 */
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		/**
+		 * @return the completed requests per second, from the start of the
+		 *         measured period until the last of its requests completed,
+		 *         which falls short of the target rate if the chain could
+		 *         not keep up
+		 */
+		public double getThroughput() {
+			long elapsed = lastCompletion.get() - measureFrom;
+			return elapsed <= 0 ? 0.0 : getCompleted() * 1e9 / elapsed;
+		}
+
+		/**
+		 * @return the header of the lines written by {@link #toCsv(String)}
+		 */
+		public static String csvHeader() {
+			StringBuilder header = new StringBuilder("label,target_rate,throughput,completed,failures");
+			for (double percentile : PERCENTILES) {
+				header.append(",p").append(label(percentile).replace('.', '_')).append("_us");
+			}
+			return header.append(",max_us").toString();
+		}
+
+		/**
+		 * @param label
+		 *            Identifies the run, for example the library version
+		 * @return one line of comma separated values, with latencies in
+		 *         microseconds
+		 */
+		public String toCsv(String label) {
+			StringBuilder line = new StringBuilder(label.replace(',', ' '));
+			line.append(',').append(format(targetRate)).append(',').append(format(getThroughput()));
+			line.append(',').append(getCompleted()).append(',').append(getFailures());
+			for (double percentile : PERCENTILES) {
+				line.append(',').append(micros(latencies.getValueAtPercentile(percentile)));
+			}
+			return line.append(',').append(micros(latencies.getMax())).toString();
+		}
+
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(String.format(Locale.ROOT, "target rate %12s/s%n", format(targetRate)));
+			text.append(String.format(Locale.ROOT, "throughput  %12s/s%n", format(getThroughput())));
+			text.append(String.format(Locale.ROOT, "completed   %12d%n", getCompleted()));
+			text.append(String.format(Locale.ROOT, "failures    %12d%n", getFailures()));
+			for (double percentile : PERCENTILES) {
+				text.append(String.format(Locale.ROOT, "p%-10s %12s us%n", label(percentile),
+						micros(latencies.getValueAtPercentile(percentile))));
+			}
+			text.append(String.format(Locale.ROOT, "max         %12s us%n", micros(latencies.getMax())));
+			return text.toString();
+		}
+
+		private static String micros(long nanos) {
+			return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+		}
+
+		private static String label(double percentile) {
+			return BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString();
+		}
+
+		private static String format(double value) {
+			return value == Math.rint(value) ? Long.toString((long) value) : String.format(Locale.ROOT, "%.2f",
+					value);
+		}
+	}
+}
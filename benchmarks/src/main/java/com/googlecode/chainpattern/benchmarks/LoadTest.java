@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Command line entry point of the {@link LoadGenerator}, run from
+ * <code>benchmarks.jar</code> with options of the form
+ * <code>--name=value</code>:
+ * </p>
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar com.googlecode.chainpattern.benchmarks.LoadTest \
+ *     --chain=filter,cpu:2000,sleep:100,throw:0.01 --rate=5000 --threads=64 \
+ *     --warmup=10 --duration=60 --label=0.1 --csv=load.csv
+ * </pre>
+ * 
+ * <ul>
+ * <li><code>chain</code>: the {@link LoadCommands} to execute, in order</li>
+ * <li><code>rate</code>: requests per second</li>
+ * <li><code>threads</code>: worker threads executing requests</li>
+ * <li><code>warmup</code> and <code>duration</code>: seconds of unmeasured
+ * and measured load</li>
+ * <li><code>label</code> and <code>csv</code>: if a file is given, a line
+ * with this label is appended to it, so that runs against different library
+ * versions can be compared</li>
+ * </ul>
+ */
+public class LoadTest {
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("chain", "filter,cpu:2000,sleep:100,throw:0.01");
+		options.put("rate", "1000");
+		options.put("threads", "32");
+		options.put("warmup", "5");
+		options.put("duration", "30");
+		options.put("label", "run");
+		options.put("csv", "");
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = arg.startsWith("--") && equals > 2 ? arg.substring(2, equals) : null;
+			if (null == name || !options.containsKey(name)) {
+				System.err.println("Unknown option " + arg + ", expected --name=value with a name among "
+						+ options.keySet());
+				System.exit(2);
+			}
+			options.put(name, arg.substring(equals + 1));
+		}
+		LoadGenerator<LoadContext> generator = new LoadGenerator<LoadContext>(LoadCommands.parse(options.get("chain")),
+				LoadContext::new, Integer.parseInt(options.get("threads")));
+		System.out.println("Load test " + options);
+		LoadGenerator.Report report = generator.run(Double.parseDouble(options.get("rate")),
+				Long.parseLong(options.get("warmup")), Long.parseLong(options.get("duration")), TimeUnit.SECONDS);
+		System.out.print(report);
+		String csv = options.get("csv");
+		if (!csv.isEmpty()) {
+			File file = new File(csv);
+			boolean header = !file.exists() || 0 == file.length();
+			try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+				if (header) {
+					out.println(LoadGenerator.Report.csvHeader());
+				}
+				out.println(report.toCsv(options.get("label")));
+			}
+		}
+	}
+}
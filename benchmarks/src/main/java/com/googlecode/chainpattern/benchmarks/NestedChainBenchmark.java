@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.impl.ChainBase;
+
+/**
+ * <p>
+ * Compares a chain composed of nested {@link ChainBase}s, executed level by
+ * level or with the nested chains inlined, against the same commands added
+ * to a single chain by hand.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NestedChainBenchmark {
+
+	public enum Shape {
+		NESTED, INLINED, HAND_FLATTENED
+	}
+
+	@Param( { "NESTED", "INLINED", "HAND_FLATTENED" })
+	Shape shape;
+
+	@Param( { "4" })
+	int depth;
+
+	ChainBase<BenchContext> chain;
+
+	final BenchContext context = new BenchContext();
+
+	@Setup(Level.Trial)
+	public void buildChain() throws Exception {
+		if (Shape.HAND_FLATTENED == shape) {
+			chain = new ChainBase<BenchContext>();
+			for (int level = 0; level < depth; level++) {
+				addLevel(chain, level);
+			}
+		} else {
+			ChainBase<BenchContext> inner = null;
+			for (int level = depth - 1; level >= 0; level--) {
+				ChainBase<BenchContext> outer = new ChainBase<BenchContext>();
+				addLevel(outer, level);
+				if (null != inner) {
+					outer.addCommand(inner);
+				}
+				inner = outer;
+			}
+			chain = inner;
+			chain.setInlineNestedChains(Shape.INLINED == shape);
+		}
+		chain.execute(context);
+	}
+
+	private static void addLevel(ChainBase<BenchContext> chain, int level) {
+		chain.addCommand(new SyntheticFilter(level * 2, Command.CONTINUE_PROCESSING));
+		chain.addCommand(new SyntheticCommand(level * 2 + 1, Command.CONTINUE_PROCESSING));
+	}
+
+	@Benchmark
+	public long execute() throws Exception {
+		chain.execute(context);
+		return context.value;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.impl.ChainBase;
+
+/**
+ * <p>
+ * Compares a plain {@link ChainBase} with a specialized one when every
+ * command is of a different class, which is what makes the shared execution
+ * loop megamorphic in a real application.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpecializedChainBenchmark {
+
+	@Param( { "false", "true" })
+	boolean specialized;
+
+	ChainBase<BenchContext> chain;
+
+	final BenchContext context = new BenchContext();
+
+	@Setup(Level.Trial)
+	public void buildChain() throws Exception {
+		chain = new ChainBase<BenchContext>();
+		chain.setSpecialized(specialized);
+		// each lambda is a class of its own
+		chain.addCommand(c -> { c.value = c.value * 31 + 1; return Command.CONTINUE_PROCESSING; });
+		chain.addCommand(c -> { c.value = c.value * 31 + 2; return Command.CONTINUE_PROCESSING; });
+		chain.addCommand(c -> { c.value = c.value * 31 + 3; return Command.CONTINUE_PROCESSING; });
+		chain.addCommand(new SyntheticFilter(3, Command.CONTINUE_PROCESSING));
+		chain.addCommand(c -> { c.value = c.value * 31 + 5; return Command.CONTINUE_PROCESSING; });
+		chain.addCommand(c -> { c.value = c.value * 31 + 6; return Command.CONTINUE_PROCESSING; });
+		chain.addCommand(c -> { c.value = c.value * 31 + 7; return Command.CONTINUE_PROCESSING; });
+		chain.addCommand(new SyntheticCommand(7, Command.PROCESSING_COMPLETE));
+		chain.execute(context);
+	}
+
+	@Benchmark
+	public long execute() throws Exception {
+		chain.execute(context);
+		return context.value;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.benchmarks;
+
+import com.googlecode.chainpattern.Command;
+
+/**
+ * <p>
+ * A {@link Command} that performs a small, fixed amount of work and returns a
+ * configured result, or throws a preallocated exception when the context asks
+ * it to.
+ * </p>
+ */
+public class SyntheticCommand implements Command<BenchContext> {
+
+	/**
+	 * <p>
+	 * Shared, stackless exception so that the benchmarks measure the chain's
+	 * exception handling rather than the cost of filling in stack traces.
+	 * </p>
+	 */
+	static final Exception FAILURE = new Exception("synthetic failure", null, false, false) {
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final int index;
+	private final boolean result;
+
+	public SyntheticCommand(int index, boolean result) {
+		this.index = index;
+		this.result = result;
+	}
+
+	public boolean execute(BenchContext context) throws Exception {
+		if (context.throwAt == index) {
+			throw FAILURE;
+		}
+		context.value = context.value * 31 + index;
+		return result;
+	}
+}
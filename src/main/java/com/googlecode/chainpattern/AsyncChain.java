@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * <p>
+ * An {@link AsyncChain} is the non-blocking counterpart of a {@link Chain}. It
+ * executes its {@link AsyncCommand}s with exactly the ordering,
+ * short-circuit, reverse postprocess and exception handling rules described in
+ * the {@link Chain} JavaDoc, but each step is started only when the stage
+ * returned by the previous one completes, so no thread is blocked between
+ * steps.
+ * </p>
+ * 
+ * <p>
+ * Note that {@link AsyncChain} extends {@link AsyncCommand}, so asynchronous
+ * subchains can be combined into an overall processing chain.
+ * </p>
+ */
+public interface AsyncChain<C> extends AsyncCommand<C> {
+
+	/**
+	 * <p>
+	 * Add an {@link AsyncCommand} to the list of {@link AsyncCommand}s that
+	 * will be called in turn when this {@link AsyncChain}'s
+	 * <code>execute()</code> method is called. Once <code>execute()</code> has
+	 * been called at least once, it is no longer possible to add additional
+	 * {@link AsyncCommand}s; instead, an exception will be thrown.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link AsyncCommand} to be added
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 * @exception IllegalStateException
+	 *                if this {@link AsyncChain} has already been executed at
+	 *                least once, so no further configuration is allowed
+	 */
+	public AsyncChain<C> addCommand(AsyncCommand<C> command);
+
+	/**
+	 * <p>
+	 * Execute the processing represented by this {@link AsyncChain}. The
+	 * returned stage completes with the value that {@link Chain#execute} would
+	 * return, or exceptionally with the exception that it would throw.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed by this {@link AsyncChain}
+	 * 
+	 * @return a stage that completes with the result of the processing
+	 */
+	public CompletionStage<Boolean> execute(C context);
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * <p>
+ * An {@link AsyncCommand} is the non-blocking counterpart of a {@link Command}.
+ * Rather than returning its result once the work is done, it returns a
+ * <code>CompletionStage</code> that completes with that result, allowing an
+ * {@link AsyncChain} to move on to the next {@link AsyncCommand} without
+ * holding a thread while, for example, an I/O call is in flight.
+ * </p>
+ * 
+ * <p>
+ * The thread-safety expectations are the same as for {@link Command}.
+ * </p>
+ */
+public interface AsyncCommand<C> {
+
+	/**
+	 * <p>
+	 * Start a unit of processing work. The returned stage completes with
+	 * {@link Command#PROCESSING_COMPLETE} if the processing of the given
+	 * context has been completed, or {@link Command#CONTINUE_PROCESSING} if it
+	 * should be delegated to the next {@link AsyncCommand} in an enclosing
+	 * {@link AsyncChain}. Abnormal termination may be reported either by
+	 * completing the stage exceptionally or by throwing from this method.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed by this {@link AsyncCommand}
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>context</code> is <code>null</code>
+	 * 
+	 * @return a stage that completes with the result of the processing
+	 */
+	public CompletionStage<Boolean> execute(C context);
+}
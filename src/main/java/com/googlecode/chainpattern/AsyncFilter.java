@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * <p>
+ * An {@link AsyncFilter} is the non-blocking counterpart of a {@link Filter}.
+ * The owning {@link AsyncChain} promises to call <code>postprocess()</code>,
+ * in reverse order of invocation, for every {@link AsyncFilter} whose
+ * <code>execute()</code> method it called, and waits for each returned stage
+ * before moving on to the previous {@link AsyncFilter}.
+ * </p>
+ */
+public interface AsyncFilter<C> extends AsyncCommand<C> {
+
+	/**
+	 * Execute any cleanup activities, such as releasing resources that were
+	 * acquired during the execute() method of this AsyncFilter instance
+	 * 
+	 * @param context
+	 *            The context to be processed by this AsyncFilter
+	 * @param exception
+	 *            The Exception (if any) that was thrown by the last command
+	 *            that was executed; otherwise null
+	 * @return a stage that completes with true if a non-null exception was
+	 *         "handled" by this method (and therefore need not be re-thrown),
+	 *         or false otherwise
+	 */
+	public CompletionStage<Boolean> postprocess(C context, Exception exception);
+
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.List;
+
+/**
+ * <p>
+ * A {@link BatchCommand} is a {@link Command} that can also process many
+ * contexts in a single call, for example by performing one database
+ * round-trip for a whole batch of lookups. When a {@link Chain} executes a
+ * batch, it hands each {@link BatchCommand} all of the contexts that are
+ * still being processed at once, rather than calling <code>execute()</code>
+ * once per context.
+ * </p>
+ * 
+ * <p>
+ * A {@link BatchCommand} must still implement <code>execute()</code> so that
+ * it can be used when a single context is processed.
+ * </p>
+ */
+public interface BatchCommand<C> extends Command<C> {
+
+	/**
+	 * <p>
+	 * Process every context in <code>contexts</code>, recording in
+	 * <code>results</code>, at the index of each context, whether its
+	 * processing has been completed or whether it failed. Throwing an
+	 * exception from this method fails every context in the batch.
+	 * </p>
+	 * 
+	 * @param contexts
+	 *            The contexts to be processed by this {@link BatchCommand}
+	 * @param results
+	 *            The per context outcome, sized to match <code>contexts</code>
+	 * 
+	 * @exception Exception
+	 *                general purpose exception return to indicate abnormal
+	 *                termination of the whole batch
+	 */
+	public void executeBatch(List<C> contexts, BatchResult results) throws Exception;
+}
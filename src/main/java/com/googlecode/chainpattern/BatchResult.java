@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+/**
+ * <p>
+ * The per context outcome of processing a batch of contexts, either by a
+ * {@link BatchCommand} or by a whole {@link Chain}. Entries are addressed by
+ * the index of the context in the list that was processed. Every entry starts
+ * out as {@link Command#CONTINUE_PROCESSING} with no exception.
+ * </p>
+ * 
+ * <p>
+ * A {@link BatchResult} is not thread-safe; it is filled in by the thread
+ * processing the batch and read once processing has finished.
+ * </p>
+ */
+public final class BatchResult {
+
+	private final boolean[] results;
+	private final Exception[] exceptions;
+
+	/**
+	 * <p>
+	 * Construct a {@link BatchResult} for the given number of contexts.
+	 * </p>
+	 * 
+	 * @param size
+	 *            The number of contexts in the batch
+	 */
+	public BatchResult(int size) {
+		this.results = new boolean[size];
+		this.exceptions = new Exception[size];
+	}
+
+	/**
+	 * @return the number of contexts in the batch
+	 */
+	public int size() {
+		return results.length;
+	}
+
+	/**
+	 * <p>
+	 * Record the result of processing the context at <code>index</code>.
+	 * </p>
+	 * 
+	 * @param index
+	 *            The index of the context in the batch
+	 * @param result
+	 *            {@link Command#PROCESSING_COMPLETE} or
+	 *            {@link Command#CONTINUE_PROCESSING}
+	 */
+	public void setResult(int index, boolean result) {
+		results[index] = result;
+	}
+
+	/**
+	 * <p>
+	 * Record that processing of the context at <code>index</code> terminated
+	 * abnormally.
+	 * </p>
+	 * 
+	 * @param index
+	 *            The index of the context in the batch
+	 * @param exception
+	 *            The exception describing the failure
+	 * @exception IllegalArgumentException
+	 *                if <code>exception</code> is <code>null</code>
+	 */
+	public void setException(int index, Exception exception) {
+		if (null == exception) {
+			throw new IllegalArgumentException("Exception may not be null");
+		}
+		exceptions[index] = exception;
+	}
+
+	/**
+	 * @param index
+	 *            The index of the context in the batch
+	 * @return the result recorded for the context at <code>index</code>
+	 */
+	public boolean getResult(int index) {
+		return results[index];
+	}
+
+	/**
+	 * @param index
+	 *            The index of the context in the batch
+	 * @return the exception recorded for the context at <code>index</code>,
+	 *         or <code>null</code> if it did not fail
+	 */
+	public Exception getException(int index) {
+		return exceptions[index];
+	}
+}
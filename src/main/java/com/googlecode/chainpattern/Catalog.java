@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.Iterator;
+
+/**
+ * <p>
+ * A {@link Catalog} is a collection of named {@link Command}s (usually
+ * {@link Chain}s) that can be used to look up the processing for a given
+ * request by name.
+ * </p>
+ * 
+ * <p>
+ * {@link Catalog} implementations are expected to be thread-safe. Looking up a
+ * {@link Command} is on the request path and should not block, while adding or
+ * replacing one is a configuration change that may happen under load. A
+ * caller that has looked up a {@link Command} keeps using that instance even
+ * if it is replaced in the {@link Catalog} while the caller is still executing
+ * it.
+ * </p>
+ */
+public interface Catalog<C> {
+
+	/**
+	 * <p>
+	 * Add a new name and associated {@link Command} to the set of named
+	 * {@link Command}s known to this {@link Catalog}, replacing any previous
+	 * {@link Command} for that name.
+	 * </p>
+	 * 
+	 * @param name
+	 *            Name of the new command
+	 * @param command
+	 *            {@link Command} to be returned for later lookups on this name
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>name</code> or <code>command</code> is
+	 *                <code>null</code>
+	 * 
+	 * @return the {@link Command} previously registered under
+	 *         <code>name</code>, or <code>null</code> if there was none
+	 */
+	public Command<C> addCommand(String name, Command<C> command);
+
+	/**
+	 * <p>
+	 * Return the {@link Command} associated with the specified name, if any;
+	 * otherwise, return <code>null</code>.
+	 * </p>
+	 * 
+	 * @param name
+	 *            Name for which a {@link Command} should be retrieved
+	 * 
+	 * @return The Command associated with the specified name.
+	 */
+	public Command<C> getCommand(String name);
+
+	/**
+	 * <p>
+	 * Return an <code>Iterator</code> over the set of named commands known to
+	 * this {@link Catalog}. If there are no known commands, an empty Iterator
+	 * is returned.
+	 * </p>
+	 * 
+	 * @return An iterator of the names in this Catalog.
+	 */
+	public Iterator<String> getNames();
+}
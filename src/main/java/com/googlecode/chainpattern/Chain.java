@@ -15,6 +15,8 @@
  */
 package com.googlecode.chainpattern;
 
+import java.util.List;
+
 /**
  * <p>
  * A {@link Chain} represents a configured list of {@link Command}s that will be
@@ -120,4 +122,47 @@ public interface Chain<C> extends Command<C> {
 
 	public boolean execute(C context) throws Exception;
 
+	/**
+	 * <p>
+	 * Execute the processing represented by this {@link Chain} for every
+	 * context in <code>contexts</code>. The outcome for each context is the
+	 * same as if <code>execute()</code> had been called for it, but each
+	 * {@link Command} is run across all of the contexts that are still being
+	 * processed before the next {@link Command} is run, and a
+	 * {@link BatchCommand} receives them all in a single call. A context drops
+	 * out of the batch once a {@link Command} returns <code>true</code> or
+	 * fails for it, and the <code>postprocess()</code> method of each
+	 * {@link Filter} is called for every context that it executed.
+	 * </p>
+	 * 
+	 * <p>
+	 * The default implementation simply calls <code>execute()</code> for each
+	 * context in turn, so that existing {@link Chain}s keep working; override
+	 * it to process the batch a {@link Command} at a time.
+	 * </p>
+	 * 
+	 * @param contexts
+	 *            The contexts to be processed by this {@link Chain}
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>contexts</code> is <code>null</code>
+	 * 
+	 * @return the result of processing each context, or the exception that
+	 *         <code>execute()</code> would have thrown for it
+	 */
+	public default BatchResult executeBatch(List<C> contexts) {
+		if (null == contexts) {
+			throw new IllegalArgumentException("Contexts may not be null");
+		}
+		BatchResult outcome = new BatchResult(contexts.size());
+		for (int j = 0; j < contexts.size(); j++) {
+			try {
+				outcome.setResult(j, execute(contexts.get(j)));
+			} catch (Exception toSave) {
+				outcome.setException(j, toSave);
+			}
+		}
+		return outcome;
+	}
+
 }
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+/**
+ * <p>
+ * A lightweight exception describing an expected failure, such as a
+ * validation error, identified by an error code. It does not capture a stack
+ * trace and cannot have suppressed exceptions, so it is cheap to create and
+ * can safely be preallocated and shared, typically inside a constant
+ * {@link Outcome}.
+ * </p>
+ */
+public class ChainFailure extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int code;
+
+	/**
+	 * @param code
+	 *            Application defined error code
+	 * @param message
+	 *            Description of the failure
+	 */
+	public ChainFailure(int code, String message) {
+		super(message, null, false, false);
+		this.code = code;
+	}
+
+	/**
+	 * @return the application defined error code
+	 */
+	public int getCode() {
+		return code;
+	}
+}
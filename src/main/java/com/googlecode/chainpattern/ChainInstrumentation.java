@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Service provider interface for observing the execution of a {@link Chain}.
+ * An implementation is attached to a chain before it is frozen, and is then
+ * told about every {@link Command} that the chain executes. Commands are
+ * identified by their index in the list passed to
+ * {@link #chainFrozen(List)}, so that implementations can keep their
+ * statistics in arrays rather than looking commands up.
+ * </p>
+ * 
+ * <p>
+ * Callbacks are made on the threads executing the chain, inline with the
+ * processing, so implementations must be thread-safe and should be cheap.
+ * Exceptions thrown by a callback propagate out of the chain.
+ * </p>
+ */
+public interface ChainInstrumentation {
+
+	/**
+	 * <p>
+	 * Called once, when the chain this instrumentation is attached to is
+	 * frozen.
+	 * </p>
+	 * 
+	 * @param commands
+	 *            The commands of the chain, in execution order
+	 */
+	public void chainFrozen(List<? extends Command<?>> commands);
+
+	/**
+	 * <p>
+	 * Called after the command at <code>index</code> returned normally.
+	 * </p>
+	 * 
+	 * @param index
+	 *            The index of the command
+	 * @param elapsedNanos
+	 *            The time spent in the command's <code>execute()</code>
+	 * @param result
+	 *            The value returned by the command
+	 */
+	public void commandExecuted(int index, long elapsedNanos, boolean result);
+
+	/**
+	 * <p>
+	 * Called after the command at <code>index</code> threw an exception.
+	 * </p>
+	 * 
+	 * @param index
+	 *            The index of the command
+	 * @param elapsedNanos
+	 *            The time spent in the command's <code>execute()</code>
+	 * @param exception
+	 *            The exception thrown by the command
+	 */
+	public void commandFailed(int index, long elapsedNanos, Exception exception);
+
+	/**
+	 * <p>
+	 * Called when the <code>postprocess()</code> method of the {@link Filter}
+	 * at <code>index</code> reported an exception as handled.
+	 * </p>
+	 * 
+	 * @param index
+	 *            The index of the {@link Filter}
+	 * @param exception
+	 *            The exception that was handled
+	 */
+	public void exceptionHandled(int index, Exception exception);
+
+	/**
+	 * <p>
+	 * Called on entry to the chain's <code>execute()</code> method, before any
+	 * other callback for that execution. Does nothing unless overridden.
+	 * </p>
+	 */
+	public default void executionStarted() {
+
+	}
+
+	/**
+	 * <p>
+	 * Called as the chain's <code>execute()</code> method returns or throws,
+	 * after every other callback for that execution, including when an
+	 * <code>Error</code> escapes the chain. Does nothing unless overridden.
+	 * </p>
+	 * 
+	 * @param elapsedNanos
+	 *            The time spent in the chain, including postprocessing
+	 * @param result
+	 *            The value the chain returns, or <code>false</code> if it
+	 *            throws
+	 * @param exception
+	 *            The exception the chain throws, or <code>null</code> if it
+	 *            returns or is left by an <code>Error</code>
+	 */
+	public default void executionFinished(long elapsedNanos, boolean result, Exception exception) {
+
+	}
+}
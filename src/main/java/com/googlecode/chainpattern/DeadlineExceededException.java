@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>
+ * Thrown by a deadline-aware {@link Chain} when its deadline passes, or when a
+ * {@link Command} overruns its time budget. Like any other exception thrown
+ * during processing, it is first passed to the <code>postprocess()</code>
+ * method of each {@link Filter} that was executed, so that resources can be
+ * released.
+ * </p>
+ */
+public class DeadlineExceededException extends TimeoutException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message
+	 *            Description of which deadline was exceeded
+	 */
+	public DeadlineExceededException(String message) {
+		super(message);
+	}
+
+	/**
+	 * @param message
+	 *            Description of which deadline was exceeded
+	 * @param cause
+	 *            The exception the overrunning command threw when it was
+	 *            interrupted, if any
+	 */
+	public DeadlineExceededException(String message, Throwable cause) {
+		super(message);
+		initCause(cause);
+	}
+}
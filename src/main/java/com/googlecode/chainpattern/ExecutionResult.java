@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+/**
+ * <p>
+ * A context paired with the outcome of executing a {@link Command} with it:
+ * either the value that <code>execute()</code> returned, or the exception
+ * that it threw. Used where contexts are processed as a stream and each
+ * outcome has to travel with its context.
+ * </p>
+ */
+public final class ExecutionResult<C> {
+
+	private final C context;
+	private final boolean complete;
+	private final Exception exception;
+
+	private ExecutionResult(C context, boolean complete, Exception exception) {
+		this.context = context;
+		this.complete = complete;
+		this.exception = exception;
+	}
+
+	/**
+	 * @param context
+	 *            The context that was processed
+	 * @param complete
+	 *            The value returned by <code>execute()</code>
+	 * @return a result recording a normal return
+	 */
+	public static <C> ExecutionResult<C> completed(C context, boolean complete) {
+		return new ExecutionResult<C>(context, complete, null);
+	}
+
+	/**
+	 * @param context
+	 *            The context that was processed
+	 * @param exception
+	 *            The exception thrown by <code>execute()</code>
+	 * @return a result recording the exception
+	 */
+	public static <C> ExecutionResult<C> failed(C context, Exception exception) {
+		if (null == exception) {
+			throw new IllegalArgumentException("Exception may not be null");
+		}
+		return new ExecutionResult<C>(context, false, exception);
+	}
+
+	/**
+	 * <p>
+	 * Execute the given {@link Command} and capture its outcome.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to execute
+	 * @param context
+	 *            The context to execute it with
+	 * @return the outcome of the execution
+	 */
+	public static <C> ExecutionResult<C> execute(Command<C> command, C context) {
+		try {
+			return completed(context, command.execute(context));
+		} catch (Exception toSave) {
+			return failed(context, toSave);
+		}
+	}
+
+	/**
+	 * @return the context that was processed
+	 */
+	public C getContext() {
+		return context;
+	}
+
+	/**
+	 * @return the value returned by <code>execute()</code>, or
+	 *         <code>false</code> if it threw
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return <code>true</code> if <code>execute()</code> threw
+	 */
+	public boolean isFailed() {
+		return null != exception;
+	}
+
+	/**
+	 * @return the exception thrown by <code>execute()</code>, or
+	 *         <code>null</code>
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	public String toString() {
+		return null == exception ? context + " -> " + complete : context + " -> " + exception;
+	}
+}
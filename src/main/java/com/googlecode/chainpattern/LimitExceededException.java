@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>
+ * Thrown when a {@link Command} is not executed because it is already
+ * running at its concurrency limit. It is raised when a service is overloaded,
+ * exactly when it can least afford to fill in stack traces, so it does not
+ * capture one.
+ * </p>
+ */
+public class LimitExceededException extends RejectedExecutionException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message
+	 *            Description of the limit that was reached
+	 */
+	public LimitExceededException(String message) {
+		super(message);
+	}
+
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+/**
+ * <p>
+ * The result of an {@link OutcomeCommand}: processing should continue,
+ * processing is complete, or processing failed. A failure carries an
+ * exception that is never thrown; for expected failures it is usually a
+ * {@link ChainFailure} with an error code.
+ * </p>
+ * 
+ * <p>
+ * {@link Outcome}s are immutable. {@link #CONTINUE} and {@link #COMPLETE} are
+ * shared, and failures that happen on the hot path should be created once and
+ * kept in constants, so that reporting them allocates nothing:
+ * </p>
+ * 
+ * <pre>
+ * static final Outcome MISSING_ID = Outcome.failed(400, &quot;missing id&quot;);
+ * </pre>
+ */
+public final class Outcome {
+
+	/**
+	 * <p>
+	 * The processing of the context should be delegated to the next command;
+	 * the counterpart of {@link Command#CONTINUE_PROCESSING}.
+	 * </p>
+	 */
+	public static final Outcome CONTINUE = new Outcome(null);
+
+	/**
+	 * <p>
+	 * The processing of the context has been completed; the counterpart of
+	 * {@link Command#PROCESSING_COMPLETE}.
+	 * </p>
+	 */
+	public static final Outcome COMPLETE = new Outcome(null);
+
+	private final Exception error;
+
+	private Outcome(Exception error) {
+		this.error = error;
+	}
+
+	/**
+	 * @param result
+	 *            A {@link Command} result
+	 * @return {@link #COMPLETE} or {@link #CONTINUE}
+	 */
+	public static Outcome of(boolean result) {
+		return Command.PROCESSING_COMPLETE == result ? COMPLETE : CONTINUE;
+	}
+
+	/**
+	 * <p>
+	 * Create a failure with a stackless {@link ChainFailure}.
+	 * </p>
+	 * 
+	 * @param code
+	 *            Application defined error code
+	 * @param message
+	 *            Description of the failure
+	 * @return a failed {@link Outcome}
+	 */
+	public static Outcome failed(int code, String message) {
+		return new Outcome(new ChainFailure(code, message));
+	}
+
+	/**
+	 * <p>
+	 * Create a failure carrying an existing exception.
+	 * </p>
+	 * 
+	 * @param error
+	 *            The exception describing the failure
+	 * @return a failed {@link Outcome}
+	 * @exception IllegalArgumentException
+	 *                if <code>error</code> is <code>null</code>
+	 */
+	public static Outcome failed(Exception error) {
+		if (null == error) {
+			throw new IllegalArgumentException("Error may not be null");
+		}
+		return new Outcome(error);
+	}
+
+	/**
+	 * @return <code>true</code> if this is {@link #COMPLETE}
+	 */
+	public boolean isComplete() {
+		return this == COMPLETE;
+	}
+
+	/**
+	 * @return <code>true</code> if this is a failure
+	 */
+	public boolean isFailed() {
+		return null != error;
+	}
+
+	/**
+	 * @return the exception describing the failure, or <code>null</code> if
+	 *         this is not a failure
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	/**
+	 * @return the code of the {@link ChainFailure} describing the failure, or
+	 *         0 if this is not a failure or the failure is not a
+	 *         {@link ChainFailure}
+	 */
+	public int getErrorCode() {
+		return error instanceof ChainFailure ? ((ChainFailure) error).getCode() : 0;
+	}
+
+	public String toString() {
+		if (this == COMPLETE) {
+			return "COMPLETE";
+		}
+		if (this == CONTINUE) {
+			return "CONTINUE";
+		}
+		return "FAILED(" + error + ")";
+	}
+}
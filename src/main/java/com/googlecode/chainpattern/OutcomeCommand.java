@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+/**
+ * <p>
+ * An {@link OutcomeCommand} is a {@link Command} that reports failure by
+ * returning a failed {@link Outcome} instead of throwing. It is meant for
+ * chains where failure is a normal result, such as validation, and filling in
+ * stack traces would dominate the cost of processing.
+ * </p>
+ * 
+ * <p>
+ * The thread-safety expectations are the same as for {@link Command}.
+ * </p>
+ */
+public interface OutcomeCommand<C> {
+
+	/**
+	 * <p>
+	 * Execute a unit of processing work.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed by this {@link OutcomeCommand}
+	 * 
+	 * @return {@link Outcome#COMPLETE} if the processing of the context has
+	 *         been completed, {@link Outcome#CONTINUE} if it should be
+	 *         delegated to the next command, or a failed {@link Outcome}
+	 */
+	public Outcome execute(C context);
+}
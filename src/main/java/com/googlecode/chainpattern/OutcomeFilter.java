@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern;
+
+/**
+ * <p>
+ * The {@link OutcomeCommand} counterpart of {@link Filter}. The owning chain
+ * calls <code>postprocess()</code> for every {@link OutcomeFilter} it
+ * executed, in reverse order, passing the failed {@link Outcome} if
+ * processing failed.
+ * </p>
+ */
+public interface OutcomeFilter<C> extends OutcomeCommand<C> {
+
+	/**
+	 * Execute any cleanup activities, such as releasing resources that were
+	 * acquired during the execute() method of this OutcomeFilter instance
+	 * 
+	 * @param context
+	 *            The context to be processed by this OutcomeFilter
+	 * @param failure
+	 *            The failed Outcome (if any) of the last command that was
+	 *            executed; otherwise null
+	 * @return If a failure was "handled" by this method, return true;
+	 *         otherwise, return false
+	 */
+	public boolean postprocess(C context, Outcome failure);
+
+}
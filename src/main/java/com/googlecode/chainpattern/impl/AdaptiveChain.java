@@ -0,0 +1,381 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.ChainInstrumentation;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * A {@link Chain} that reorders groups of commutative {@link Command}s at
+ * runtime, so that the {@link Command} most likely to return
+ * <code>PROCESSING_COMPLETE</code> for the least cost runs first.
+ * </p>
+ * 
+ * <p>
+ * {@link Command}s added with {@link #addCommand(Command)} keep their position.
+ * {@link Command}s added together with {@link #addCommutativeGroup(List)} are
+ * declared to be order independent: the first of them to claim a context wins
+ * and it does not matter which of them ran before it. Within each group,
+ * {@link Command}s are ordered by their observed rate of returning
+ * <code>PROCESSING_COMPLETE</code> divided by their average execution time,
+ * highest first, which minimises the expected cost of reaching the
+ * {@link Command} that claims the context.
+ * </p>
+ * 
+ * <p>
+ * Observations are taken from a random sample of executions (see
+ * {@link #setSampleRate(int)}); the others run the current order with no
+ * profiling overhead. After every {@link #setReorderInterval(long)} sampled
+ * executions a new order is computed and swapped in atomically. An execution
+ * always runs entirely under one order, and {@link Filter}s are postprocessed
+ * in the reverse of the order they actually executed in, so every guarantee in
+ * the {@link Chain} JavaDoc holds for each execution.
+ * </p>
+ */
+public class AdaptiveChain<C> implements Chain<C> {
+
+	/**
+	 * <p>
+	 * Flag indicating whether the configuration of our commands list has been
+	 * frozen by a call to the <code>execute()</code> method. Like the lists
+	 * below, only accessed while holding this chain's monitor until it is set,
+	 * so that a {@link Command} added while the first execution starts is
+	 * either part of the plan or rejected.
+	 * </p>
+	 */
+	private boolean frozen = false;
+
+	/**
+	 * <p>
+	 * The configured {@link Command}s in the order they were added, and the
+	 * commutative group each belongs to (-1 for a fixed position).
+	 * </p>
+	 */
+	private final List<Command<C>> commands = new ArrayList<Command<C>>();
+	private final List<Integer> groups = new ArrayList<Integer>();
+	private int groupCount = 0;
+
+	private int sampleRate = 64;
+	private long reorderInterval = 1000;
+
+	private final AtomicReference<Plan<C>> plan = new AtomicReference<Plan<C>>();
+	private final LongAdder sampled = new LongAdder();
+	private final AtomicBoolean reordering = new AtomicBoolean();
+
+	/**
+	 * <p>
+	 * Construct an {@link AdaptiveChain} with no configured {@link Command}s.
+	 * </p>
+	 */
+	public AdaptiveChain() {
+
+	}
+
+	/**
+	 * <p>
+	 * Add a {@link Command} at a fixed position. See the {@link Chain}
+	 * JavaDoc.
+	 * </p>
+	 */
+	public Chain<C> addCommand(Command<C> command) {
+		add(command, -1);
+		return this;
+	}
+
+	/**
+	 * <p>
+	 * Add a group of {@link Command}s that may be executed in any order
+	 * relative to each other. The group as a whole keeps its position relative
+	 * to the other {@link Command}s of this chain.
+	 * </p>
+	 * 
+	 * @param group
+	 *            The commutative {@link Command}s, in their initial order
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>group</code> or any of its members is
+	 *                <code>null</code>
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public synchronized AdaptiveChain<C> addCommutativeGroup(List<? extends Command<C>> group) {
+		if (null == group) {
+			throw new IllegalArgumentException("Groups may not be null");
+		}
+		for (Command<C> command : group) {
+			if (null == command) {
+				throw new IllegalArgumentException("Commands may not be null");
+			}
+		}
+		int id = groupCount++;
+		for (Command<C> command : group) {
+			add(command, id);
+		}
+		return this;
+	}
+
+	private synchronized void add(Command<C> command, int group) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (frozen) {
+			throw new IllegalStateException("A command may not be added to a chain once the chain has been executed");
+		}
+		commands.add(command);
+		groups.add(group);
+	}
+
+	/**
+	 * @param sampleRate
+	 *            Profile one in <code>sampleRate</code> executions on
+	 *            average; defaults to 64
+	 */
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Sample rate must be at least 1");
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @param reorderInterval
+	 *            The number of profiled executions between reorderings;
+	 *            defaults to 1000
+	 */
+	public void setReorderInterval(long reorderInterval) {
+		if (reorderInterval < 1) {
+			throw new IllegalArgumentException("Reorder interval must be at least 1");
+		}
+		this.reorderInterval = reorderInterval;
+	}
+
+	/**
+	 * @return the {@link Command}s in the order the next execution will run
+	 *         them
+	 */
+	public List<Command<C>> getCurrentOrder() {
+		int[] order = plan().order;
+		List<Command<C>> current = new ArrayList<Command<C>>(order.length);
+		for (int id : order) {
+			current.add(commands.get(id));
+		}
+		return Collections.unmodifiableList(current);
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc.
+	 */
+	public boolean execute(C context) throws Exception {
+		Plan<C> current = plan();
+		if (1 == sampleRate || 0 == ThreadLocalRandom.current().nextInt(sampleRate)) {
+			try {
+				return current.profiled.execute(context);
+			} finally {
+				sampled.increment();
+				if (sampled.sum() >= reorderInterval) {
+					reorder();
+				}
+			}
+		}
+		return current.plain.execute(context);
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc. Batch executions run the current order
+	 * and are not profiled.
+	 */
+	public BatchResult executeBatch(List<C> contexts) {
+		if (null == contexts) {
+			throw new IllegalArgumentException("Contexts may not be null");
+		}
+		return plan().plain.executeBatch(contexts);
+	}
+
+	/**
+	 * <p>
+	 * Compute a new order from the observations so far and swap it in. This
+	 * is done automatically, but may be called to force a reordering. If
+	 * another thread is already reordering, this call does nothing.
+	 * </p>
+	 */
+	public void reorder() {
+		Plan<C> current = plan();
+		if (!reordering.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			sampled.reset();
+			final Stats[] stats = current.stats;
+			final double[] score = new double[stats.length];
+			for (int id = 0; id < stats.length; id++) {
+				score[id] = stats[id].score();
+			}
+			int[] order = current.order.clone();
+			int start = 0;
+			while (start < order.length) {
+				int group = groups.get(order[start]);
+				int end = start + 1;
+				if (group >= 0) {
+					while (end < order.length && groups.get(order[end]) == group) {
+						end++;
+					}
+					sortByScore(order, start, end, score);
+				}
+				start = end;
+			}
+			plan.set(new Plan<C>(commands, order, stats));
+		} finally {
+			reordering.set(false);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Stable insertion sort of <code>order[from, to)</code> by descending
+	 * score; groups are expected to be small.
+	 * </p>
+	 */
+	private static void sortByScore(int[] order, int from, int to, double[] score) {
+		for (int i = from + 1; i < to; i++) {
+			int id = order[i];
+			int j = i - 1;
+			while (j >= from && score[order[j]] < score[id]) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = id;
+		}
+	}
+
+	private Plan<C> plan() {
+		Plan<C> current = plan.get();
+		return null == current ? freeze() : current;
+	}
+
+	private Plan<C> freeze() {
+		synchronized (this) {
+			this.frozen = true;
+		}
+		int[] order = new int[commands.size()];
+		Stats[] created = new Stats[commands.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+			created[i] = new Stats();
+		}
+		Plan<C> built = new Plan<C>(commands, order, created);
+		// a thread that loses the race adopts the winner's plan, so that
+		// every execution profiles into the same statistics
+		if (plan.compareAndSet(null, built)) {
+			return built;
+		}
+		return plan.get();
+	}
+
+	/**
+	 * <p>
+	 * One ordering of the chain, compiled with and without profiling.
+	 * </p>
+	 */
+	private static final class Plan<C> {
+		final int[] order;
+		final Stats[] stats;
+		final CompiledChain<C> plain;
+		final CompiledChain<C> profiled;
+
+		Plan(List<Command<C>> commands, int[] order, Stats[] stats) {
+			this.order = order;
+			this.stats = stats;
+			List<Command<C>> ordered = new ArrayList<Command<C>>(order.length);
+			for (int id : order) {
+				ordered.add(commands.get(id));
+			}
+			this.plain = new CompiledChain<C>(ordered);
+			this.profiled = new CompiledChain<C>(ordered, new Profiler(order, stats));
+		}
+	}
+
+	/**
+	 * <p>
+	 * Observed behaviour of one {@link Command}, accumulated across orders.
+	 * </p>
+	 */
+	private static final class Stats {
+		final LongAdder invocations = new LongAdder();
+		final LongAdder completions = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+
+		double score() {
+			long n = invocations.sum();
+			if (0 == n) {
+				return 0.0;
+			}
+			double completionRate = (double) completions.sum() / n;
+			double averageCost = Math.max(1.0, (double) nanos.sum() / n);
+			return completionRate / averageCost;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Records sampled executions of a {@link Plan}, translating positions in
+	 * that plan back to {@link Command}s.
+	 * </p>
+	 */
+	private static final class Profiler implements ChainInstrumentation {
+		private final int[] order;
+		private final Stats[] stats;
+
+		Profiler(int[] order, Stats[] stats) {
+			this.order = order;
+			this.stats = stats;
+		}
+
+		public void chainFrozen(List<? extends Command<?>> commands) {
+
+		}
+
+		public void commandExecuted(int index, long elapsedNanos, boolean result) {
+			Stats s = stats[order[index]];
+			s.invocations.increment();
+			s.nanos.add(elapsedNanos);
+			if (Command.PROCESSING_COMPLETE == result) {
+				s.completions.increment();
+			}
+		}
+
+		public void commandFailed(int index, long elapsedNanos, Exception exception) {
+			Stats s = stats[order[index]];
+			s.invocations.increment();
+			s.nanos.add(elapsedNanos);
+		}
+
+		public void exceptionHandled(int index, Exception exception) {
+
+		}
+	}
+}
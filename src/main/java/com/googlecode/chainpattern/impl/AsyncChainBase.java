@@ -0,0 +1,347 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import com.googlecode.chainpattern.AsyncChain;
+import com.googlecode.chainpattern.AsyncCommand;
+import com.googlecode.chainpattern.AsyncFilter;
+import com.googlecode.chainpattern.Chain;
+
+/**
+ * <p>
+ * Convenience base class for {@link AsyncChain} implementations. Synchronous
+ * {@link com.googlecode.chainpattern.Command}s can be added by wrapping them
+ * with {@link SyncCommandAdapter#adapt}.
+ * </p>
+ */
+public class AsyncChainBase<C> implements AsyncChain<C> {
+
+	/**
+	 * <p>
+	 * Flag indicating whether the configuration of our commands list has been
+	 * frozen by a call to the <code>execute()</code> method. Like
+	 * {@link #commands}, only accessed while holding this chain's monitor, so
+	 * that a command added while the first execution starts is either
+	 * executed or rejected.
+	 * </p>
+	 */
+	private boolean frozen = false;
+
+	/**
+	 * <p>
+	 * The list of {@link AsyncCommand}s configured for this
+	 * {@link AsyncChain}, in the order in which they may delegate processing
+	 * to the remainder of the {@link AsyncChain}.
+	 * </p>
+	 */
+	private final List<AsyncCommand<C>> commands = new ArrayList<AsyncCommand<C>>();
+
+	/**
+	 * <p>
+	 * The array form of {@link #commands} that is built when this
+	 * {@link AsyncChain} is frozen.
+	 * </p>
+	 */
+	private volatile Compiled<C> compiled;
+
+	/**
+	 * <p>
+	 * Construct an {@link AsyncChain} with no configured {@link AsyncCommand}s.
+	 * </p>
+	 */
+	public AsyncChainBase() {
+
+	}
+
+	/**
+	 * See the {@link AsyncChain} JavaDoc.
+	 * 
+	 * @param command
+	 *            The {@link AsyncCommand} to be added
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public synchronized AsyncChain<C> addCommand(AsyncCommand<C> command) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (frozen) {
+			throw new IllegalStateException("A command may not be added to a chain once the chain has been executed");
+		}
+		commands.add(command);
+		return this;
+	}
+
+	public synchronized List<AsyncCommand<C>> getCopyOfCommands() {
+		return Collections.unmodifiableList(new ArrayList<AsyncCommand<C>>(commands));
+	}
+
+	/**
+	 * See the {@link AsyncChain} JavaDoc.
+	 * 
+	 * @param context
+	 *            The context to be processed by this {@link AsyncChain}
+	 * 
+	 * @return a stage that completes with <code>true</code> if the processing
+	 *         of this context has been completed, or <code>false</code> if
+	 *         the processing should be delegated to a subsequent command in an
+	 *         enclosing chain, or that completes exceptionally with an
+	 *         exception not handled by a <code>postprocess()</code> method
+	 */
+	public CompletionStage<Boolean> execute(C context) {
+		Compiled<C> snapshot = this.compiled;
+		if (null == snapshot) {
+			snapshot = freeze();
+		}
+		CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		new Execution<C>(snapshot, context, result).executeFrom(0);
+		return result;
+	}
+
+	private synchronized Compiled<C> freeze() {
+		Compiled<C> snapshot = this.compiled;
+		if (null == snapshot) {
+			this.frozen = true;
+			snapshot = new Compiled<C>(this.commands);
+			this.compiled = snapshot;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * <p>
+	 * The frozen {@link AsyncCommand}s, with the {@link AsyncFilter} at each
+	 * position (or <code>null</code>) worked out once.
+	 * </p>
+	 */
+	private static final class Compiled<C> {
+		final AsyncCommand<C>[] commands;
+		final AsyncFilter<C>[] filters;
+
+		@SuppressWarnings("unchecked")
+		Compiled(List<AsyncCommand<C>> source) {
+			this.commands = source.toArray(new AsyncCommand[source.size()]);
+			this.filters = new AsyncFilter[commands.length];
+			for (int i = 0; i < commands.length; i++) {
+				if (commands[i] instanceof AsyncFilter<?>) {
+					filters[i] = (AsyncFilter<C>) commands[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * The state of a single call to <code>execute()</code>. Each step is
+	 * started from the completion of the previous one, so the fields are only
+	 * ever touched by one thread at a time and are published by the
+	 * completion of the stage that triggers the next step.
+	 * </p>
+	 */
+	private static final class Execution<C> {
+		private final Compiled<C> chain;
+		private final C context;
+		private final CompletableFuture<Boolean> result;
+		private boolean savedResult = Chain.CONTINUE_PROCESSING;
+		private Exception savedException;
+		private boolean handled;
+
+		Execution(Compiled<C> chain, C context, CompletableFuture<Boolean> result) {
+			this.chain = chain;
+			this.context = context;
+			this.result = result;
+		}
+
+		/**
+		 * <p>
+		 * Execute the {@link AsyncCommand}s from the given one on. Stages that
+		 * have already completed are followed in this loop, so that a long
+		 * chain of synchronous {@link AsyncCommand}s does not recurse once
+		 * per {@link AsyncCommand}; only a stage that is still pending
+		 * resumes the loop from its completion.
+		 * </p>
+		 */
+		void executeFrom(int index) {
+			while (true) {
+				if (index == chain.commands.length) {
+					postprocessFrom(index - 1);
+					return;
+				}
+				CompletionStage<Boolean> stage;
+				try {
+					stage = chain.commands[index].execute(context);
+				} catch (Throwable t) {
+					executed(index, null, t);
+					return;
+				}
+				if (null == stage) {
+					executed(index, null, new IllegalStateException("AsyncCommand returned a null stage"));
+					return;
+				}
+				CompletableFuture<Boolean> done = completed(stage);
+				if (null == done) {
+					final int current = index;
+					stage.whenComplete((value, failure) -> {
+						if (executed(current, value, failure)) {
+							executeFrom(current + 1);
+						}
+					});
+					return;
+				}
+				Boolean value = null;
+				Throwable failure = null;
+				try {
+					value = done.join();
+				} catch (Throwable t) {
+					failure = t;
+				}
+				if (!executed(index, value, failure)) {
+					return;
+				}
+				index++;
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if the next {@link AsyncCommand} should
+		 *         be executed, or <code>false</code> if this step has moved
+		 *         on to postprocessing or completed the execution
+		 */
+		private boolean executed(int index, Boolean value, Throwable failure) {
+			if (null != failure) {
+				failure = unwrap(failure);
+				if (!(failure instanceof Exception)) {
+					result.completeExceptionally(failure);
+					return false;
+				}
+				savedException = (Exception) failure;
+				postprocessFrom(index);
+				return false;
+			}
+			savedResult = Boolean.TRUE.equals(value);
+			if (Chain.PROCESSING_COMPLETE == savedResult) {
+				postprocessFrom(index);
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * <p>
+		 * Postprocess the {@link AsyncFilter}s from the given position back,
+		 * looping over completed stages as {@link #executeFrom(int)} does.
+		 * </p>
+		 */
+		void postprocessFrom(int index) {
+			while (true) {
+				while (index >= 0 && null == chain.filters[index]) {
+					index--;
+				}
+				if (index < 0) {
+					finish();
+					return;
+				}
+				final int next = index - 1;
+				CompletionStage<Boolean> stage;
+				try {
+					stage = chain.filters[index].postprocess(context, savedException);
+				} catch (Exception ignoreMe) {
+					index = next;
+					continue;
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+					return;
+				}
+				if (null == stage) {
+					index = next;
+					continue;
+				}
+				CompletableFuture<Boolean> done = completed(stage);
+				if (null == done) {
+					stage.whenComplete((value, failure) -> {
+						if (postprocessed(value, failure)) {
+							postprocessFrom(next);
+						}
+					});
+					return;
+				}
+				Boolean value = null;
+				Throwable failure = null;
+				try {
+					value = done.join();
+				} catch (Throwable t) {
+					failure = t;
+				}
+				if (!postprocessed(value, failure)) {
+					return;
+				}
+				index = next;
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if postprocessing should go on, or
+		 *         <code>false</code> if the execution has failed
+		 */
+		private boolean postprocessed(Boolean value, Throwable failure) {
+			if (null != failure && !(unwrap(failure) instanceof Exception)) {
+				result.completeExceptionally(unwrap(failure));
+				return false;
+			}
+			handled |= null == failure && Boolean.TRUE.equals(value);
+			return true;
+		}
+
+		/**
+		 * @return the stage as a completed <code>CompletableFuture</code>, or
+		 *         <code>null</code> if it is still pending or cannot tell
+		 */
+		private static CompletableFuture<Boolean> completed(CompletionStage<Boolean> stage) {
+			CompletableFuture<Boolean> future;
+			try {
+				future = stage.toCompletableFuture();
+			} catch (UnsupportedOperationException unknown) {
+				return null;
+			}
+			return null != future && future.isDone() ? future : null;
+		}
+
+		private void finish() {
+			if (null != savedException && !handled) {
+				result.completeExceptionally(savedException);
+			} else {
+				result.complete(savedResult);
+			}
+		}
+
+		private static Throwable unwrap(Throwable failure) {
+			while (failure instanceof CompletionException && null != failure.getCause()) {
+				failure = failure.getCause();
+			}
+			return failure;
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * Decorator that memoizes a {@link Command} which is a pure function of part
+ * of its context. A key is extracted from each context; on a miss the wrapped
+ * {@link Command} is executed and both its result and a value extracted from
+ * the context afterwards are cached. On a hit the wrapped {@link Command} is
+ * not executed: the cached value is applied to the context and the cached
+ * result (<code>PROCESSING_COMPLETE</code> or
+ * <code>CONTINUE_PROCESSING</code>) is returned.
+ * </p>
+ * 
+ * <p>
+ * Concurrent misses on the same key are coalesced: only one thread executes
+ * the wrapped {@link Command} while the others wait for its outcome.
+ * Exceptions are never cached; if the executing thread fails, each waiting
+ * thread executes the wrapped {@link Command} for its own context instead.
+ * Contexts for which the key extractor returns <code>null</code> bypass the
+ * cache.
+ * </p>
+ * 
+ * <p>
+ * The cache is bounded by {@link #setMaximumSize(int)}. When it grows past the
+ * bound, one thread at a time evicts the least recently used or the least
+ * frequently used entries, according to {@link #setEviction(Eviction)}, until
+ * it is back to ninety percent of the bound; other threads do not wait for
+ * the eviction. Entries can also expire after a time to live.
+ * </p>
+ * 
+ * <p>
+ * A {@link Filter} cannot be memoized, because its <code>postprocess()</code>
+ * method would not be called on a hit.
+ * </p>
+ */
+public class CachingCommand<C, K, V> implements Command<C> {
+
+	/**
+	 * <p>
+	 * The policy used to choose entries to evict.
+	 * </p>
+	 */
+	public enum Eviction {
+		/**
+		 * Evict the entries that were least recently used.
+		 */
+		LRU,
+		/**
+		 * Evict the entries that were used least often, breaking ties by
+		 * recency.
+		 */
+		LFU
+	}
+
+	private final Command<C> command;
+	private final Function<? super C, ? extends K> keyExtractor;
+	private final Function<? super C, ? extends V> valueExtractor;
+	private final BiConsumer<? super C, ? super V> valueApplier;
+
+	private final ConcurrentHashMap<K, Entry<V>> cache = new ConcurrentHashMap<K, Entry<V>>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private volatile int maximumSize = 1000;
+	private volatile Eviction eviction = Eviction.LRU;
+	private volatile long timeToLiveNanos = 0;
+
+	/**
+	 * <p>
+	 * Construct a caching decorator.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to memoize
+	 * @param keyExtractor
+	 *            Extracts the cache key from a context
+	 * @param valueExtractor
+	 *            Extracts, after <code>command</code> has executed, the value
+	 *            it produced from the context
+	 * @param valueApplier
+	 *            Applies a cached value to a context on a hit
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if any argument is <code>null</code>, or if
+	 *                <code>command</code> is a {@link Filter}
+	 */
+	public CachingCommand(Command<C> command, Function<? super C, ? extends K> keyExtractor,
+			Function<? super C, ? extends V> valueExtractor, BiConsumer<? super C, ? super V> valueApplier) {
+		if (null == command || null == keyExtractor || null == valueExtractor || null == valueApplier) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		if (command instanceof Filter<?>) {
+			throw new IllegalArgumentException("A Filter cannot be memoized");
+		}
+		this.command = command;
+		this.keyExtractor = keyExtractor;
+		this.valueExtractor = valueExtractor;
+		this.valueApplier = valueApplier;
+	}
+
+	public boolean execute(C context) throws Exception {
+		K key = keyExtractor.apply(context);
+		if (null == key) {
+			return command.execute(context);
+		}
+		Entry<V> entry = cache.get(key);
+		if (null != entry && entry.isExpired(System.nanoTime())) {
+			cache.remove(key, entry);
+			entry = null;
+		}
+		if (null == entry) {
+			Entry<V> created = new Entry<V>();
+			entry = cache.putIfAbsent(key, created);
+			if (null == entry) {
+				misses.increment();
+				return compute(key, created, context);
+			}
+		}
+		Outcome<V> outcome = entry.await();
+		if (null == outcome) {
+			return command.execute(context);
+		}
+		hits.increment();
+		entry.touch();
+		valueApplier.accept(context, outcome.value);
+		return outcome.result;
+	}
+
+	private boolean compute(K key, Entry<V> entry, C context) throws Exception {
+		boolean completed = false;
+		try {
+			boolean result = command.execute(context);
+			long ttl = timeToLiveNanos;
+			entry.complete(new Outcome<V>(result, valueExtractor.apply(context)), ttl > 0 ? System.nanoTime()
+					+ ttl : Long.MAX_VALUE);
+			completed = true;
+			return result;
+		} finally {
+			if (!completed) {
+				cache.remove(key, entry);
+				entry.fail();
+			} else if (cache.size() > maximumSize) {
+				try {
+					evict();
+				} catch (RuntimeException ignoreMe) {
+					// the result is already computed; the next miss evicts
+					// again
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Bring the cache back under its bound. Only one thread evicts at a time;
+	 * any other thread that finds the cache too large simply carries on.
+	 * </p>
+	 */
+	private void evict() {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			int bound = maximumSize;
+			int target = bound - bound / 10;
+			long now = System.nanoTime();
+			List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(cache.size());
+			for (Map.Entry<K, Entry<V>> e : cache.entrySet()) {
+				if (!e.getValue().isDone()) {
+					continue;
+				}
+				if (e.getValue().isExpired(now)) {
+					if (cache.remove(e.getKey(), e.getValue())) {
+						evictions.increment();
+					}
+				} else {
+					candidates.add(new Candidate<K, V>(e.getKey(), e.getValue()));
+				}
+			}
+			if (cache.size() <= bound) {
+				return;
+			}
+			Collections.sort(candidates, comparator(eviction));
+			for (Candidate<K, V> candidate : candidates) {
+				if (cache.size() <= target) {
+					break;
+				}
+				if (cache.remove(candidate.key, candidate.entry)) {
+					evictions.increment();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private static <K, V> Comparator<Candidate<K, V>> comparator(Eviction eviction) {
+		final Comparator<Candidate<K, V>> byRecency = Comparator.comparingLong(c -> c.lastAccess);
+		if (Eviction.LFU == eviction) {
+			Comparator<Candidate<K, V>> byFrequency = Comparator.comparingInt(c -> c.frequency);
+			return byFrequency.thenComparing(byRecency);
+		}
+		return byRecency;
+	}
+
+	/**
+	 * <p>
+	 * Discard every cached entry.
+	 * </p>
+	 */
+	public void invalidateAll() {
+		cache.clear();
+	}
+
+	/**
+	 * @return the number of entries currently cached, including those still
+	 *         being computed
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * @return the number of executions answered from the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of executions that had to run the wrapped
+	 *         {@link Command}, excluding contexts without a key
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of entries removed because of the size bound or
+	 *         their time to live
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @param maximumSize
+	 *            The number of entries above which eviction starts; defaults
+	 *            to 1000
+	 * @exception IllegalArgumentException
+	 *                if <code>maximumSize</code> is less than 1
+	 */
+	public void setMaximumSize(int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1");
+		}
+		this.maximumSize = maximumSize;
+	}
+
+	public Eviction getEviction() {
+		return eviction;
+	}
+
+	/**
+	 * @param eviction
+	 *            The eviction policy; defaults to {@link Eviction#LRU}
+	 */
+	public void setEviction(Eviction eviction) {
+		if (null == eviction) {
+			throw new IllegalArgumentException("Eviction may not be null");
+		}
+		this.eviction = eviction;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            How long an entry stays valid after it was computed, or 0 for
+	 *            no expiry, which is the default. Applies to entries computed
+	 *            after the call.
+	 * @param unit
+	 *            The unit of <code>timeToLive</code>
+	 */
+	public void setTimeToLive(long timeToLive, TimeUnit unit) {
+		if (timeToLive < 0) {
+			throw new IllegalArgumentException("Time to live may not be negative");
+		}
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+	}
+
+	/**
+	 * <p>
+	 * The cached outcome of one execution of the wrapped {@link Command}.
+	 * </p>
+	 */
+	private static final class Outcome<V> {
+		final boolean result;
+		final V value;
+
+		Outcome(boolean result, V value) {
+			this.result = result;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * <p>
+	 * An entry considered for eviction, with its access statistics copied so
+	 * that concurrent hits cannot change the order while it is being sorted.
+	 * </p>
+	 */
+	private static final class Candidate<K, V> {
+		final K key;
+		final Entry<V> entry;
+		final long lastAccess;
+		final int frequency;
+
+		Candidate(K key, Entry<V> entry) {
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+			this.frequency = entry.frequency;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A cache entry. It is inserted before its outcome is known so that
+	 * concurrent misses can wait on it; a <code>null</code> outcome means the
+	 * computation failed.
+	 * </p>
+	 */
+	private static final class Entry<V> {
+		private final CompletableFuture<Outcome<V>> outcome = new CompletableFuture<Outcome<V>>();
+		private volatile long expiresAt = Long.MAX_VALUE;
+		volatile long lastAccess = System.nanoTime();
+		/**
+		 * Racy increments may lose counts, which only makes the frequency
+		 * approximate.
+		 */
+		int frequency;
+
+		void complete(Outcome<V> value, long expiresAt) {
+			this.expiresAt = expiresAt;
+			outcome.complete(value);
+		}
+
+		void fail() {
+			outcome.complete(null);
+		}
+
+		boolean isDone() {
+			return outcome.isDone();
+		}
+
+		boolean isExpired(long now) {
+			return Long.MAX_VALUE != expiresAt && now - expiresAt > 0;
+		}
+
+		void touch() {
+			lastAccess = System.nanoTime();
+			frequency++;
+		}
+
+		Outcome<V> await() throws InterruptedException {
+			try {
+				return outcome.get();
+			} catch (ExecutionException cannotHappen) {
+				return null;
+			}
+		}
+	}
+}
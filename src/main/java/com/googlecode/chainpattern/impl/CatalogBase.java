@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.googlecode.chainpattern.Catalog;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+
+/**
+ * <p>
+ * Simple in-memory implementation of {@link Catalog}.
+ * </p>
+ * 
+ * <p>
+ * The named {@link Command}s are held in an immutable map that is replaced as
+ * a whole on every change, so {@link #getCommand(String)} is a plain read of
+ * a volatile reference with no locking. Changes are applied with a
+ * compare-and-set loop, so concurrent changes never lose each other. Because a
+ * {@link Chain} cannot be changed once it has been executed, the way to change
+ * a running pipeline is to build a new {@link Chain} and install it with
+ * {@link #addCommand(String, Command)} or
+ * {@link #replaceCommand(String, Command, Command)}: new lookups see the new
+ * {@link Chain} straight away, while executions already in flight finish on
+ * the old one.
+ * </p>
+ */
+public class CatalogBase<C> implements Catalog<C> {
+
+	private final AtomicReference<Map<String, Command<C>>> commands = new AtomicReference<Map<String, Command<C>>>(
+			Collections.<String, Command<C>> emptyMap());
+
+	/**
+	 * <p>
+	 * Construct an empty {@link Catalog}.
+	 * </p>
+	 */
+	public CatalogBase() {
+
+	}
+
+	/**
+	 * See the {@link Catalog} JavaDoc.
+	 */
+	public Command<C> addCommand(String name, Command<C> command) {
+		checkName(name);
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		while (true) {
+			Map<String, Command<C>> current = commands.get();
+			if (commands.compareAndSet(current, copyWith(current, name, command))) {
+				return current.get(name);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Atomically replace the {@link Command} registered under
+	 * <code>name</code>, but only if it is still <code>expected</code>. This
+	 * lets a caller that built <code>replacement</code> from the current
+	 * version detect that someone else has installed a newer one in the
+	 * meantime.
+	 * </p>
+	 * 
+	 * @param name
+	 *            Name of the command to replace
+	 * @param expected
+	 *            The {@link Command} that is expected to be registered, or
+	 *            <code>null</code> if none is expected
+	 * @param replacement
+	 *            The {@link Command} to register
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>name</code> or <code>replacement</code> is
+	 *                <code>null</code>
+	 * 
+	 * @return <code>true</code> if the replacement was installed
+	 */
+	public boolean replaceCommand(String name, Command<C> expected, Command<C> replacement) {
+		checkName(name);
+		if (null == replacement) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		while (true) {
+			Map<String, Command<C>> current = commands.get();
+			if (current.get(name) != expected) {
+				return false;
+			}
+			if (commands.compareAndSet(current, copyWith(current, name, replacement))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Remove the {@link Command} registered under <code>name</code>, if any.
+	 * </p>
+	 * 
+	 * @param name
+	 *            Name of the command to remove
+	 * 
+	 * @return the removed {@link Command}, or <code>null</code> if there was
+	 *         none
+	 */
+	public Command<C> removeCommand(String name) {
+		while (true) {
+			Map<String, Command<C>> current = commands.get();
+			if (!current.containsKey(name)) {
+				return null;
+			}
+			Map<String, Command<C>> updated = new HashMap<String, Command<C>>(current);
+			Command<C> removed = updated.remove(name);
+			if (commands.compareAndSet(current, Collections.unmodifiableMap(updated))) {
+				return removed;
+			}
+		}
+	}
+
+	/**
+	 * See the {@link Catalog} JavaDoc.
+	 */
+	public Command<C> getCommand(String name) {
+		return commands.get().get(name);
+	}
+
+	/**
+	 * See the {@link Catalog} JavaDoc. The names are those registered at the
+	 * time of the call.
+	 */
+	public Iterator<String> getNames() {
+		return commands.get().keySet().iterator();
+	}
+
+	/**
+	 * <p>
+	 * Look up the {@link Command} registered under <code>name</code> and
+	 * execute it.
+	 * </p>
+	 * 
+	 * @param name
+	 *            Name of the command to execute
+	 * @param context
+	 *            The context to be processed
+	 * 
+	 * @exception Exception
+	 *                if thrown by the command
+	 * @exception IllegalArgumentException
+	 *                if no command is registered under <code>name</code>
+	 * 
+	 * @return the result of the command
+	 */
+	public boolean execute(String name, C context) throws Exception {
+		Command<C> command = getCommand(name);
+		if (null == command) {
+			throw new IllegalArgumentException("No command named " + name);
+		}
+		return command.execute(context);
+	}
+
+	private static void checkName(String name) {
+		if (null == name) {
+			throw new IllegalArgumentException("Names may not be null");
+		}
+	}
+
+	private static <C> Map<String, Command<C>> copyWith(Map<String, Command<C>> current, String name,
+			Command<C> command) {
+		Map<String, Command<C>> updated = new HashMap<String, Command<C>>(current);
+		updated.put(name, command);
+		return Collections.unmodifiableMap(updated);
+	}
+}
@@ -18,9 +18,12 @@ package com.googlecode.chainpattern.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.googlecode.chainpattern.BatchResult;
 import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.ChainInstrumentation;
 import com.googlecode.chainpattern.Command;
 import com.googlecode.chainpattern.Filter;
 
@@ -28,25 +31,112 @@ import com.googlecode.chainpattern.Filter;
  * <p>
  * Convenience base class for {@link Chain} implementations.
  * </p>
+ * 
+ * <p>
+ * A {@link ChainBase} may be shared freely between threads. Its configuration
+ * is an immutable snapshot that every change replaces with compare-and-set,
+ * so a call to <code>addCommand()</code> made concurrently with the first
+ * <code>execute()</code> either takes effect before the chain is frozen, and
+ * is seen by every execution, or fails with an
+ * <code>IllegalStateException</code>; it is never half seen or lost. The
+ * chain is frozen by whichever execution comes first. Any other execution
+ * that arrives while it is being compiled waits for it; after that,
+ * <code>execute()</code> reads one volatile field and takes no locks.
+ * {@link Command}s themselves must of course be safe to execute from several
+ * threads at once.
+ * </p>
  */
 public class ChainBase<C> implements Chain<C> {
 
 	/**
 	 * <p>
-	 * Flag indicating whether the configuration of our commands list has been
-	 * frozen by a call to the <code>execute()</code> method.
+	 * Immutable configuration of a {@link ChainBase}, replaced as a whole on
+	 * every change.
 	 * </p>
 	 */
-	private boolean frozen = false;
+	private static final class Configuration<C> {
+		/**
+		 * <p>
+		 * The {@link Command}s configured for the {@link Chain}, in the order
+		 * in which they may delegate processing to the remainder of the
+		 * {@link Chain}. Never modified once the configuration is published.
+		 * </p>
+		 */
+		final List<Command<C>> commands;
+
+		/**
+		 * <p>
+		 * The {@link ChainInstrumentation} that execution is reported to, if
+		 * any.
+		 * </p>
+		 */
+		final ChainInstrumentation instrumentation;
+
+		/**
+		 * <p>
+		 * Whether to execute through a {@link ChainSpecializer specialized}
+		 * form of the {@link Chain}.
+		 * </p>
+		 */
+		final boolean specialized;
+
+		/**
+		 * <p>
+		 * Whether to inline nested {@link ChainBase}s when the {@link Chain}
+		 * is frozen.
+		 * </p>
+		 */
+		final boolean inlined;
+
+		/**
+		 * <p>
+		 * Flag indicating whether the configuration has been frozen by a call
+		 * to the <code>execute()</code> method.
+		 * </p>
+		 */
+		final boolean frozen;
+
+		Configuration(List<Command<C>> commands, ChainInstrumentation instrumentation, boolean specialized,
+				boolean inlined, boolean frozen) {
+			this.commands = commands;
+			this.instrumentation = instrumentation;
+			this.specialized = specialized;
+			this.inlined = inlined;
+			this.frozen = frozen;
+		}
+	}
 
 	/**
 	 * <p>
-	 * The list of {@link Command}s configured for this {@link Chain}, in the
-	 * order in which they may delegate processing to the remainder of the
-	 * {@link Chain}.
+	 * The current configuration of this {@link Chain}.
 	 * </p>
 	 */
-	private final List<Command<C>> commands = new ArrayList<Command<C>>();
+	private final AtomicReference<Configuration<C>> configuration = new AtomicReference<Configuration<C>>(
+			new Configuration<C>(Collections.<Command<C>> emptyList(), null, false, false, false));
+
+	/**
+	 * <p>
+	 * The immutable form of the frozen configuration, used by every call to
+	 * <code>execute()</code> once it has been built.
+	 * </p>
+	 */
+	private volatile CompiledChain<C> compiled;
+
+	/**
+	 * <p>
+	 * The thread building {@link #compiled}, so that a chain nested within
+	 * itself is not inlined while it is being frozen.
+	 * </p>
+	 */
+	private volatile Thread freezing;
+
+	/**
+	 * <p>
+	 * Released once {@link #compiled} has been published, for executions
+	 * that arrive while it is being built.
+	 * </p>
+	 */
+	private final CountDownLatch published = new CountDownLatch(1);
 
 	/**
 	 * <p>
@@ -73,15 +163,124 @@ public class ChainBase<C> implements Chain<C> {
 		if (null == command) {
 			throw new IllegalArgumentException("Commands may not be null");
 		}
-		if (frozen) {
-			throw new IllegalStateException("A command may not be added to a chain once the chain has been executed");
+		while (true) {
+			Configuration<C> current = configuration.get();
+			if (current.frozen) {
+				throw new IllegalStateException(
+						"A command may not be added to a chain once the chain has been executed");
+			}
+			List<Command<C>> commands = new ArrayList<Command<C>>(current.commands.size() + 1);
+			commands.addAll(current.commands);
+			commands.add(command);
+			if (configuration.compareAndSet(current, new Configuration<C>(Collections.unmodifiableList(commands),
+					current.instrumentation, current.specialized, current.inlined, false))) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Report the execution of this {@link Chain} to the given
+	 * {@link ChainInstrumentation}. Like <code>addCommand()</code>, this may
+	 * only be called before the chain is first executed. A chain without
+	 * instrumentation pays nothing for this feature. An instrumentation whose
+	 * <code>chainFrozen()</code> method throws is left out, and the chain
+	 * runs as if it had none.
+	 * </p>
+	 * 
+	 * @param instrumentation
+	 *            The instrumentation to report to, or <code>null</code> to
+	 *            remove it
+	 * 
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public void setInstrumentation(ChainInstrumentation instrumentation) {
+		while (true) {
+			Configuration<C> current = configuration.get();
+			if (current.frozen) {
+				throw new IllegalStateException("Instrumentation may not be changed once the chain has been executed");
+			}
+			if (configuration.compareAndSet(current, new Configuration<C>(current.commands, instrumentation,
+					current.specialized, current.inlined, false))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Execute this {@link Chain} through classes built for it by
+	 * {@link ChainSpecializer}, so that the JIT can inline its
+	 * {@link Command}s. Results are identical either way. If the chain cannot
+	 * be specialized, or is instrumented, it runs as usual. Like
+	 * <code>addCommand()</code>, this may only be called before the chain is
+	 * first executed.
+	 * </p>
+	 * 
+	 * @param specialized
+	 *            <code>true</code> to specialize this chain when it is frozen
+	 * 
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public void setSpecialized(boolean specialized) {
+		while (true) {
+			Configuration<C> current = configuration.get();
+			if (current.frozen) {
+				throw new IllegalStateException("Specialization may not be changed once the chain has been executed");
+			}
+			if (configuration.compareAndSet(current, new Configuration<C>(current.commands, current.instrumentation,
+					specialized, current.inlined, false))) {
+				return;
+			}
 		}
-		commands.add(command);
-		return this;
 	}
 
+	/**
+	 * <p>
+	 * Inline the {@link Command}s of nested {@link ChainBase}s into this
+	 * {@link Chain} when it is frozen, so that a deeply composed chain is
+	 * executed by one loop instead of one call per level. Results are
+	 * identical either way: each nested chain still postprocesses its own
+	 * {@link Filter}s when it ends, and an exception that one of them handles
+	 * is still not seen by the rest of this chain.
+	 * </p>
+	 * 
+	 * <p>
+	 * Inlined chains are frozen along with this one. Subclasses of
+	 * {@link ChainBase}, and chains that are instrumented or specialized, are
+	 * executed as ordinary {@link Command}s. So is this chain if it is itself
+	 * instrumented or specialized.
+	 * </p>
+	 * 
+	 * @param inlined
+	 *            <code>true</code> to inline nested chains when this chain is
+	 *            frozen
+	 * 
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public void setInlineNestedChains(boolean inlined) {
+		while (true) {
+			Configuration<C> current = configuration.get();
+			if (current.frozen) {
+				throw new IllegalStateException("Inlining may not be changed once the chain has been executed");
+			}
+			if (configuration.compareAndSet(current, new Configuration<C>(current.commands, current.instrumentation,
+					current.specialized, inlined, false))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return an unmodifiable snapshot of the {@link Command}s configured so
+	 *         far, unaffected by later calls to <code>addCommand()</code>
+	 */
 	public List<Command<C>> getCopyOfCommands() {
-		return Collections.unmodifiableList(commands);
+		return configuration.get().commands;
 	}
 
 	/**
@@ -103,38 +302,138 @@ public class ChainBase<C> implements Chain<C> {
 	 *         {@link Command} in an enclosing {@link Chain}
 	 */
 	public boolean execute(C context) throws Exception {
-		this.frozen = true;
-		boolean savedResult = CONTINUE_PROCESSING;
-		ListIterator<Command<C>> li = this.commands.listIterator();
-		Exception savedException = null;
-		while (li.hasNext()) {
-			Command<C> command = li.next();
-			try {
-				savedResult = command.execute(context);
-			} catch (Exception toSave) {
-				savedException = toSave;
-				break;
+		CompiledChain<C> snapshot = this.compiled;
+		if (null == snapshot) {
+			snapshot = freeze();
+		}
+		return snapshot.execute(context);
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc.
+	 * 
+	 * @param contexts
+	 *            The contexts to be processed by this {@link Chain}
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>contexts</code> is <code>null</code>
+	 * 
+	 * @return the result of processing each context, or the exception that
+	 *         <code>execute()</code> would have thrown for it
+	 */
+	public BatchResult executeBatch(List<C> contexts) {
+		if (null == contexts) {
+			throw new IllegalArgumentException("Contexts may not be null");
+		}
+		CompiledChain<C> snapshot = this.compiled;
+		if (null == snapshot) {
+			snapshot = freeze();
+		}
+		return snapshot.executeBatch(contexts);
+	}
+
+	/**
+	 * <p>
+	 * Freeze the configuration of this {@link Chain} and build its
+	 * {@link CompiledChain}, or wait for the thread that is already doing so.
+	 * </p>
+	 * 
+	 * @return the compiled form of this {@link Chain}
+	 */
+	private CompiledChain<C> freeze() {
+		while (true) {
+			Configuration<C> current = configuration.get();
+			if (current.frozen) {
+				return awaitCompiled();
 			}
-			if (Chain.PROCESSING_COMPLETE == savedResult) {
-				break;
+			if (configuration.compareAndSet(current, new Configuration<C>(current.commands,
+					current.instrumentation, current.specialized, current.inlined, true))) {
+				this.freezing = Thread.currentThread();
+				// the instrumentation must hear of the chain before any
+				// execution is reported, so the snapshot is published last
+				CompiledChain<C> snapshot = null;
+				ChainInstrumentation instrumentation = null;
+				try {
+					if (null != current.instrumentation) {
+						try {
+							current.instrumentation.chainFrozen(current.commands);
+							instrumentation = current.instrumentation;
+						} catch (RuntimeException ignoreMe) {
+							// an instrumentation that could not initialise is
+							// left out, rather than fail every execution
+						}
+					}
+					snapshot = new CompiledChain<C>(current.commands, instrumentation, current.specialized,
+							current.inlined ? this : null);
+				} finally {
+					if (null == snapshot) {
+						// specializing or inlining failed, so fall back to the
+						// plain form rather than leave later executions waiting
+						snapshot = new CompiledChain<C>(current.commands, instrumentation);
+					}
+					this.compiled = snapshot;
+					this.freezing = null;
+					published.countDown();
+				}
+				return snapshot;
 			}
 		}
-		boolean handled = false;
-		while (li.hasPrevious()) {
-			Command<C> command = li.previous();
-			if (command instanceof Filter<?>) {
-				Filter<C> f = (Filter<C>) command;
-				try {
-					handled |= f.postprocess(context, savedException);
-				} catch (Exception ignoreMe) {
+	}
 
-				}
+	/**
+	 * <p>
+	 * Wait for the thread freezing this {@link Chain} to publish its
+	 * {@link CompiledChain}.
+	 * </p>
+	 * 
+	 * @exception IllegalStateException
+	 *                if called by that thread itself
+	 */
+	private CompiledChain<C> awaitCompiled() {
+		CompiledChain<C> snapshot = this.compiled;
+		if (null != snapshot) {
+			return snapshot;
+		}
+		if (Thread.currentThread() == freezing) {
+			throw new IllegalStateException("The chain may not be executed while it is being frozen");
+		}
+		boolean interrupted = false;
+		while (null == (snapshot = this.compiled)) {
+			try {
+				published.await();
+			} catch (InterruptedException remembered) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * <p>
+	 * Freeze this {@link Chain} so that an enclosing chain can inline it.
+	 * </p>
+	 * 
+	 * @return the frozen {@link Command}s, or <code>null</code> if this
+	 *         {@link Chain} must be executed as a whole
+	 */
+	List<Command<C>> freezeForInlining() {
+		if (ChainBase.class != getClass()) {
+			return null;
+		}
+		if (null == this.compiled) {
+			if (Thread.currentThread() == freezing) {
+				// nested within itself, and frozen further up this stack
+				return null;
 			}
+			freeze();
 		}
-		if (null != savedException && !handled) {
-			throw savedException;
-		} else {
-			return savedResult;
+		Configuration<C> frozen = configuration.get();
+		if (null != frozen.instrumentation || frozen.specialized) {
+			return null;
 		}
+		return frozen.commands;
 	}
 }
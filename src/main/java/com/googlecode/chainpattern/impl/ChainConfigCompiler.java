@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * Command line tool compiling a {@link ChainConfigLoader} configuration into
+ * a binary index, typically during the build:
+ * <code>ChainConfigCompiler chains.properties chains.idx</code>. The
+ * configuration is read as UTF-8, whatever the platform's default charset.
+ * </p>
+ */
+public final class ChainConfigCompiler {
+
+	private ChainConfigCompiler() {
+
+	}
+
+	public static void main(String[] args) {
+		int status = run(args, System.err);
+		if (0 != status) {
+			System.exit(status);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Compile a configuration as the command line would, without exiting.
+	 * </p>
+	 * 
+	 * @param args
+	 *            The properties file and the index file to write
+	 * @param err
+	 *            Receives the usage message and any error
+	 * @return <code>0</code> on success, <code>1</code> for a usage error,
+	 *         <code>2</code> if a file cannot be read or written
+	 */
+	public static int run(String[] args, PrintStream err) {
+		if (null == args || 2 != args.length) {
+			err.println("Usage: ChainConfigCompiler <properties file> <index file>");
+			return 1;
+		}
+		try (Reader in = new InputStreamReader(new FileInputStream(args[0]), StandardCharsets.UTF_8);
+				OutputStream out = new FileOutputStream(args[1])) {
+			ChainConfigLoader.compile(in, out);
+			return 0;
+		} catch (IOException failed) {
+			err.println("Cannot compile " + args[0] + " into " + args[1] + ": " + failed.getMessage());
+			return 2;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Catalog;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+
+/**
+ * <p>
+ * Loads named {@link Chain}s into a {@link Catalog} from a declarative
+ * configuration, so that a large catalog does not have to be assembled in
+ * code. The configuration is a properties file with one property per chain;
+ * the value lists the chain's {@link Command}s in order, separated by commas.
+ * Each entry is one of:
+ * </p>
+ * <ul>
+ * <li><code>com.example.SomeCommand</code>: a class with a public no-argument
+ * constructor</li>
+ * <li><code>com.example.Commands#someCommand</code>: a public static
+ * no-argument factory method returning a {@link Command}</li>
+ * <li><code>@otherChain</code>: whatever is registered in the {@link Catalog}
+ * under that name when the chain is first executed, typically another
+ * configured chain</li>
+ * </ul>
+ * 
+ * <p>
+ * Loading only reads the configuration. No class is loaded and no
+ * {@link Command} is created until a chain is first executed, so that a
+ * service pays at startup only for the chains it actually uses. A mistake in
+ * a chain's definition is therefore only reported when that chain is first
+ * executed. To skip even the parsing of properties at startup, a
+ * configuration can be compiled ahead of time, for example during the build,
+ * into a compact binary index with {@link #compile(Reader, OutputStream)} or
+ * the {@link ChainConfigCompiler} command line tool, and loaded with
+ * {@link #loadIndex(InputStream, Catalog)}.
+ * </p>
+ */
+public class ChainConfigLoader {
+
+	/**
+	 * <p>
+	 * First bytes of a compiled index, also identifying its format version.
+	 * </p>
+	 */
+	private static final int INDEX_MAGIC = 0x43484E31;
+
+	private final ClassLoader classLoader;
+
+	/**
+	 * <p>
+	 * Construct a loader that resolves classes with the class loader that
+	 * loaded this library.
+	 * </p>
+	 */
+	public ChainConfigLoader() {
+		this(ChainConfigLoader.class.getClassLoader());
+	}
+
+	/**
+	 * @param classLoader
+	 *            Resolves the class names in the configuration
+	 */
+	public ChainConfigLoader(ClassLoader classLoader) {
+		if (null == classLoader) {
+			throw new IllegalArgumentException("Class loader may not be null");
+		}
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * <p>
+	 * Register every chain defined in a properties file.
+	 * </p>
+	 * 
+	 * @param properties
+	 *            The configuration
+	 * @param catalog
+	 *            The {@link Catalog} to register the chains in
+	 * @return the names of the chains registered
+	 * @throws IOException
+	 *             if the configuration cannot be read
+	 */
+	public <C> List<String> load(Reader properties, Catalog<C> catalog) throws IOException {
+		return register(parse(properties), catalog);
+	}
+
+	/**
+	 * <p>
+	 * Register every chain in an index written by
+	 * {@link #compile(Reader, OutputStream)}.
+	 * </p>
+	 * 
+	 * @param index
+	 *            The compiled configuration
+	 * @param catalog
+	 *            The {@link Catalog} to register the chains in
+	 * @return the names of the chains registered
+	 * @throws IOException
+	 *             if the index cannot be read or is not an index
+	 */
+	public <C> List<String> loadIndex(InputStream index, Catalog<C> catalog) throws IOException {
+		DataInputStream in = new DataInputStream(index);
+		if (INDEX_MAGIC != in.readInt()) {
+			throw new IOException("Not a compiled chain configuration");
+		}
+		String[] strings = new String[in.readInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = in.readUTF();
+		}
+		Map<String, String[]> definitions = new LinkedHashMap<String, String[]>();
+		int chains = in.readInt();
+		for (int c = 0; c < chains; c++) {
+			String name = strings[in.readInt()];
+			String[] entries = new String[in.readInt()];
+			for (int e = 0; e < entries.length; e++) {
+				entries[e] = strings[in.readInt()];
+			}
+			definitions.put(name, entries);
+		}
+		return register(definitions, catalog);
+	}
+
+	/**
+	 * <p>
+	 * Compile a properties configuration into a binary index. Each distinct
+	 * string is stored once, so an index is usually smaller than its source
+	 * as well as quicker to load.
+	 * </p>
+	 * 
+	 * @param properties
+	 *            The configuration
+	 * @param index
+	 *            Receives the index
+	 * @throws IOException
+	 *             if either stream fails
+	 */
+	public static void compile(Reader properties, OutputStream index) throws IOException {
+		Map<String, String[]> definitions = parse(properties);
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, String[]> definition : definitions.entrySet()) {
+			strings.putIfAbsent(definition.getKey(), strings.size());
+			for (String entry : definition.getValue()) {
+				strings.putIfAbsent(entry, strings.size());
+			}
+		}
+		DataOutputStream out = new DataOutputStream(index);
+		out.writeInt(INDEX_MAGIC);
+		out.writeInt(strings.size());
+		for (String string : strings.keySet()) {
+			out.writeUTF(string);
+		}
+		out.writeInt(definitions.size());
+		for (Map.Entry<String, String[]> definition : definitions.entrySet()) {
+			out.writeInt(strings.get(definition.getKey()));
+			out.writeInt(definition.getValue().length);
+			for (String entry : definition.getValue()) {
+				out.writeInt(strings.get(entry));
+			}
+		}
+		out.flush();
+	}
+
+	private static Map<String, String[]> parse(Reader reader) throws IOException {
+		Properties properties = new Properties();
+		properties.load(reader);
+		Map<String, String[]> definitions = new LinkedHashMap<String, String[]>();
+		// Properties has no order of its own; sorting keeps indexes stable
+		for (String name : new TreeSet<String>(properties.stringPropertyNames())) {
+			List<String> entries = new ArrayList<String>();
+			for (String entry : properties.getProperty(name).split(",")) {
+				if (!entry.trim().isEmpty()) {
+					entries.add(entry.trim());
+				}
+			}
+			definitions.put(name, entries.toArray(new String[entries.size()]));
+		}
+		return definitions;
+	}
+
+	private <C> List<String> register(Map<String, String[]> definitions, Catalog<C> catalog) {
+		List<String> names = new ArrayList<String>(definitions.size());
+		for (Map.Entry<String, String[]> definition : definitions.entrySet()) {
+			catalog.addCommand(definition.getKey(), new LazyChain<C>(definition.getKey(), definition.getValue(),
+					catalog, classLoader));
+			names.add(definition.getKey());
+		}
+		return names;
+	}
+
+	/**
+	 * <p>
+	 * A configured {@link Chain} that creates its {@link Command}s on first
+	 * execution.
+	 * </p>
+	 */
+	static final class LazyChain<C> implements Chain<C> {
+		private final String name;
+		private final String[] entries;
+		private final Catalog<C> catalog;
+		private final ClassLoader classLoader;
+		private final ReentrantLock lock = new ReentrantLock();
+		private volatile ChainBase<C> chain;
+
+		LazyChain(String name, String[] entries, Catalog<C> catalog, ClassLoader classLoader) {
+			this.name = name;
+			this.entries = entries;
+			this.catalog = catalog;
+			this.classLoader = classLoader;
+		}
+
+		/**
+		 * <p>
+		 * A configured chain is defined by its configuration alone.
+		 * </p>
+		 * 
+		 * @exception IllegalStateException
+		 *                always
+		 */
+		public Chain<C> addCommand(Command<C> command) {
+			throw new IllegalStateException("A command may not be added to a configured chain");
+		}
+
+		public boolean execute(C context) throws Exception {
+			return instantiate().execute(context);
+		}
+
+		public BatchResult executeBatch(List<C> contexts) {
+			return instantiate().executeBatch(contexts);
+		}
+
+		/**
+		 * @return <code>true</code> once the {@link Command}s have been
+		 *         created
+		 */
+		boolean isInstantiated() {
+			return null != chain;
+		}
+
+		/**
+		 * @return the {@link ChainBase}, creating its {@link Command}s if
+		 *         this is the first call
+		 */
+		ChainBase<C> instantiate() {
+			ChainBase<C> instantiated = this.chain;
+			if (null != instantiated) {
+				return instantiated;
+			}
+			// creating commands may be slow, so latecomers wait rather than
+			// create their own; on a lock rather than a monitor, so that a
+			// waiting virtual thread does not pin its carrier
+			lock.lock();
+			try {
+				if (null == this.chain) {
+					ChainBase<C> created = new ChainBase<C>();
+					for (String entry : entries) {
+						created.addCommand(create(entry));
+					}
+					this.chain = created;
+				}
+				return this.chain;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Command<C> create(String entry) {
+			try {
+				if (entry.startsWith("@")) {
+					Command<C> referenced = catalog.getCommand(entry.substring(1));
+					if (null == referenced) {
+						throw new IllegalStateException("No command named " + entry.substring(1));
+					}
+					return referenced;
+				}
+				int hash = entry.indexOf('#');
+				if (hash < 0) {
+					return (Command<C>) Class.forName(entry, true, classLoader).getConstructor().newInstance();
+				}
+				Method factory = Class.forName(entry.substring(0, hash), true, classLoader).getMethod(
+						entry.substring(hash + 1));
+				if (!Modifier.isStatic(factory.getModifiers())) {
+					throw new IllegalStateException(entry + " is not a static method");
+				}
+				Object created = factory.invoke(null);
+				if (!(created instanceof Command<?>)) {
+					throw new IllegalStateException(entry + " did not return a Command");
+				}
+				return (Command<C>) created;
+			} catch (ReflectiveOperationException | ClassCastException failed) {
+				throw new IllegalStateException("Chain " + name + " cannot create " + entry, failed);
+			} catch (IllegalStateException failed) {
+				throw new IllegalStateException("Chain " + name + " cannot create " + entry + ": "
+						+ failed.getMessage(), failed);
+			}
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.LimitExceededException;
+
+/**
+ * <p>
+ * Runs executions of a {@link Chain}, or any other {@link Command}, each on a
+ * thread of its own, so that tens of thousands of executions can block on
+ * I/O at once. On a JDK with virtual threads each execution gets a new
+ * virtual thread; elsewhere the executions share a pool of daemon platform
+ * threads. Virtual threads are looked up reflectively, so the same build
+ * runs on both.
+ * </p>
+ * 
+ * <p>
+ * At most <code>maxConcurrent</code> executions are admitted at once.
+ * {@link #submit(Object)} waits for one of them to finish beyond that, and
+ * {@link #submit(Object, long, TimeUnit)} gives up after a time. Admission
+ * waits on a <code>Semaphore</code> rather than a monitor, and the
+ * {@link Command}s of this package do not hold monitors while executing
+ * others, so a blocked execution does not pin the carrier thread of its
+ * virtual thread.
+ * </p>
+ */
+public class ChainExecutor<C> implements AutoCloseable {
+
+	private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+	private final Command<C> command;
+
+	private final int maxConcurrent;
+
+	private final Semaphore permits;
+
+	private final Executor executor;
+
+	/**
+	 * <p>
+	 * The pool that {@link #executor} runs on if this {@link ChainExecutor}
+	 * created it, or <code>null</code>.
+	 * </p>
+	 */
+	private final ExecutorService ownedPool;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * <p>
+	 * Construct a {@link ChainExecutor} that runs each execution on a virtual
+	 * thread if the JDK has them, and on a pool of daemon threads if not.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to execute
+	 * @param maxConcurrent
+	 *            The most executions to run at once
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code> or
+	 *                <code>maxConcurrent</code> is less than 1
+	 */
+	public ChainExecutor(Command<C> command, int maxConcurrent) {
+		this(command, maxConcurrent, VIRTUAL_THREADS);
+	}
+
+	/**
+	 * @param command
+	 *            The {@link Command} to execute
+	 * @param maxConcurrent
+	 *            The most executions to run at once
+	 * @param threadFactory
+	 *            Creates a new thread for every execution, or
+	 *            <code>null</code> to use a pool of daemon threads
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code> or
+	 *                <code>maxConcurrent</code> is less than 1
+	 */
+	public ChainExecutor(Command<C> command, int maxConcurrent, final ThreadFactory threadFactory) {
+		if (null == command) {
+			throw new IllegalArgumentException("Command may not be null");
+		}
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("At least one concurrent execution must be allowed");
+		}
+		this.command = command;
+		this.maxConcurrent = maxConcurrent;
+		this.permits = new Semaphore(maxConcurrent);
+		if (null == threadFactory) {
+			final AtomicInteger count = new AtomicInteger();
+			this.ownedPool = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "chain-executor-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.executor = ownedPool;
+		} else {
+			this.ownedPool = null;
+			this.executor = runnable -> threadFactory.newThread(runnable).start();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the running JDK has virtual threads, which
+	 *         {@link #ChainExecutor(Command, int)} then uses
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return null != VIRTUAL_THREADS;
+	}
+
+	/**
+	 * <p>
+	 * Start an execution, waiting while <code>maxConcurrent</code> executions
+	 * are already running.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed
+	 * @return a future completed with the result of the execution, or with
+	 *         the exception it threw
+	 * @exception InterruptedException
+	 *                if interrupted while waiting
+	 * @exception IllegalStateException
+	 *                if this {@link ChainExecutor} has been closed
+	 */
+	public CompletableFuture<Boolean> submit(C context) throws InterruptedException {
+		checkOpen();
+		permits.acquire();
+		return start(context);
+	}
+
+	/**
+	 * <p>
+	 * Start an execution, waiting at most the given time while
+	 * <code>maxConcurrent</code> executions are already running.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed
+	 * @param timeout
+	 *            How long to wait for an execution to finish
+	 * @param unit
+	 *            The unit of <code>timeout</code>
+	 * @return a future completed with the result of the execution, or with
+	 *         the exception it threw
+	 * @exception LimitExceededException
+	 *                if no execution finished in time
+	 * @exception InterruptedException
+	 *                if interrupted while waiting
+	 * @exception IllegalStateException
+	 *                if this {@link ChainExecutor} has been closed
+	 */
+	public CompletableFuture<Boolean> submit(C context, long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		if (!permits.tryAcquire(timeout, unit)) {
+			throw new LimitExceededException("Concurrency limit of " + maxConcurrent + " reached");
+		}
+		return start(context);
+	}
+
+	/**
+	 * @return the number of executions running
+	 */
+	public int getInFlight() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * <p>
+	 * Stop accepting contexts and wait for the running executions to finish.
+	 * </p>
+	 */
+	public void close() {
+		closed = true;
+		permits.acquireUninterruptibly(maxConcurrent);
+		permits.release(maxConcurrent);
+		if (null != ownedPool) {
+			ownedPool.shutdown();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The executor has been closed");
+		}
+	}
+
+	private CompletableFuture<Boolean> start(final C context) {
+		final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		// checked after admission, so that close() cannot have finished yet
+		if (closed) {
+			permits.release();
+			throw new IllegalStateException("The executor has been closed");
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(command.execute(context));
+				} catch (Throwable failed) {
+					future.completeExceptionally(failed);
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RuntimeException | Error failed) {
+			permits.release();
+			throw failed;
+		}
+		return future;
+	}
+
+	/**
+	 * @return a factory for virtual threads, or <code>null</code> if this JDK
+	 *         has none
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class).invoke(
+					builder, "chain-executor-", 0L);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException unavailable) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.googlecode.chainpattern.ChainInstrumentation;
+import com.googlecode.chainpattern.Command;
+
+/**
+ * <p>
+ * {@link ChainInstrumentation} that keeps per {@link Command} counters and a
+ * latency histogram. Every counter and histogram bucket is a
+ * <code>LongAdder</code>, so recording never takes a lock and threads
+ * executing the same chain do not contend on a shared cache line.
+ * </p>
+ * 
+ * <p>
+ * Latencies are recorded into power of two buckets: bucket <code>b</code>
+ * counts executions that took less than <code>2^b</code> nanoseconds but at
+ * least <code>2^(b-1)</code>. A {@link ChainMetrics} instance records a single
+ * chain; {@link #snapshot()} may be called at any time to export the current
+ * values.
+ * </p>
+ */
+public class ChainMetrics implements ChainInstrumentation {
+
+	/**
+	 * <p>
+	 * Number of latency histogram buckets.
+	 * </p>
+	 */
+	public static final int BUCKETS = 64;
+
+	private volatile Stats[] stats = new Stats[0];
+
+	public void chainFrozen(List<? extends Command<?>> commands) {
+		Stats[] created = new Stats[commands.size()];
+		for (int i = 0; i < created.length; i++) {
+			created[i] = new Stats(String.valueOf(commands.get(i)));
+		}
+		this.stats = created;
+	}
+
+	public void commandExecuted(int index, long elapsedNanos, boolean result) {
+		Stats s = stats[index];
+		s.invocations.increment();
+		s.record(elapsedNanos);
+		if (Command.PROCESSING_COMPLETE == result) {
+			s.completions.increment();
+		}
+	}
+
+	public void commandFailed(int index, long elapsedNanos, Exception exception) {
+		Stats s = stats[index];
+		s.invocations.increment();
+		s.record(elapsedNanos);
+		s.exceptions.increment();
+	}
+
+	public void exceptionHandled(int index, Exception exception) {
+		stats[index].handled.increment();
+	}
+
+	/**
+	 * <p>
+	 * Capture the current values of every counter. The values of different
+	 * counters are not read atomically with respect to each other.
+	 * </p>
+	 * 
+	 * @return one {@link CommandSnapshot} per command, in chain order
+	 */
+	public List<CommandSnapshot> snapshot() {
+		Stats[] current = this.stats;
+		List<CommandSnapshot> snapshots = new ArrayList<CommandSnapshot>(current.length);
+		for (Stats s : current) {
+			long[] histogram = new long[BUCKETS];
+			for (int b = 0; b < BUCKETS; b++) {
+				histogram[b] = s.buckets[b].sum();
+			}
+			snapshots.add(new CommandSnapshot(s.name, s.invocations.sum(), s.completions.sum(), s.exceptions.sum(),
+					s.handled.sum(), s.totalNanos.sum(), histogram));
+		}
+		return Collections.unmodifiableList(snapshots);
+	}
+
+	static int bucketOf(long nanos) {
+		int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0L, nanos));
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	/**
+	 * <p>
+	 * Live counters for one command.
+	 * </p>
+	 */
+	private static final class Stats {
+		final String name;
+		final LongAdder invocations = new LongAdder();
+		final LongAdder completions = new LongAdder();
+		final LongAdder exceptions = new LongAdder();
+		final LongAdder handled = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+		Stats(String name) {
+			this.name = name;
+			for (int b = 0; b < BUCKETS; b++) {
+				buckets[b] = new LongAdder();
+			}
+		}
+
+		void record(long elapsedNanos) {
+			totalNanos.add(elapsedNanos);
+			buckets[bucketOf(elapsedNanos)].increment();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Immutable copy of the counters recorded for one command.
+	 * </p>
+	 */
+	public static final class CommandSnapshot {
+		private final String command;
+		private final long invocations;
+		private final long completions;
+		private final long exceptions;
+		private final long handledExceptions;
+		private final long totalNanos;
+		private final long[] histogram;
+
+		CommandSnapshot(String command, long invocations, long completions, long exceptions, long handledExceptions,
+				long totalNanos, long[] histogram) {
+			this.command = command;
+			this.invocations = invocations;
+			this.completions = completions;
+			this.exceptions = exceptions;
+			this.handledExceptions = handledExceptions;
+			this.totalNanos = totalNanos;
+			this.histogram = histogram;
+		}
+
+		/**
+		 * @return the <code>toString()</code> of the command
+		 */
+		public String getCommand() {
+			return command;
+		}
+
+		/**
+		 * @return how many times the command was executed
+		 */
+		public long getInvocations() {
+			return invocations;
+		}
+
+		/**
+		 * @return how many times the command returned
+		 *         <code>PROCESSING_COMPLETE</code>
+		 */
+		public long getCompletions() {
+			return completions;
+		}
+
+		/**
+		 * @return how many times the command threw an exception
+		 */
+		public long getExceptions() {
+			return exceptions;
+		}
+
+		/**
+		 * @return how many exceptions the command, as a filter, reported as
+		 *         handled by its <code>postprocess()</code> method
+		 */
+		public long getHandledExceptions() {
+			return handledExceptions;
+		}
+
+		/**
+		 * @return the total time spent executing the command
+		 */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * @return a copy of the latency histogram, see the {@link ChainMetrics}
+		 *         JavaDoc for the bucket boundaries
+		 */
+		public long[] getHistogram() {
+			return histogram.clone();
+		}
+
+		/**
+		 * <p>
+		 * Estimate a latency percentile from the histogram. The estimate is
+		 * the upper bound of the bucket holding the requested rank, so it may
+		 * overstate the real value by up to a factor of two.
+		 * </p>
+		 * 
+		 * @param percentile
+		 *            A value between 0 and 100
+		 * @return the estimated latency in nanoseconds, or 0 if nothing was
+		 *         recorded
+		 */
+		public long getPercentileNanos(double percentile) {
+			long count = 0;
+			for (long c : histogram) {
+				count += c;
+			}
+			if (0 == count) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(count * percentile / 100.0);
+			long seen = 0;
+			for (int b = 0; b < histogram.length; b++) {
+				seen += histogram[b];
+				if (seen >= rank && seen > 0) {
+					return b >= 63 ? Long.MAX_VALUE : (1L << b) - 1;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.ExecutionResult;
+
+/**
+ * <p>
+ * Adapts a {@link Chain}, or any other {@link Command}, to a
+ * {@link Flow.Processor} so that it can be placed in a streaming pipeline.
+ * Each context received from upstream is executed on an {@link Executor} and
+ * published downstream as an {@link ExecutionResult}, whether the execution
+ * returned or threw.
+ * </p>
+ * 
+ * <p>
+ * Contexts are only requested from upstream when downstream has asked for
+ * results, and no more than <code>parallelism</code> are requested, executing
+ * or awaiting publication at once, so a slow subscriber slows the publisher
+ * down rather than filling memory. When <code>ordered</code> is set, results
+ * are published in the order in which their contexts arrived, which can hold
+ * a finished result back behind a slower one; otherwise they are published
+ * as they finish.
+ * </p>
+ * 
+ * <p>
+ * A processor serves a single subscriber. Termination from upstream is passed
+ * on once every context already received has been published. An
+ * <code>Error</code>, or any other throwable that is not an
+ * <code>Exception</code>, thrown by an execution is not captured in an
+ * {@link ExecutionResult}: the stream is failed with it straight away and
+ * upstream is cancelled. For finite
+ * input, {@link #process(Command, Stream)} does the same job on a
+ * {@link Stream}.
+ * </p>
+ */
+public class ChainProcessor<C> implements Flow.Processor<C, ExecutionResult<C>> {
+
+	/**
+	 * <p>
+	 * Place for the result of one context, kept in arrival order when the
+	 * processor is ordered.
+	 * </p>
+	 */
+	private static final class Slot<C> {
+		volatile ExecutionResult<C> result;
+	}
+
+	private final Command<C> command;
+	private final Executor executor;
+	private final int parallelism;
+	private final boolean ordered;
+
+	/**
+	 * <p>
+	 * Results waiting to be published: slots in arrival order when
+	 * {@link #ordered}, otherwise finished results in completion order.
+	 * </p>
+	 */
+	private final Queue<Slot<C>> slots = new ConcurrentLinkedQueue<Slot<C>>();
+	private final Queue<ExecutionResult<C>> finished = new ConcurrentLinkedQueue<ExecutionResult<C>>();
+
+	private volatile Flow.Subscription upstream;
+	private volatile Flow.Subscriber<? super ExecutionResult<C>> downstream;
+	private volatile boolean upstreamDone;
+	private volatile Throwable upstreamError;
+	private volatile boolean cancelled;
+	private volatile Throwable fatal;
+
+	/**
+	 * <p>
+	 * Total number of results requested by downstream, capped at
+	 * <code>Long.MAX_VALUE</code>.
+	 * </p>
+	 */
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+
+	// only touched inside drain()
+	private long requested;
+	private long emitted;
+	private boolean terminated;
+
+	/**
+	 * <p>
+	 * Construct a processor that executes on the common fork join pool.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Chain} or {@link Command} to execute for each
+	 *            context
+	 * @param parallelism
+	 *            The most contexts to have outstanding at once
+	 * @param ordered
+	 *            Whether results must be published in arrival order
+	 */
+	public ChainProcessor(Command<C> command, int parallelism, boolean ordered) {
+		this(command, ForkJoinPool.commonPool(), parallelism, ordered);
+	}
+
+	/**
+	 * @param command
+	 *            The {@link Chain} or {@link Command} to execute for each
+	 *            context
+	 * @param executor
+	 *            Runs the executions
+	 * @param parallelism
+	 *            The most contexts to have outstanding at once
+	 * @param ordered
+	 *            Whether results must be published in arrival order
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> or <code>executor</code> is
+	 *                <code>null</code>, or <code>parallelism</code> is less
+	 *                than 1
+	 */
+	public ChainProcessor(Command<C> command, Executor executor, int parallelism, boolean ordered) {
+		if (null == command || null == executor) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.command = command;
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * <p>
+	 * Execute the given {@link Command} for every element of a stream. The
+	 * executions inherit the stream's characteristics: they run in parallel
+	 * if the stream is parallel, and may finish out of order if it is
+	 * unordered. The stream is lazy, so nothing is executed until a terminal
+	 * operation runs.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Chain} or {@link Command} to execute
+	 * @param contexts
+	 *            The contexts to execute it with
+	 * @return a stream of the outcomes
+	 */
+	public static <C> Stream<ExecutionResult<C>> process(Command<C> command, Stream<C> contexts) {
+		if (null == command || null == contexts) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		return contexts.map(context -> ExecutionResult.execute(command, context));
+	}
+
+	public void subscribe(Flow.Subscriber<? super ExecutionResult<C>> subscriber) {
+		if (null == subscriber) {
+			throw new NullPointerException("Subscriber may not be null");
+		}
+		synchronized (this) {
+			if (null != downstream) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					public void request(long n) {
+
+					}
+
+					public void cancel() {
+
+					}
+				});
+				subscriber.onError(new IllegalStateException("A ChainProcessor only supports one subscriber"));
+				return;
+			}
+			downstream = subscriber;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				if (n <= 0) {
+					upstreamError = new IllegalArgumentException("Demand must be positive, was " + n);
+					upstreamDone = true;
+					cancelUpstream();
+				} else {
+					demand.getAndAccumulate(n, (current, more) -> current + more < 0 ? Long.MAX_VALUE : current + more);
+				}
+				drain();
+			}
+
+			public void cancel() {
+				cancelled = true;
+				cancelUpstream();
+				drain();
+			}
+		});
+		drain();
+	}
+
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (null != upstream || cancelled) {
+			subscription.cancel();
+			return;
+		}
+		upstream = subscription;
+		drain();
+	}
+
+	public void onNext(C context) {
+		if (cancelled || null != fatal) {
+			return;
+		}
+		Slot<C> slot = null;
+		if (ordered) {
+			slot = new Slot<C>();
+			slots.add(slot);
+		}
+		received.incrementAndGet();
+		final Slot<C> target = slot;
+		try {
+			executor.execute(() -> {
+				ExecutionResult<C> result;
+				try {
+					result = ExecutionResult.execute(command, context);
+				} catch (Throwable failure) {
+					fail(failure);
+					return;
+				}
+				publish(target, result);
+			});
+		} catch (RuntimeException rejected) {
+			publish(target, ExecutionResult.failed(context, rejected));
+		}
+	}
+
+	public void onError(Throwable throwable) {
+		upstreamError = throwable;
+		upstreamDone = true;
+		drain();
+	}
+
+	public void onComplete() {
+		upstreamDone = true;
+		drain();
+	}
+
+	private void publish(Slot<C> slot, ExecutionResult<C> result) {
+		if (null == slot) {
+			finished.add(result);
+		} else {
+			slot.result = result;
+		}
+		drain();
+	}
+
+	/**
+	 * <p>
+	 * Fail the stream after an execution threw something other than an
+	 * <code>Exception</code>, which leaves its result missing for good.
+	 * </p>
+	 */
+	private void fail(Throwable failure) {
+		if (null == fatal) {
+			fatal = failure;
+		}
+		cancelUpstream();
+		drain();
+	}
+
+	private void cancelUpstream() {
+		Flow.Subscription subscription = upstream;
+		if (null != subscription) {
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Publish whatever results downstream has room for, request more contexts
+	 * from upstream and pass on termination. Only one thread runs the loop at
+	 * a time; a thread that finds it running leaves a note for that thread to
+	 * go round again.
+	 * </p>
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			drainOnce();
+			missed = wip.addAndGet(-missed);
+		} while (0 != missed);
+	}
+
+	private void drainOnce() {
+		Flow.Subscriber<? super ExecutionResult<C>> subscriber = downstream;
+		if (terminated || null == subscriber) {
+			return;
+		}
+		if (cancelled) {
+			terminated = true;
+			slots.clear();
+			finished.clear();
+			return;
+		}
+		Throwable failure = fatal;
+		if (null != failure) {
+			terminated = true;
+			slots.clear();
+			finished.clear();
+			subscriber.onError(failure);
+			return;
+		}
+		long wanted = demand.get();
+		while (emitted < wanted) {
+			ExecutionResult<C> result = nextReady();
+			if (null == result) {
+				break;
+			}
+			emitted++;
+			subscriber.onNext(result);
+		}
+		if (upstreamDone && received.get() == emitted) {
+			terminated = true;
+			Throwable error = upstreamError;
+			if (null == error) {
+				subscriber.onComplete();
+			} else {
+				subscriber.onError(error);
+			}
+			return;
+		}
+		Flow.Subscription subscription = upstream;
+		if (null != subscription && !upstreamDone) {
+			long more = Math.min(parallelism - (requested - emitted), wanted - requested);
+			if (more > 0) {
+				requested += more;
+				subscription.request(more);
+			}
+		}
+	}
+
+	private ExecutionResult<C> nextReady() {
+		if (!ordered) {
+			return finished.poll();
+		}
+		Slot<C> head = slots.peek();
+		if (null == head || null == head.result) {
+			return null;
+		}
+		slots.poll();
+		return head.result;
+	}
+}
@@ -0,0 +1,485 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.ChainInstrumentation;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * Flight recorder for individual executions of a {@link Chain}. Where
+ * {@link ChainMetrics} aggregates, a {@link ChainRecorder} keeps whole
+ * executions: which {@link Command}s ran and for how long, where processing
+ * completed or failed, and which {@link Filter}s handled the exception. It is
+ * attached to a single {@link ChainBase} with
+ * {@link ChainBase#setInstrumentation(ChainInstrumentation)}.
+ * </p>
+ * 
+ * <p>
+ * An execution is recorded if it is picked by the sampling rate, or if it
+ * takes at least as long as the slow threshold, so that outliers are always
+ * caught however low the rate. Each thread notes the detail of its current
+ * execution in a buffer of its own, and only copies it into the shared
+ * recording if it is to be kept. The recording is a ring of records
+ * allocated when the chain is frozen; once full, the oldest records are
+ * overwritten. A chain with no recorder attached pays nothing; with neither
+ * sampling nor a threshold configured, a recorder costs a clock read per
+ * {@link Command}.
+ * </p>
+ */
+public class ChainRecorder implements ChainInstrumentation {
+
+	private final int capacity;
+	private volatile double sampleRate = 0.0;
+	private volatile long slowNanos = Long.MAX_VALUE;
+
+	private volatile List<String> commandNames = Collections.emptyList();
+	private volatile Slot[] slots = new Slot[0];
+	private final AtomicLong written = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+
+	/**
+	 * @param capacity
+	 *            The number of executions to keep
+	 * @exception IllegalArgumentException
+	 *                if <code>capacity</code> is less than 1
+	 */
+	public ChainRecorder(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param sampleRate
+	 *            The fraction of executions to record, from 0, the default,
+	 *            to 1
+	 */
+	public void setSampleRate(double sampleRate) {
+		if (sampleRate < 0.0 || sampleRate > 1.0) {
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @param threshold
+	 *            Executions taking at least this long are always recorded
+	 * @param unit
+	 *            The unit of <code>threshold</code>
+	 */
+	public void setSlowThreshold(long threshold, TimeUnit unit) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Threshold may not be negative");
+		}
+		this.slowNanos = unit.toNanos(threshold);
+	}
+
+	/**
+	 * <p>
+	 * Stop recording slow executions that are not sampled.
+	 * </p>
+	 */
+	public void clearSlowThreshold() {
+		this.slowNanos = Long.MAX_VALUE;
+	}
+
+	public void chainFrozen(List<? extends Command<?>> commands) {
+		List<String> names = new ArrayList<String>(commands.size());
+		for (Command<?> command : commands) {
+			names.add(String.valueOf(command));
+		}
+		Slot[] created = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			created[i] = new Slot(commands.size());
+		}
+		this.commandNames = Collections.unmodifiableList(names);
+		this.slots = created;
+	}
+
+	public void executionStarted() {
+		Scratch s = scratch.get();
+		if (null == s || s.commandNanos.length != commandNames.size()) {
+			s = new Scratch(commandNames.size());
+			scratch.set(s);
+		}
+		if (s.depth++ > 0) {
+			// a re-entrant execution is part of the outer one
+			return;
+		}
+		double rate = sampleRate;
+		s.sampled = rate > 0.0 && (rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate);
+		s.active = s.sampled || Long.MAX_VALUE != slowNanos;
+		if (s.active) {
+			s.reset();
+			s.timestamp = System.currentTimeMillis();
+		}
+	}
+
+	public void commandExecuted(int index, long elapsedNanos, boolean result) {
+		Scratch s = scratch.get();
+		if (null != s && s.active && 1 == s.depth) {
+			s.commandNanos[index] = elapsedNanos;
+			s.executed = index + 1;
+			if (Chain.PROCESSING_COMPLETE == result) {
+				s.completedAt = index;
+			}
+		}
+	}
+
+	public void commandFailed(int index, long elapsedNanos, Exception exception) {
+		Scratch s = scratch.get();
+		if (null != s && s.active && 1 == s.depth) {
+			s.commandNanos[index] = elapsedNanos;
+			s.executed = index + 1;
+			s.failedAt = index;
+			s.failure = exception;
+		}
+	}
+
+	public void exceptionHandled(int index, Exception exception) {
+		Scratch s = scratch.get();
+		if (null != s && s.active && 1 == s.depth) {
+			s.handledBy[s.handledCount++] = index;
+		}
+	}
+
+	public void executionFinished(long elapsedNanos, boolean result, Exception exception) {
+		Scratch s = scratch.get();
+		if (null == s) {
+			return;
+		}
+		try {
+			if (s.depth > 1 || !s.active) {
+				return;
+			}
+			s.active = false;
+			boolean slow = elapsedNanos >= slowNanos;
+			if (s.sampled || slow) {
+				record(s, elapsedNanos, result, null != exception, slow);
+			}
+		} finally {
+			// whatever happens, or recording stops for this thread for good
+			s.depth--;
+		}
+	}
+
+	private void record(Scratch s, long elapsedNanos, boolean result, boolean rethrown, boolean slow) {
+		Slot[] slots = this.slots;
+		if (0 == slots.length) {
+			return;
+		}
+		long sequence = written.getAndIncrement();
+		Slot slot = slots[(int) (sequence % slots.length)];
+		int version = slot.version.get();
+		// odd while being written; give up rather than wait for another writer
+		if (0 != (version & 1) || !slot.version.compareAndSet(version, version + 1)) {
+			dropped.increment();
+			return;
+		}
+		slot.sequence = sequence;
+		slot.timestamp = s.timestamp;
+		slot.elapsedNanos = elapsedNanos;
+		slot.result = result;
+		slot.rethrown = rethrown;
+		slot.sampled = s.sampled;
+		slot.slow = slow;
+		slot.executed = s.executed;
+		System.arraycopy(s.commandNanos, 0, slot.commandNanos, 0, s.executed);
+		slot.completedAt = s.completedAt;
+		slot.failedAt = s.failedAt;
+		slot.failure = s.failure;
+		slot.handledCount = s.handledCount;
+		System.arraycopy(s.handledBy, 0, slot.handledBy, 0, s.handledCount);
+		slot.version.set(version + 2);
+	}
+
+	/**
+	 * @return the recorded executions, oldest first
+	 */
+	public List<Trace> getTraces() {
+		Slot[] slots = this.slots;
+		List<String> names = this.commandNames;
+		List<Trace> traces = new ArrayList<Trace>(slots.length);
+		for (Slot slot : slots) {
+			Trace trace = slot.read(names);
+			if (null != trace) {
+				traces.add(trace);
+			}
+		}
+		Collections.sort(traces, (a, b) -> Long.compare(a.sequence, b.sequence));
+		return traces;
+	}
+
+	/**
+	 * @return the number of executions that were to be recorded but were not,
+	 *         because another thread was writing the same record
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * <p>
+	 * Detail of the current execution on one thread.
+	 * </p>
+	 */
+	private static final class Scratch {
+		final long[] commandNanos;
+		final int[] handledBy;
+		int depth;
+		boolean active;
+		boolean sampled;
+		long timestamp;
+		int executed;
+		int completedAt;
+		int failedAt;
+		Exception failure;
+		int handledCount;
+
+		Scratch(int commands) {
+			this.commandNanos = new long[commands];
+			this.handledBy = new int[commands];
+		}
+
+		void reset() {
+			executed = 0;
+			completedAt = -1;
+			failedAt = -1;
+			failure = null;
+			handledCount = 0;
+		}
+	}
+
+	/**
+	 * <p>
+	 * One preallocated record. Its version is odd while it is being written,
+	 * so that a reader can tell that its copy may be inconsistent.
+	 * </p>
+	 */
+	private static final class Slot {
+		final AtomicInteger version = new AtomicInteger();
+		final long[] commandNanos;
+		final int[] handledBy;
+		long sequence;
+		long timestamp;
+		long elapsedNanos;
+		boolean result;
+		boolean rethrown;
+		boolean sampled;
+		boolean slow;
+		int executed;
+		int completedAt;
+		int failedAt;
+		Exception failure;
+		int handledCount;
+
+		Slot(int commands) {
+			this.commandNanos = new long[commands];
+			this.handledBy = new int[commands];
+		}
+
+		Trace read(List<String> names) {
+			while (true) {
+				int before = version.get();
+				if (0 == before) {
+					return null;
+				}
+				if (0 != (before & 1)) {
+					Thread.onSpinWait();
+					continue;
+				}
+				Trace trace = new Trace(sequence, timestamp, elapsedNanos, result, rethrown, sampled, slow, names
+						.subList(0, executed), Arrays.copyOf(commandNanos, executed), completedAt, failedAt, failure,
+						Arrays.copyOf(handledBy, handledCount));
+				// keep the copies above from moving past the second check
+				VarHandle.acquireFence();
+				if (version.get() == before) {
+					return trace;
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Immutable record of one execution.
+	 * </p>
+	 */
+	public static final class Trace {
+		private final long sequence;
+		private final long timestamp;
+		private final long elapsedNanos;
+		private final boolean result;
+		private final boolean rethrown;
+		private final boolean sampled;
+		private final boolean slow;
+		private final List<String> commands;
+		private final long[] commandNanos;
+		private final int completedAt;
+		private final int failedAt;
+		private final Exception failure;
+		private final int[] handledBy;
+
+		Trace(long sequence, long timestamp, long elapsedNanos, boolean result, boolean rethrown, boolean sampled,
+				boolean slow, List<String> commands, long[] commandNanos, int completedAt, int failedAt,
+				Exception failure, int[] handledBy) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.elapsedNanos = elapsedNanos;
+			this.result = result;
+			this.rethrown = rethrown;
+			this.sampled = sampled;
+			this.slow = slow;
+			this.commands = commands;
+			this.commandNanos = commandNanos;
+			this.completedAt = completedAt;
+			this.failedAt = failedAt;
+			this.failure = failure;
+			this.handledBy = handledBy;
+		}
+
+		/**
+		 * @return when the execution started, in milliseconds since the epoch
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return the time spent in the chain, including postprocessing
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return the value the chain returned, or <code>false</code> if it
+		 *         threw
+		 */
+		public boolean getResult() {
+			return result;
+		}
+
+		/**
+		 * @return <code>true</code> if the chain threw, because no
+		 *         {@link Filter} handled the failure
+		 */
+		public boolean isRethrown() {
+			return rethrown;
+		}
+
+		/**
+		 * @return <code>true</code> if the execution was picked by sampling
+		 */
+		public boolean isSampled() {
+			return sampled;
+		}
+
+		/**
+		 * @return <code>true</code> if the execution reached the slow
+		 *         threshold
+		 */
+		public boolean isSlow() {
+			return slow;
+		}
+
+		/**
+		 * @return the names of the {@link Command}s that were executed, in
+		 *         order
+		 */
+		public List<String> getCommands() {
+			return commands;
+		}
+
+		/**
+		 * @param index
+		 *            The position of the {@link Command}
+		 * @return the time spent in that {@link Command}'s
+		 *         <code>execute()</code>
+		 */
+		public long getCommandNanos(int index) {
+			return commandNanos[index];
+		}
+
+		/**
+		 * @return the position of the {@link Command} that returned
+		 *         <code>PROCESSING_COMPLETE</code>, or -1
+		 */
+		public int getCompletedAt() {
+			return completedAt;
+		}
+
+		/**
+		 * @return the position of the {@link Command} that threw, or -1
+		 */
+		public int getFailedAt() {
+			return failedAt;
+		}
+
+		/**
+		 * @return the exception thrown by a {@link Command}, or
+		 *         <code>null</code>
+		 */
+		public Exception getFailure() {
+			return failure;
+		}
+
+		/**
+		 * @return the positions of the {@link Filter}s that reported the
+		 *         failure as handled, in the order they were postprocessed
+		 */
+		public int[] getHandledBy() {
+			return handledBy.clone();
+		}
+
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(elapsedNanos).append("ns");
+			for (int i = 0; i < commands.size(); i++) {
+				text.append(i == 0 ? " [" : ", ").append(commands.get(i)).append(' ').append(commandNanos[i])
+						.append("ns");
+				if (i == completedAt) {
+					text.append(" complete");
+				} else if (i == failedAt) {
+					text.append(" failed: ").append(failure);
+				}
+			}
+			if (!commands.isEmpty()) {
+				text.append(']');
+			}
+			if (handledBy.length > 0) {
+				text.append(" handled by ").append(Arrays.toString(handledBy));
+			}
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * Builds a dedicated class per position of a frozen chain, so that each
+ * <code>execute()</code> call site sees a single {@link Command} class and
+ * the JIT can inline it. A shared loop such as the one in
+ * {@link CompiledChain} sees every {@link Command} of every chain in the
+ * application and soon stops inlining any of them.
+ * </p>
+ * 
+ * <p>
+ * No bytecode is generated: the bytecode of {@link SpecializedStep} is
+ * defined again, unchanged, in a new class loader for each position, which is
+ * enough for the JVM to profile and compile each copy separately. The steps
+ * call one another, each postprocessing its own {@link Filter} as the calls
+ * unwind, with the same results as {@link CompiledChain}.
+ * </p>
+ * 
+ * <p>
+ * Each position costs a class loader and a class, so specialization suits a
+ * few hot chains rather than every chain in an application. Chains longer
+ * than {@link #MAX_LENGTH} are not specialized, since the steps use one stack
+ * frame each.
+ * </p>
+ */
+public final class ChainSpecializer {
+
+	/**
+	 * <p>
+	 * The longest chain that will be specialized.
+	 * </p>
+	 */
+	public static final int MAX_LENGTH = 64;
+
+	/**
+	 * <p>
+	 * The bytecode of {@link SpecializedStep}, or <code>null</code> if it
+	 * could not be read, in which case nothing is specialized.
+	 * </p>
+	 */
+	private static final byte[] TEMPLATE = readTemplate();
+
+	private ChainSpecializer() {
+
+	}
+
+	/**
+	 * <p>
+	 * Build a specialized {@link Command} that executes the given
+	 * {@link Command}s with the semantics described in the {@link Chain}
+	 * JavaDoc.
+	 * </p>
+	 * 
+	 * @param commands
+	 *            The {@link Command}s of a frozen chain, in order
+	 * @return the specialized chain, or <code>null</code> if the chain is too
+	 *         long or classes cannot be defined at runtime
+	 */
+	public static <C> Command<C> specialize(List<? extends Command<C>> commands) {
+		if (null == TEMPLATE || commands.size() > MAX_LENGTH) {
+			return null;
+		}
+		try {
+			Command<C> next = null;
+			for (int i = commands.size() - 1; i >= 0; i--) {
+				next = newStep(commands.get(i), next);
+			}
+			return new Entry<C>(next);
+		} catch (Exception unsupported) {
+			return null;
+		} catch (LinkageError unsupported) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if this JVM allows chains to be specialized
+	 */
+	public static boolean isAvailable() {
+		return null != TEMPLATE;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <C> Command<C> newStep(Command<C> command, Command<C> next) throws Exception {
+		Class<?> copy = new StepLoader(SpecializedStep.class.getClassLoader()).define(TEMPLATE);
+		Constructor<?> constructor = copy.getConstructor(Command.class, Command.class);
+		constructor.setAccessible(true);
+		return (Command<C>) constructor.newInstance(command, next);
+	}
+
+	private static byte[] readTemplate() {
+		String resource = SpecializedStep.class.getName().replace('.', '/') + ".class";
+		ClassLoader loader = SpecializedStep.class.getClassLoader();
+		try (InputStream in = null == loader ? ClassLoader.getSystemResourceAsStream(resource) : loader
+				.getResourceAsStream(resource)) {
+			if (null == in) {
+				return null;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int read; (read = in.read(buffer)) > 0;) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		} catch (IOException unavailable) {
+			return null;
+		} catch (SecurityException unavailable) {
+			return null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Defines one copy of {@link SpecializedStep}, delegating everything else
+	 * to the loader of this library.
+	 * </p>
+	 */
+	private static final class StepLoader extends ClassLoader {
+		StepLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(byte[] bytecode) {
+			return defineClass(SpecializedStep.class.getName(), bytecode, 0, bytecode.length);
+		}
+	}
+
+	/**
+	 * <p>
+	 * The head of a specialized chain. A {@link SpecializedStep.Handled}
+	 * reaching it means that every {@link Filter} has been postprocessed and
+	 * at least one handled the exception.
+	 * </p>
+	 */
+	private static final class Entry<C> implements Command<C> {
+		private final Command<C> head;
+
+		Entry(Command<C> head) {
+			this.head = head;
+		}
+
+		public boolean execute(C context) throws Exception {
+			if (null == head) {
+				return CONTINUE_PROCESSING;
+			}
+			try {
+				return head.execute(context);
+			} catch (SpecializedStep.Handled handled) {
+				return CONTINUE_PROCESSING;
+			}
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.googlecode.chainpattern.Catalog;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+
+/**
+ * <p>
+ * Warms up a {@link Chain} before it takes real requests, so that creating
+ * {@link Command}s, loading classes and compiling hot code do not slow down
+ * the first few thousand of them.
+ * </p>
+ * 
+ * <p>
+ * Warming up first prepares every {@link LazyCommand} and every chain loaded
+ * by {@link ChainConfigLoader} found in the {@link Chain}, looking into
+ * nested {@link ChainBase}s. It then executes the {@link Chain} with
+ * synthetic contexts, in windows of a fixed number of executions, until
+ * either the configured number of executions is reached or the median
+ * latency of two windows in a row has stayed within a tolerance of the
+ * window before. Exceptions thrown by the {@link Chain} are counted and
+ * otherwise ignored, so that synthetic contexts may exercise error paths
+ * too.
+ * </p>
+ * 
+ * <p>
+ * {@link #getProgress()} and {@link #isReady()} may be called from any
+ * thread while warm-up runs, for example by a readiness probe.
+ * </p>
+ */
+public class ChainWarmer<C> {
+
+	/**
+	 * <p>
+	 * The stages of warming up.
+	 * </p>
+	 */
+	public enum State {
+		NOT_STARTED, PREPARING, RUNNING, SETTLED, COMPLETED, FAILED
+	}
+
+	private final Command<C> chain;
+
+	private final Supplier<? extends C> contexts;
+
+	private volatile int iterations = 10000;
+
+	private volatile int window = 1000;
+
+	private volatile double tolerance = 0.05;
+
+	private volatile Progress progress;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	/**
+	 * @param chain
+	 *            The {@link Chain}, or any other {@link Command}, to warm up
+	 * @param contexts
+	 *            Creates the synthetic contexts to execute it with
+	 * @exception IllegalArgumentException
+	 *                if either argument is <code>null</code>
+	 */
+	public ChainWarmer(Command<C> chain, Supplier<? extends C> contexts) {
+		if (null == chain || null == contexts) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		this.chain = chain;
+		this.contexts = contexts;
+		this.progress = new Progress(State.NOT_STARTED, 0, 0, 0, 0, -1L, null);
+	}
+
+	/**
+	 * @param iterations
+	 *            The most executions to warm up with; 10000 by default
+	 */
+	public void setIterations(int iterations) {
+		if (iterations < 0) {
+			throw new IllegalArgumentException("Iterations may not be negative");
+		}
+		this.iterations = iterations;
+	}
+
+	/**
+	 * @param window
+	 *            The executions whose median latency is compared with that of
+	 *            the previous ones; 1000 by default
+	 * @param tolerance
+	 *            The relative change in median latency below which it counts
+	 *            as settled, for example 0.05; 0 to always run all
+	 *            iterations
+	 */
+	public void setSettling(int window, double tolerance) {
+		if (window < 1 || tolerance < 0.0) {
+			throw new IllegalArgumentException("Window must be positive and tolerance not negative");
+		}
+		this.window = window;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * <p>
+	 * Warm up on the calling thread.
+	 * </p>
+	 * 
+	 * @return the final {@link Progress}
+	 * @exception RuntimeException
+	 *                if preparing a {@link Command} failed, or creating a
+	 *                context; the {@link Progress} is then
+	 *                {@link State#FAILED}
+	 * @exception IllegalStateException
+	 *                if warm-up is already running
+	 */
+	public Progress run() {
+		if (!running.compareAndSet(false, true)) {
+			throw new IllegalStateException("Warm-up is already running");
+		}
+		try {
+			return warmUp();
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Warm up on a daemon thread of its own.
+	 * </p>
+	 * 
+	 * @return a future completed with the final {@link Progress}, or with
+	 *         the exception that ended warm-up
+	 * @exception IllegalStateException
+	 *                if warm-up is already running
+	 */
+	public CompletableFuture<Progress> start() {
+		if (!running.compareAndSet(false, true)) {
+			throw new IllegalStateException("Warm-up is already running");
+		}
+		final CompletableFuture<Progress> future = new CompletableFuture<Progress>();
+		Thread thread = new Thread(() -> {
+			Progress outcome;
+			try {
+				outcome = warmUp();
+			} catch (Throwable failed) {
+				running.set(false);
+				future.completeExceptionally(failed);
+				return;
+			}
+			// cleared first, so that whoever waits on the future may start again
+			running.set(false);
+			future.complete(outcome);
+		}, "chain-warmer");
+		thread.setDaemon(true);
+		try {
+			thread.start();
+		} catch (RuntimeException | Error failed) {
+			running.set(false);
+			throw failed;
+		}
+		return future;
+	}
+
+	private Progress warmUp() {
+		int iterations = this.iterations;
+		int window = this.window;
+		double tolerance = this.tolerance;
+		int prepared = 0;
+		int failures = 0;
+		int done = 0;
+		long previousMedian = -1L;
+		publish(State.PREPARING, iterations, 0, 0, 0, -1L, null);
+		try {
+			prepared = prepare(chain);
+			publish(State.RUNNING, iterations, 0, 0, prepared, -1L, null);
+			long[] samples = new long[window];
+			int stableWindows = 0;
+			while (done < iterations) {
+				int size = Math.min(window, iterations - done);
+				for (int i = 0; i < size; i++) {
+					C context = contexts.get();
+					long start = System.nanoTime();
+					try {
+						chain.execute(context);
+					} catch (Exception toCount) {
+						failures++;
+					}
+					samples[i] = System.nanoTime() - start;
+				}
+				done += size;
+				Arrays.sort(samples, 0, size);
+				long median = samples[size / 2];
+				if (previousMedian >= 0 && Math.abs(median - previousMedian) <= tolerance * previousMedian) {
+					stableWindows++;
+				} else {
+					stableWindows = 0;
+				}
+				previousMedian = median;
+				if (tolerance > 0.0 && stableWindows >= 2) {
+					return publish(State.SETTLED, iterations, done, failures, prepared, median, null);
+				}
+				publish(State.RUNNING, iterations, done, failures, prepared, median, null);
+			}
+			return publish(State.COMPLETED, iterations, done, failures, prepared, previousMedian, null);
+		} catch (RuntimeException | Error failed) {
+			// a readiness probe must not wait for ever on a warm-up that died
+			publish(State.FAILED, iterations, done, failures, prepared, previousMedian, failed);
+			throw failed;
+		}
+	}
+
+	/**
+	 * @return how far warm-up has got
+	 */
+	public Progress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @return <code>true</code> once warm-up has settled or completed
+	 */
+	public boolean isReady() {
+		State state = progress.getState();
+		return State.SETTLED == state || State.COMPLETED == state;
+	}
+
+	/**
+	 * <p>
+	 * Prepare every {@link LazyCommand} and every chain loaded by
+	 * {@link ChainConfigLoader} in the {@link Catalog}, without executing
+	 * anything.
+	 * </p>
+	 * 
+	 * @return the number prepared
+	 */
+	public static int prepare(Catalog<?> catalog) {
+		Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		int prepared = 0;
+		for (Iterator<String> names = catalog.getNames(); names.hasNext();) {
+			prepared += prepare(catalog.getCommand(names.next()), seen);
+		}
+		return prepared;
+	}
+
+	/**
+	 * <p>
+	 * Prepare every {@link LazyCommand} and every chain loaded by
+	 * {@link ChainConfigLoader} that is, or is nested within, the given
+	 * {@link Command}, without executing anything.
+	 * </p>
+	 * 
+	 * @return the number prepared
+	 */
+	public static int prepare(Command<?> command) {
+		return prepare(command, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+	}
+
+	private static int prepare(Command<?> command, Set<Object> seen) {
+		if (null == command || !seen.add(command)) {
+			return 0;
+		}
+		if (command instanceof LazyCommand<?>) {
+			return 1 + prepare(((LazyCommand<?>) command).prepare(), seen);
+		}
+		if (command instanceof ChainConfigLoader.LazyChain<?>) {
+			return 1 + prepare(((ChainConfigLoader.LazyChain<?>) command).instantiate(), seen);
+		}
+		int prepared = 0;
+		if (command instanceof ChainBase<?>) {
+			for (Command<?> nested : ((ChainBase<?>) command).getCopyOfCommands()) {
+				prepared += prepare(nested, seen);
+			}
+		}
+		return prepared;
+	}
+
+	private Progress publish(State state, int target, int done, int failures, int prepared, long median,
+			Throwable failure) {
+		Progress published = new Progress(state, target, done, failures, prepared, median, failure);
+		this.progress = published;
+		return published;
+	}
+
+	/**
+	 * <p>
+	 * Snapshot of how far warm-up has got.
+	 * </p>
+	 */
+	public static final class Progress {
+		private final State state;
+		private final int targetIterations;
+		private final int iterations;
+		private final int failures;
+		private final int prepared;
+		private final long medianNanos;
+		private final Throwable failure;
+
+		Progress(State state, int targetIterations, int iterations, int failures, int prepared, long medianNanos,
+				Throwable failure) {
+			this.state = state;
+			this.targetIterations = targetIterations;
+			this.iterations = iterations;
+			this.failures = failures;
+			this.prepared = prepared;
+			this.medianNanos = medianNanos;
+			this.failure = failure;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		/**
+		 * @return the executions done so far
+		 */
+		public int getIterations() {
+			return iterations;
+		}
+
+		/**
+		 * @return the most executions that will be done
+		 */
+		public int getTargetIterations() {
+			return targetIterations;
+		}
+
+		/**
+		 * @return the executions that threw an exception
+		 */
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return the lazily created {@link Command}s and chains prepared
+		 */
+		public int getPrepared() {
+			return prepared;
+		}
+
+		/**
+		 * @return the median latency of the latest window of executions, or
+		 *         -1 before the first window has finished
+		 */
+		public long getMedianLatency(TimeUnit unit) {
+			return medianNanos < 0 ? -1L : unit.convert(medianNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return what ended warm-up, if the state is {@link State#FAILED}
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		public String toString() {
+			return state + " " + iterations + "/" + targetIterations + " iterations, " + failures + " failed, "
+					+ prepared + " prepared, median " + (medianNanos < 0 ? "-" : medianNanos + "ns");
+		}
+	}
+}
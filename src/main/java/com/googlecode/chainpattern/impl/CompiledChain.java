@@ -0,0 +1,349 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.googlecode.chainpattern.BatchCommand;
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.ChainInstrumentation;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * Immutable, array backed form of a frozen {@link ChainBase}. The
+ * {@link Command}s are copied into a plain array and the positions of any
+ * {@link Filter}s are worked out once, so that {@link #execute(Object)} neither
+ * allocates nor performs type checks.
+ * </p>
+ *
+ * <p>
+ * The semantics of {@link #execute(Object)} are exactly those described in the
+ * {@link Chain} JavaDoc.
+ * </p>
+ */
+final class CompiledChain<C> implements Command<C> {
+
+	/**
+	 * <p>
+	 * The {@link Command}s to execute, in order.
+	 * </p>
+	 */
+	private final Command<C>[] commands;
+
+	/**
+	 * <p>
+	 * The {@link Filter}s found in {@link #commands}, in order.
+	 * </p>
+	 */
+	private final Filter<C>[] filters;
+
+	/**
+	 * <p>
+	 * The index within {@link #commands} of each entry in {@link #filters}.
+	 * </p>
+	 */
+	private final int[] filterPositions;
+
+	/**
+	 * <p>
+	 * The {@link BatchCommand} at each position of {@link #commands}, or
+	 * <code>null</code> where the {@link Command} cannot process a batch.
+	 * </p>
+	 */
+	private final BatchCommand<C>[] batchCommands;
+
+	/**
+	 * <p>
+	 * The nested {@link Chain} at each position of {@link #commands}, or
+	 * <code>null</code> where the {@link Command} is not a {@link Chain}.
+	 * </p>
+	 */
+	private final Chain<C>[] chains;
+
+	/**
+	 * <p>
+	 * The {@link ChainInstrumentation} to report to, or <code>null</code> if
+	 * execution is not instrumented.
+	 * </p>
+	 */
+	private final ChainInstrumentation instrumentation;
+
+	/**
+	 * <p>
+	 * The {@link ChainSpecializer specialized} or {@link FlattenedChain
+	 * flattened} form of {@link #commands} that {@link #execute(Object)}
+	 * delegates to, or <code>null</code> if the chain is executed by the loop
+	 * below.
+	 * </p>
+	 */
+	private final Command<C> delegate;
+
+	CompiledChain(List<Command<C>> source) {
+		this(source, null);
+	}
+
+	CompiledChain(List<Command<C>> source, ChainInstrumentation instrumentation) {
+		this(source, instrumentation, false, null);
+	}
+
+	/**
+	 * @param specialize
+	 *            Whether to try to execute through {@link ChainSpecializer};
+	 *            ignored when <code>instrumentation</code> is given
+	 * @param flattenOf
+	 *            The chain whose nested {@link ChainBase}s to inline into a
+	 *            {@link FlattenedChain}, or <code>null</code> not to inline
+	 *            them; ignored when <code>instrumentation</code> is given or
+	 *            the chain is specialized
+	 */
+	@SuppressWarnings("unchecked")
+	CompiledChain(List<Command<C>> source, ChainInstrumentation instrumentation, boolean specialize,
+			ChainBase<C> flattenOf) {
+		this.instrumentation = instrumentation;
+		Command<C> delegate = null;
+		if (null == instrumentation && specialize) {
+			delegate = ChainSpecializer.specialize(source);
+		}
+		if (null == instrumentation && null == delegate && null != flattenOf) {
+			delegate = FlattenedChain.flatten(flattenOf, source);
+		}
+		this.delegate = delegate;
+		int size = source.size();
+		this.commands = source.toArray(new Command[size]);
+		int filterCount = 0;
+		for (int i = 0; i < size; i++) {
+			if (commands[i] instanceof Filter<?>) {
+				filterCount++;
+			}
+		}
+		this.filters = new Filter[filterCount];
+		this.filterPositions = new int[filterCount];
+		this.batchCommands = new BatchCommand[size];
+		this.chains = new Chain[size];
+		int f = 0;
+		for (int i = 0; i < size; i++) {
+			if (commands[i] instanceof Filter<?>) {
+				filters[f] = (Filter<C>) commands[i];
+				filterPositions[f] = i;
+				f++;
+			}
+			if (commands[i] instanceof BatchCommand<?>) {
+				batchCommands[i] = (BatchCommand<C>) commands[i];
+			} else if (commands[i] instanceof Chain<?>) {
+				chains[i] = (Chain<C>) commands[i];
+			}
+		}
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc.
+	 */
+	public boolean execute(C context) throws Exception {
+		if (null != instrumentation) {
+			return executeInstrumented(context);
+		}
+		if (null != delegate) {
+			return delegate.execute(context);
+		}
+		final Command<C>[] commands = this.commands;
+		boolean savedResult = CONTINUE_PROCESSING;
+		Exception savedException = null;
+		int last = -1;
+		for (int i = 0; i < commands.length; i++) {
+			last = i;
+			try {
+				savedResult = commands[i].execute(context);
+			} catch (Exception toSave) {
+				savedException = toSave;
+				break;
+			}
+			if (Chain.PROCESSING_COMPLETE == savedResult) {
+				break;
+			}
+		}
+		boolean handled = false;
+		for (int f = filters.length - 1; f >= 0; f--) {
+			if (filterPositions[f] > last) {
+				continue;
+			}
+			try {
+				handled |= filters[f].postprocess(context, savedException);
+			} catch (Exception ignoreMe) {
+
+			}
+		}
+		if (null != savedException && !handled) {
+			throw savedException;
+		} else {
+			return savedResult;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Same as {@link #execute(Object)}, reporting to {@link #instrumentation}.
+	 * Kept apart so that the uninstrumented loop stays as small as possible.
+	 * </p>
+	 */
+	private boolean executeInstrumented(C context) throws Exception {
+		final Command<C>[] commands = this.commands;
+		final ChainInstrumentation instrumentation = this.instrumentation;
+		final long begin = System.nanoTime();
+		instrumentation.executionStarted();
+		boolean savedResult = CONTINUE_PROCESSING;
+		Exception savedException = null;
+		boolean handled = false;
+		boolean finished = false;
+		try {
+			int last = -1;
+			for (int i = 0; i < commands.length; i++) {
+				last = i;
+				long start = System.nanoTime();
+				try {
+					savedResult = commands[i].execute(context);
+				} catch (Exception toSave) {
+					instrumentation.commandFailed(i, System.nanoTime() - start, toSave);
+					savedException = toSave;
+					break;
+				}
+				instrumentation.commandExecuted(i, System.nanoTime() - start, savedResult);
+				if (Chain.PROCESSING_COMPLETE == savedResult) {
+					break;
+				}
+			}
+			for (int f = filters.length - 1; f >= 0; f--) {
+				if (filterPositions[f] > last) {
+					continue;
+				}
+				boolean handledHere;
+				try {
+					handledHere = filters[f].postprocess(context, savedException);
+				} catch (Exception ignoreMe) {
+					continue;
+				}
+				if (handledHere && null != savedException) {
+					instrumentation.exceptionHandled(filterPositions[f], savedException);
+				}
+				handled |= handledHere;
+			}
+			finished = true;
+		} finally {
+			// also on an Error, so that the instrumentation sees every
+			// execution it was told had started come to an end
+			if (!finished) {
+				instrumentation.executionFinished(System.nanoTime() - begin, CONTINUE_PROCESSING, null);
+			}
+		}
+		if (null != savedException && !handled) {
+			instrumentation.executionFinished(System.nanoTime() - begin, CONTINUE_PROCESSING, savedException);
+			throw savedException;
+		} else {
+			instrumentation.executionFinished(System.nanoTime() - begin, savedResult, null);
+			return savedResult;
+		}
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc. Batch execution is not reported to the
+	 * {@link ChainInstrumentation}.
+	 */
+	BatchResult executeBatch(List<C> contexts) {
+		final int size = contexts.size();
+		BatchResult outcome = new BatchResult(size);
+		boolean[] savedResults = new boolean[size];
+		Exception[] savedExceptions = new Exception[size];
+		int[] last = new int[size];
+		// indexes into contexts of those still being processed
+		int[] live = new int[size];
+		int liveCount = size;
+		for (int j = 0; j < size; j++) {
+			live[j] = j;
+			last[j] = -1;
+		}
+		for (int i = 0; i < commands.length && liveCount > 0; i++) {
+			if (null != batchCommands[i] || null != chains[i]) {
+				List<C> batch = new ArrayList<C>(liveCount);
+				for (int k = 0; k < liveCount; k++) {
+					batch.add(contexts.get(live[k]));
+				}
+				BatchResult step;
+				if (null != chains[i]) {
+					step = chains[i].executeBatch(batch);
+				} else {
+					step = new BatchResult(liveCount);
+					try {
+						batchCommands[i].executeBatch(batch, step);
+					} catch (Exception toSave) {
+						for (int k = 0; k < liveCount; k++) {
+							step.setException(k, toSave);
+						}
+					}
+				}
+				for (int k = 0; k < liveCount; k++) {
+					int j = live[k];
+					last[j] = i;
+					savedExceptions[j] = step.getException(k);
+					if (null == savedExceptions[j]) {
+						savedResults[j] = step.getResult(k);
+					}
+				}
+			} else {
+				for (int k = 0; k < liveCount; k++) {
+					int j = live[k];
+					last[j] = i;
+					try {
+						savedResults[j] = commands[i].execute(contexts.get(j));
+					} catch (Exception toSave) {
+						savedExceptions[j] = toSave;
+					}
+				}
+			}
+			int kept = 0;
+			for (int k = 0; k < liveCount; k++) {
+				int j = live[k];
+				if (null == savedExceptions[j] && Chain.CONTINUE_PROCESSING == savedResults[j]) {
+					live[kept++] = j;
+				}
+			}
+			liveCount = kept;
+		}
+		boolean[] handled = new boolean[size];
+		for (int f = filters.length - 1; f >= 0; f--) {
+			for (int j = 0; j < size; j++) {
+				if (filterPositions[f] > last[j]) {
+					continue;
+				}
+				try {
+					handled[j] |= filters[f].postprocess(contexts.get(j), savedExceptions[j]);
+				} catch (Exception ignoreMe) {
+
+				}
+			}
+		}
+		for (int j = 0; j < size; j++) {
+			if (null != savedExceptions[j] && !handled[j]) {
+				outcome.setException(j, savedExceptions[j]);
+			} else {
+				outcome.setResult(j, savedResults[j]);
+			}
+		}
+		return outcome;
+	}
+}
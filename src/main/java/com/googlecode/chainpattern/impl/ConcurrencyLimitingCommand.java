@@ -0,0 +1,382 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+import com.googlecode.chainpattern.LimitExceededException;
+
+/**
+ * <p>
+ * Decorator that limits how many executions of a {@link Command} may be in
+ * flight at once, so that a slow downstream dependency cannot pile up every
+ * thread in the service. The limit is not fixed: a {@link LimitAlgorithm}
+ * adjusts it from the latency of completed executions.
+ * </p>
+ * 
+ * <p>
+ * When the limit is reached, an execution either waits for up to
+ * {@link #setMaxWait(long, TimeUnit)} for a slot, or is rejected straight
+ * away (the default). A rejected execution throws a
+ * {@link LimitExceededException}, which an enclosing chain passes to its
+ * {@link Filter}s like any other exception, unless
+ * {@link #setRejectionResult(Boolean)} configures a result to return instead.
+ * </p>
+ * 
+ * <p>
+ * Slots are taken and released with compare-and-set, and waiting is done by
+ * parking and retrying, so the limiter never takes a lock. The decorator can
+ * be used inside any chain or on its own. A {@link Filter} cannot be
+ * decorated, because its <code>postprocess()</code> method would be called by
+ * the chain even when its <code>execute()</code> method was rejected.
+ * </p>
+ */
+public class ConcurrencyLimitingCommand<C> implements Command<C> {
+
+	/**
+	 * <p>
+	 * Strategy that decides the concurrency limit. Implementations must be
+	 * thread-safe and should not block.
+	 * </p>
+	 */
+	public interface LimitAlgorithm {
+		/**
+		 * @return the current limit, at least 1
+		 */
+		public int getLimit();
+
+		/**
+		 * <p>
+		 * Record the outcome of one execution.
+		 * </p>
+		 * 
+		 * @param rttNanos
+		 *            How long the execution took
+		 * @param inFlight
+		 *            How many executions were in flight when it started,
+		 *            including itself
+		 * @param dropped
+		 *            <code>true</code> if the execution was rejected, in
+		 *            which case <code>rttNanos</code> is 0
+		 */
+		public void onSample(long rttNanos, int inFlight, boolean dropped);
+	}
+
+	private final Command<C> command;
+	private final LimitAlgorithm algorithm;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder rejected = new LongAdder();
+
+	private volatile long maxWaitNanos = 0;
+	private volatile Boolean rejectionResult = null;
+
+	/**
+	 * @param command
+	 *            The {@link Command} to limit
+	 * @param algorithm
+	 *            Decides the concurrency limit, for example an
+	 *            {@link AimdLimit} or a {@link GradientLimit}
+	 * @exception IllegalArgumentException
+	 *                if either argument is <code>null</code>, or if
+	 *                <code>command</code> is a {@link Filter}
+	 */
+	public ConcurrencyLimitingCommand(Command<C> command, LimitAlgorithm algorithm) {
+		if (null == command || null == algorithm) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		if (command instanceof Filter<?>) {
+			throw new IllegalArgumentException("A Filter cannot be limited");
+		}
+		this.command = command;
+		this.algorithm = algorithm;
+	}
+
+	public boolean execute(C context) throws Exception {
+		int started = acquire();
+		if (started < 0) {
+			rejected.increment();
+			algorithm.onSample(0L, inFlight.get(), true);
+			Boolean result = rejectionResult;
+			if (null != result) {
+				return result;
+			}
+			throw new LimitExceededException("Concurrency limit of " + algorithm.getLimit() + " reached");
+		}
+		long start = System.nanoTime();
+		try {
+			return command.execute(context);
+		} finally {
+			inFlight.decrementAndGet();
+			algorithm.onSample(System.nanoTime() - start, started, false);
+		}
+	}
+
+	/**
+	 * @return the number in flight including this execution, or -1 if no
+	 *         slot could be had in time
+	 */
+	private int acquire() {
+		int acquired = tryAcquire();
+		if (acquired > 0 || 0 == maxWaitNanos) {
+			return acquired;
+		}
+		long deadline = System.nanoTime() + maxWaitNanos;
+		long backoff = 1000L;
+		while (true) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return -1;
+			}
+			LockSupport.parkNanos(Math.min(backoff, remaining));
+			backoff = Math.min(backoff * 2, 1000000L);
+			acquired = tryAcquire();
+			if (acquired > 0) {
+				return acquired;
+			}
+		}
+	}
+
+	private int tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= algorithm.getLimit()) {
+				return -1;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return current + 1;
+			}
+		}
+	}
+
+	/**
+	 * @return the current concurrency limit
+	 */
+	public int getLimit() {
+		return algorithm.getLimit();
+	}
+
+	/**
+	 * @return the number of executions in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return the number of executions rejected so far
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @param maxWait
+	 *            How long an execution may wait for a slot before it is
+	 *            rejected; 0, the default, rejects immediately
+	 * @param unit
+	 *            The unit of <code>maxWait</code>
+	 */
+	public void setMaxWait(long maxWait, TimeUnit unit) {
+		if (maxWait < 0) {
+			throw new IllegalArgumentException("Maximum wait may not be negative");
+		}
+		this.maxWaitNanos = unit.toNanos(maxWait);
+	}
+
+	/**
+	 * @param rejectionResult
+	 *            The result to return from a rejected execution, or
+	 *            <code>null</code>, the default, to throw a
+	 *            {@link LimitExceededException}
+	 */
+	public void setRejectionResult(Boolean rejectionResult) {
+		this.rejectionResult = rejectionResult;
+	}
+
+	/**
+	 * <p>
+	 * Additive increase, multiplicative decrease. The limit grows by one for
+	 * every <code>limit</code> executions that finish within the latency
+	 * threshold, so roughly by one per round of full concurrency, and is cut
+	 * by the backoff ratio whenever an execution is slower than the threshold
+	 * or is rejected.
+	 * </p>
+	 */
+	public static class AimdLimit implements LimitAlgorithm {
+		private final int minLimit;
+		private final int maxLimit;
+		private final long thresholdNanos;
+		private final double backoffRatio;
+		private final AtomicInteger limit;
+		private final AtomicInteger successes = new AtomicInteger();
+
+		/**
+		 * @param initialLimit
+		 *            The limit to start with
+		 * @param minLimit
+		 *            The lowest the limit may fall to, at least 1
+		 * @param maxLimit
+		 *            The highest the limit may grow to
+		 * @param threshold
+		 *            Latency above which an execution counts as overload
+		 * @param unit
+		 *            The unit of <code>threshold</code>
+		 * @param backoffRatio
+		 *            Factor the limit is multiplied by on overload, between 0
+		 *            and 1
+		 */
+		public AimdLimit(int initialLimit, int minLimit, int maxLimit, long threshold, TimeUnit unit,
+				double backoffRatio) {
+			if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+				throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+			}
+			if (backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+				throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+			}
+			this.minLimit = minLimit;
+			this.maxLimit = maxLimit;
+			this.thresholdNanos = unit.toNanos(threshold);
+			this.backoffRatio = backoffRatio;
+			this.limit = new AtomicInteger(initialLimit);
+		}
+
+		public int getLimit() {
+			return limit.get();
+		}
+
+		public void onSample(long rttNanos, int inFlight, boolean dropped) {
+			while (true) {
+				int current = limit.get();
+				int updated;
+				if (dropped || rttNanos > thresholdNanos) {
+					updated = Math.max(minLimit, (int) (current * backoffRatio));
+				} else if (successes.incrementAndGet() >= current) {
+					successes.set(0);
+					updated = Math.min(maxLimit, current + 1);
+				} else {
+					return;
+				}
+				if (updated == current || limit.compareAndSet(current, updated)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Gradient limit based on Little's law. The lowest latency seen recently
+	 * is taken as the latency of an unloaded dependency; the ratio of that to
+	 * the latest latency says how much of the current concurrency is queueing
+	 * rather than doing work. The limit is scaled by that ratio, plus an
+	 * allowance of <code>sqrt(limit)</code> so that it can keep probing
+	 * upwards, and smoothed to damp noise. The minimum latency is forgotten
+	 * every <code>probeInterval</code> samples so that a permanently slower
+	 * dependency is eventually accepted as the new baseline.
+	 * </p>
+	 */
+	public static class GradientLimit implements LimitAlgorithm {
+		private final int minLimit;
+		private final int maxLimit;
+		private final double smoothing;
+		private final long probeInterval;
+		private final AtomicLong limitBits;
+		private final AtomicLong minRttNanos = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong samples = new AtomicLong();
+
+		/**
+		 * @param initialLimit
+		 *            The limit to start with
+		 * @param minLimit
+		 *            The lowest the limit may fall to, at least 1
+		 * @param maxLimit
+		 *            The highest the limit may grow to
+		 */
+		public GradientLimit(int initialLimit, int minLimit, int maxLimit) {
+			this(initialLimit, minLimit, maxLimit, 0.2, 1000);
+		}
+
+		/**
+		 * @param initialLimit
+		 *            The limit to start with
+		 * @param minLimit
+		 *            The lowest the limit may fall to, at least 1
+		 * @param maxLimit
+		 *            The highest the limit may grow to
+		 * @param smoothing
+		 *            Weight given to each new estimate, between 0 and 1
+		 * @param probeInterval
+		 *            Number of samples after which the minimum latency is
+		 *            relearnt, at least 1
+		 */
+		public GradientLimit(int initialLimit, int minLimit, int maxLimit, double smoothing, long probeInterval) {
+			if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+				throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+			}
+			if (smoothing <= 0.0 || smoothing > 1.0) {
+				throw new IllegalArgumentException("Smoothing must be between 0 and 1");
+			}
+			if (probeInterval < 1) {
+				throw new IllegalArgumentException("Probe interval must be at least 1");
+			}
+			this.minLimit = minLimit;
+			this.maxLimit = maxLimit;
+			this.smoothing = smoothing;
+			this.probeInterval = probeInterval;
+			this.limitBits = new AtomicLong(Double.doubleToLongBits(initialLimit));
+		}
+
+		public int getLimit() {
+			return (int) Double.longBitsToDouble(limitBits.get());
+		}
+
+		public void onSample(long rttNanos, int inFlight, boolean dropped) {
+			if (dropped) {
+				return;
+			}
+			if (0 == samples.incrementAndGet() % probeInterval) {
+				minRttNanos.set(Long.MAX_VALUE);
+			}
+			long rtt = Math.max(1L, rttNanos);
+			long min;
+			while ((min = minRttNanos.get()) > rtt && !minRttNanos.compareAndSet(min, rtt)) {
+			}
+			min = Math.min(min, rtt);
+			double gradient = Math.max(0.5, Math.min(1.0, (double) min / rtt));
+			while (true) {
+				long bits = limitBits.get();
+				double current = Double.longBitsToDouble(bits);
+				if (gradient >= 1.0 && inFlight < current / 2) {
+					// not using the current limit, so latency says nothing
+					// about whether it could be higher
+					return;
+				}
+				double estimate = current * gradient + Math.sqrt(current);
+				double updated = current * (1.0 - smoothing) + estimate * smoothing;
+				updated = Math.max(minLimit, Math.min(maxLimit, updated));
+				if (limitBits.compareAndSet(bits, Double.doubleToLongBits(updated))) {
+					return;
+				}
+			}
+		}
+	}
+}
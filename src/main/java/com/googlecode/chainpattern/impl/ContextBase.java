@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A context whose attributes are stored in slots fixed by a
+ * {@link ContextSchema}, for chains that would otherwise pass a
+ * <code>Map</code> of named attributes from {@link com.googlecode.chainpattern.Command}
+ * to {@link com.googlecode.chainpattern.Command}. Every access is an array
+ * access, and primitive attributes are stored unboxed.
+ * </p>
+ * 
+ * <p>
+ * Contexts are created by {@link ContextSchema#newContext()}. Instead of
+ * creating one per request, a context can be kept and {@link #reset()}
+ * between executions, which clears every slot without allocating. Like a
+ * <code>HashMap</code>, a {@link ContextBase} is not thread-safe; it belongs
+ * to one execution at a time.
+ * </p>
+ */
+public class ContextBase {
+
+	private final ContextSchema schema;
+	private final Object[] objects;
+	private final int[] ints;
+	private final long[] longs;
+	private final double[] doubles;
+
+	ContextBase(ContextSchema schema, int objectSlots, int intSlots, int longSlots, int doubleSlots) {
+		this.schema = schema;
+		this.objects = new Object[objectSlots];
+		this.ints = new int[intSlots];
+		this.longs = new long[longSlots];
+		this.doubles = new double[doubleSlots];
+	}
+
+	/**
+	 * @return the schema this context was created from
+	 */
+	public ContextSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to read
+	 * @return its value, or <code>null</code> if it has not been set
+	 * @exception IllegalArgumentException
+	 *                if the key belongs to another schema
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(ContextSchema.Key<T> key) {
+		check(key);
+		return (T) objects[key.slot];
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to set
+	 * @param value
+	 *            Its new value, or <code>null</code> to clear it
+	 * @return its previous value
+	 * @exception IllegalArgumentException
+	 *                if the key belongs to another schema
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T put(ContextSchema.Key<T> key, T value) {
+		check(key);
+		T previous = (T) objects[key.slot];
+		objects[key.slot] = value;
+		return previous;
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to read
+	 * @return its value, or 0 if it has not been set
+	 */
+	public int getInt(ContextSchema.IntKey key) {
+		check(key);
+		return ints[key.slot];
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to set
+	 * @param value
+	 *            Its new value
+	 */
+	public void setInt(ContextSchema.IntKey key, int value) {
+		check(key);
+		ints[key.slot] = value;
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to read
+	 * @return its value, or 0 if it has not been set
+	 */
+	public long getLong(ContextSchema.LongKey key) {
+		check(key);
+		return longs[key.slot];
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to set
+	 * @param value
+	 *            Its new value
+	 */
+	public void setLong(ContextSchema.LongKey key, long value) {
+		check(key);
+		longs[key.slot] = value;
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to read
+	 * @return its value, or 0 if it has not been set
+	 */
+	public double getDouble(ContextSchema.DoubleKey key) {
+		check(key);
+		return doubles[key.slot];
+	}
+
+	/**
+	 * @param key
+	 *            The attribute to set
+	 * @param value
+	 *            Its new value
+	 */
+	public void setDouble(ContextSchema.DoubleKey key, double value) {
+		check(key);
+		doubles[key.slot] = value;
+	}
+
+	/**
+	 * <p>
+	 * Clear every attribute, so that this context can be reused for another
+	 * execution.
+	 * </p>
+	 */
+	public void reset() {
+		Arrays.fill(objects, null);
+		Arrays.fill(ints, 0);
+		Arrays.fill(longs, 0L);
+		Arrays.fill(doubles, 0.0);
+	}
+
+	private void check(ContextSchema.AbstractKey key) {
+		if (key.schema != schema) {
+			throw new IllegalArgumentException("Key " + key + " belongs to another schema");
+		}
+	}
+}
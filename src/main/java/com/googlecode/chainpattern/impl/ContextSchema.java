@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The set of attributes that a {@link ContextBase} can hold. Each attribute
+ * is declared once, typically while the {@link com.googlecode.chainpattern.Command}s
+ * of a chain are being built, and yields a typed key that resolves to a fixed
+ * slot. Looking an attribute up is then an array access rather than hashing
+ * a string, and <code>int</code>, <code>long</code> and <code>double</code>
+ * attributes have slots of their own, so they are never boxed.
+ * </p>
+ * 
+ * <p>
+ * Keys are interned by name: declaring the same name twice returns the same
+ * key, so independent {@link com.googlecode.chainpattern.Command}s can share
+ * an attribute without sharing code. The schema is frozen when the first
+ * context is created, since contexts are sized to it, and declaring a new
+ * attribute after that throws an <code>IllegalStateException</code>. Keys
+ * may be declared from several threads at once.
+ * </p>
+ */
+public class ContextSchema {
+
+	/**
+	 * <p>
+	 * Flag indicating whether the schema has been frozen by the creation of
+	 * a context.
+	 * </p>
+	 */
+	private volatile boolean frozen = false;
+
+	private final Map<String, Object> keys = new LinkedHashMap<String, Object>();
+	private int objectSlots;
+	private int intSlots;
+	private int longSlots;
+	private int doubleSlots;
+
+	/**
+	 * <p>
+	 * Declare an attribute holding objects.
+	 * </p>
+	 * 
+	 * @param name
+	 *            The name of the attribute
+	 * @param type
+	 *            The type of its values
+	 * @return the key for the attribute
+	 * @exception IllegalArgumentException
+	 *                if the name is already declared with another type
+	 * @exception IllegalStateException
+	 *                if the name is new and the schema is frozen
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> Key<T> key(String name, Class<T> type) {
+		if (null == type) {
+			throw new IllegalArgumentException("Type may not be null");
+		}
+		Object existing = lookup(name);
+		if (existing instanceof Key<?> && ((Key<?>) existing).type == type) {
+			return (Key<T>) existing;
+		}
+		declarable(name, existing);
+		return register(new Key<T>(this, name, type, objectSlots++));
+	}
+
+	/**
+	 * <p>
+	 * Declare an <code>int</code> attribute.
+	 * </p>
+	 * 
+	 * @see #key(String, Class)
+	 */
+	public synchronized IntKey intKey(String name) {
+		Object existing = lookup(name);
+		if (existing instanceof IntKey) {
+			return (IntKey) existing;
+		}
+		declarable(name, existing);
+		return register(new IntKey(this, name, intSlots++));
+	}
+
+	/**
+	 * <p>
+	 * Declare a <code>long</code> attribute.
+	 * </p>
+	 * 
+	 * @see #key(String, Class)
+	 */
+	public synchronized LongKey longKey(String name) {
+		Object existing = lookup(name);
+		if (existing instanceof LongKey) {
+			return (LongKey) existing;
+		}
+		declarable(name, existing);
+		return register(new LongKey(this, name, longSlots++));
+	}
+
+	/**
+	 * <p>
+	 * Declare a <code>double</code> attribute.
+	 * </p>
+	 * 
+	 * @see #key(String, Class)
+	 */
+	public synchronized DoubleKey doubleKey(String name) {
+		Object existing = lookup(name);
+		if (existing instanceof DoubleKey) {
+			return (DoubleKey) existing;
+		}
+		declarable(name, existing);
+		return register(new DoubleKey(this, name, doubleSlots++));
+	}
+
+	/**
+	 * @return the names of the declared attributes, in declaration order
+	 */
+	public synchronized List<String> getNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(keys.keySet()));
+	}
+
+	/**
+	 * <p>
+	 * Create an empty context for this schema, freezing it.
+	 * </p>
+	 * 
+	 * @return the new context
+	 */
+	public ContextBase newContext() {
+		if (!frozen) {
+			synchronized (this) {
+				frozen = true;
+			}
+		}
+		return new ContextBase(this, objectSlots, intSlots, longSlots, doubleSlots);
+	}
+
+	private Object lookup(String name) {
+		if (null == name) {
+			throw new IllegalArgumentException("Name may not be null");
+		}
+		return keys.get(name);
+	}
+
+	/**
+	 * <p>
+	 * Check that a new attribute may be declared, before a slot is taken for
+	 * it, so that a rejected declaration leaves no gap in the contexts.
+	 * </p>
+	 */
+	private void declarable(String name, Object existing) {
+		if (null != existing) {
+			throw new IllegalArgumentException("Attribute " + name + " is already declared as " + existing);
+		}
+		if (frozen) {
+			throw new IllegalStateException("An attribute may not be declared once a context has been created");
+		}
+	}
+
+	private <K extends AbstractKey> K register(K key) {
+		keys.put(key.name, key);
+		return key;
+	}
+
+	/**
+	 * <p>
+	 * Common part of every key: its schema, name and slot.
+	 * </p>
+	 */
+	abstract static class AbstractKey {
+		final ContextSchema schema;
+		final String name;
+		final int slot;
+
+		AbstractKey(ContextSchema schema, String name, int slot) {
+			this.schema = schema;
+			this.name = name;
+			this.slot = slot;
+		}
+
+		/**
+		 * @return the name of the attribute
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Key for an attribute holding objects of type <code>T</code>.
+	 * </p>
+	 */
+	public static final class Key<T> extends AbstractKey {
+		final Class<T> type;
+
+		Key(ContextSchema schema, String name, Class<T> type, int slot) {
+			super(schema, name, slot);
+			this.type = type;
+		}
+
+		/**
+		 * @return the type of the attribute's values
+		 */
+		public Class<T> getType() {
+			return type;
+		}
+
+		public String toString() {
+			return name + ":" + type.getName();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Key for an <code>int</code> attribute.
+	 * </p>
+	 */
+	public static final class IntKey extends AbstractKey {
+		IntKey(ContextSchema schema, String name, int slot) {
+			super(schema, name, slot);
+		}
+
+		public String toString() {
+			return name + ":int";
+		}
+	}
+
+	/**
+	 * <p>
+	 * Key for a <code>long</code> attribute.
+	 * </p>
+	 */
+	public static final class LongKey extends AbstractKey {
+		LongKey(ContextSchema schema, String name, int slot) {
+			super(schema, name, slot);
+		}
+
+		public String toString() {
+			return name + ":long";
+		}
+	}
+
+	/**
+	 * <p>
+	 * Key for a <code>double</code> attribute.
+	 * </p>
+	 */
+	public static final class DoubleKey extends AbstractKey {
+		DoubleKey(ContextSchema schema, String name, int slot) {
+			super(schema, name, slot);
+		}
+
+		public String toString() {
+			return name + ":double";
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.DeadlineExceededException;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * A {@link Chain} that can be executed against a deadline, and whose
+ * {@link Command}s can each be given a time budget.
+ * </p>
+ * 
+ * <p>
+ * {@link #execute(Object)} ignores deadlines and budgets entirely and costs
+ * the same as {@link ChainBase#execute(Object)}.
+ * {@link #execute(Object, long, TimeUnit)} follows the algorithm in the
+ * {@link Chain} JavaDoc with these additions:
+ * </p>
+ * <ul>
+ * <li>Before each {@link Command} is executed, the deadline is checked. If it
+ * has passed, the {@link Command} is not executed and processing ends with a
+ * {@link DeadlineExceededException}.</li>
+ * <li>Each {@link Command} may run for its budget, or until the deadline,
+ * whichever is sooner. If it is still running at that point its thread is
+ * interrupted, and once it returns processing ends with a
+ * {@link DeadlineExceededException}, whatever the {@link Command} returned or
+ * threw.</li>
+ * <li>As for any other exception, the <code>postprocess()</code> method of
+ * each {@link Filter} that was executed is then called in reverse order with
+ * the {@link DeadlineExceededException}, which is rethrown unless one of them
+ * handles it.</li>
+ * </ul>
+ * 
+ * <p>
+ * Interrupts are delivered by a scheduled watchdog, shared by every
+ * {@link DeadlineChain} unless another
+ * <code>ScheduledExecutorService</code> is supplied. A {@link Command} that
+ * does not respond to interrupts still runs to completion, but its result is
+ * discarded once it has overrun. The interrupt status of the executing thread
+ * is cleared again if the watchdog interrupted it.
+ * </p>
+ */
+public class DeadlineChain<C> implements Chain<C> {
+
+	/**
+	 * <p>
+	 * Flag indicating whether the configuration of our commands list has been
+	 * frozen by a call to the <code>execute()</code> method. Like the lists
+	 * below, only accessed while holding this chain's monitor, so that a
+	 * {@link Command} added while the first execution starts is either
+	 * executed or rejected.
+	 * </p>
+	 */
+	private boolean frozen = false;
+
+	private final List<Command<C>> commands = new ArrayList<Command<C>>();
+	private final List<Long> budgets = new ArrayList<Long>();
+
+	private final ScheduledExecutorService watchdog;
+
+	private volatile CompiledChain<C> compiled;
+	private Command<C>[] timedCommands;
+	private Filter<C>[] filters;
+	private long[] budgetNanos;
+
+	/**
+	 * <p>
+	 * Construct a {@link DeadlineChain} that uses the shared watchdog.
+	 * </p>
+	 */
+	public DeadlineChain() {
+		this(SharedWatchdog.INSTANCE);
+	}
+
+	/**
+	 * <p>
+	 * Construct a {@link DeadlineChain} that interrupts overrunning commands
+	 * from the given scheduler.
+	 * </p>
+	 * 
+	 * @param watchdog
+	 *            The scheduler to deliver interrupts from
+	 * @exception IllegalArgumentException
+	 *                if <code>watchdog</code> is <code>null</code>
+	 */
+	public DeadlineChain(ScheduledExecutorService watchdog) {
+		if (null == watchdog) {
+			throw new IllegalArgumentException("Watchdog may not be null");
+		}
+		this.watchdog = watchdog;
+	}
+
+	/**
+	 * <p>
+	 * Add a {@link Command} with no budget of its own; it is only limited by
+	 * the deadline. See the {@link Chain} JavaDoc.
+	 * </p>
+	 */
+	public Chain<C> addCommand(Command<C> command) {
+		add(command, 0L);
+		return this;
+	}
+
+	/**
+	 * <p>
+	 * Add a {@link Command} that may run for at most <code>budget</code>
+	 * when the chain is executed against a deadline.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to be added
+	 * @param budget
+	 *            The longest the {@link Command} may run
+	 * @param unit
+	 *            The unit of <code>budget</code>
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code> or
+	 *                <code>budget</code> is not positive
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public DeadlineChain<C> addCommand(Command<C> command, long budget, TimeUnit unit) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("Budgets must be positive");
+		}
+		add(command, unit.toNanos(budget));
+		return this;
+	}
+
+	private synchronized void add(Command<C> command, long budget) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (frozen) {
+			throw new IllegalStateException("A command may not be added to a chain once the chain has been executed");
+		}
+		commands.add(command);
+		budgets.add(budget);
+	}
+
+	/**
+	 * <p>
+	 * Execute without any deadline or budgets. See the {@link Chain} JavaDoc.
+	 * </p>
+	 */
+	public boolean execute(C context) throws Exception {
+		return compiled().execute(context);
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc. Deadlines and budgets do not apply.
+	 */
+	public BatchResult executeBatch(List<C> contexts) {
+		if (null == contexts) {
+			throw new IllegalArgumentException("Contexts may not be null");
+		}
+		return compiled().executeBatch(contexts);
+	}
+
+	/**
+	 * <p>
+	 * Execute against a deadline <code>timeout</code> from now, as described
+	 * in the class JavaDoc.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed by this {@link Chain}
+	 * @param timeout
+	 *            How long processing may take
+	 * @param unit
+	 *            The unit of <code>timeout</code>
+	 * 
+	 * @exception DeadlineExceededException
+	 *                if the deadline or a budget was exceeded and no
+	 *                <code>postprocess()</code> method handled it
+	 * @exception Exception
+	 *                if thrown by one of the {@link Command}s in this
+	 *                {@link Chain} but not handled by a
+	 *                <code>postprocess()</code> method of a {@link Filter}
+	 * 
+	 * @return the same as {@link #execute(Object)}
+	 */
+	public boolean execute(C context, long timeout, TimeUnit unit) throws Exception {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		compiled();
+		final Command<C>[] commands = this.timedCommands;
+		boolean savedResult = CONTINUE_PROCESSING;
+		Exception savedException = null;
+		int last = -1;
+		for (int i = 0; i < commands.length; i++) {
+			long start = System.nanoTime();
+			long remaining = deadline - start;
+			if (remaining <= 0) {
+				savedException = new DeadlineExceededException("Deadline passed before command " + i
+						+ " could be executed");
+				break;
+			}
+			long limit = budgetNanos[i] > 0 ? Math.min(budgetNanos[i], remaining) : remaining;
+			last = i;
+			Watch watch = new Watch(Thread.currentThread());
+			watch.schedule(watchdog, limit);
+			try {
+				savedResult = commands[i].execute(context);
+			} catch (Exception toSave) {
+				savedException = toSave;
+			} finally {
+				watch.finish();
+			}
+			if (System.nanoTime() - start > limit) {
+				savedException = new DeadlineExceededException("Command " + i + " overran its "
+						+ (limit == remaining ? "deadline" : "budget"), savedException);
+				break;
+			}
+			if (null != savedException || Chain.PROCESSING_COMPLETE == savedResult) {
+				break;
+			}
+		}
+		boolean handled = false;
+		for (int i = last; i >= 0; i--) {
+			if (null == filters[i]) {
+				continue;
+			}
+			try {
+				handled |= filters[i].postprocess(context, savedException);
+			} catch (Exception ignoreMe) {
+
+			}
+		}
+		if (null != savedException && !handled) {
+			throw savedException;
+		} else {
+			return savedResult;
+		}
+	}
+
+	private CompiledChain<C> compiled() {
+		CompiledChain<C> snapshot = this.compiled;
+		return null == snapshot ? freeze() : snapshot;
+	}
+
+	/**
+	 * <p>
+	 * Freeze the configuration. The arrays used by timed executions are
+	 * written before {@link #compiled} is published, so a thread that has
+	 * seen it also sees them.
+	 * </p>
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized CompiledChain<C> freeze() {
+		CompiledChain<C> snapshot = this.compiled;
+		if (null == snapshot) {
+			this.frozen = true;
+			Command<C>[] timed = commands.toArray(new Command[commands.size()]);
+			Filter<C>[] filterAt = new Filter[timed.length];
+			long[] budgetAt = new long[timed.length];
+			for (int i = 0; i < timed.length; i++) {
+				if (timed[i] instanceof Filter<?>) {
+					filterAt[i] = (Filter<C>) timed[i];
+				}
+				budgetAt[i] = budgets.get(i);
+			}
+			this.timedCommands = timed;
+			this.filters = filterAt;
+			this.budgetNanos = budgetAt;
+			snapshot = new CompiledChain<C>(commands);
+			this.compiled = snapshot;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * <p>
+	 * Interrupts a thread if a command it is executing overruns, without ever
+	 * leaving a stray interrupt behind once the command has finished. An
+	 * interrupt the thread already had when the command started, or when the
+	 * watch fired, belongs to the caller and is left in place.
+	 * </p>
+	 */
+	private static final class Watch implements Runnable {
+		private static final int RUNNING = 0;
+		private static final int FINISHED = 1;
+		private static final int INTERRUPTING = 2;
+		private static final int INTERRUPTED = 3;
+
+		private final Thread thread;
+		private final AtomicInteger state = new AtomicInteger(RUNNING);
+		private final boolean interruptedBefore;
+		private boolean interruptedWhenFired;
+		private ScheduledFuture<?> timer;
+
+		Watch(Thread thread) {
+			this.thread = thread;
+			this.interruptedBefore = thread.isInterrupted();
+		}
+
+		void schedule(ScheduledExecutorService watchdog, long nanos) {
+			timer = watchdog.schedule(this, nanos, TimeUnit.NANOSECONDS);
+		}
+
+		public void run() {
+			if (state.compareAndSet(RUNNING, INTERRUPTING)) {
+				interruptedWhenFired = thread.isInterrupted();
+				thread.interrupt();
+				state.set(INTERRUPTED);
+			}
+		}
+
+		void finish() {
+			if (state.compareAndSet(RUNNING, FINISHED)) {
+				timer.cancel(false);
+				return;
+			}
+			while (INTERRUPTED != state.get()) {
+				Thread.yield();
+			}
+			Thread.interrupted();
+			if (interruptedBefore || interruptedWhenFired) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	private static final class SharedWatchdog {
+		static final ScheduledExecutorService INSTANCE = create();
+
+		private static ScheduledExecutorService create() {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+				Thread thread = new Thread(runnable, "chain-deadline-watchdog");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			return executor;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * A {@link Chain} for routers: chains in which most {@link Command}s only
+ * handle contexts with a particular key. Instead of every such
+ * {@link Command} checking the context and returning
+ * <code>CONTINUE_PROCESSING</code> when it is not theirs, each registers the
+ * keys it handles with {@link #addCommand(Object, Command)}, and a key
+ * extractor supplied at construction reads the key from each context.
+ * </p>
+ * 
+ * <p>
+ * {@link Command}s added with {@link #addCommand(Command)} apply to every
+ * context. For a context with key <code>k</code>, this chain behaves exactly
+ * like a {@link ChainBase} holding, in the order they were added, the
+ * {@link Command}s that apply to every context and those registered under
+ * <code>k</code>. Contexts whose key was never registered, or is
+ * <code>null</code>, only see the {@link Command}s that apply to every
+ * context. The sequence for each key is worked out when the chain is frozen,
+ * so execution costs one hash lookup regardless of how many keys there are.
+ * </p>
+ */
+public class DispatchChain<C, K> implements Chain<C> {
+
+	/**
+	 * <p>
+	 * Flag indicating whether the configuration of our commands list has been
+	 * frozen by a call to the <code>execute()</code> method. Like the lists
+	 * below, only accessed while holding this chain's monitor, so that a
+	 * {@link Command} added while the first execution starts is either
+	 * routed or rejected.
+	 * </p>
+	 */
+	private boolean frozen = false;
+
+	private final Function<? super C, ? extends K> keyExtractor;
+
+	/**
+	 * <p>
+	 * The configured {@link Command}s in the order they were added, and the
+	 * key each was registered under (<code>null</code> for {@link Command}s
+	 * that apply to every context).
+	 * </p>
+	 */
+	private final List<Command<C>> commands = new ArrayList<Command<C>>();
+	private final List<K> keys = new ArrayList<K>();
+
+	private volatile Routes<C, K> routes;
+
+	/**
+	 * <p>
+	 * Construct a {@link DispatchChain} with no configured {@link Command}s.
+	 * </p>
+	 * 
+	 * @param keyExtractor
+	 *            Reads the routing key from a context
+	 * @exception IllegalArgumentException
+	 *                if <code>keyExtractor</code> is <code>null</code>
+	 */
+	public DispatchChain(Function<? super C, ? extends K> keyExtractor) {
+		if (null == keyExtractor) {
+			throw new IllegalArgumentException("Key extractor may not be null");
+		}
+		this.keyExtractor = keyExtractor;
+	}
+
+	/**
+	 * <p>
+	 * Add a {@link Command} that applies to every context. See the
+	 * {@link Chain} JavaDoc.
+	 * </p>
+	 */
+	public Chain<C> addCommand(Command<C> command) {
+		add(null, command);
+		return this;
+	}
+
+	/**
+	 * <p>
+	 * Add a {@link Command} that only applies to contexts whose key equals
+	 * <code>key</code>. A {@link Command} that handles several keys is added
+	 * once for each of them.
+	 * </p>
+	 * 
+	 * @param key
+	 *            The key the {@link Command} handles
+	 * @param command
+	 *            The {@link Command} to be added
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>key</code> or <code>command</code> is
+	 *                <code>null</code>
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public DispatchChain<C, K> addCommand(K key, Command<C> command) {
+		if (null == key) {
+			throw new IllegalArgumentException("Keys may not be null");
+		}
+		add(key, command);
+		return this;
+	}
+
+	private synchronized void add(K key, Command<C> command) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (frozen) {
+			throw new IllegalStateException("A command may not be added to a chain once the chain has been executed");
+		}
+		commands.add(command);
+		keys.add(key);
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc, and the class JavaDoc for which
+	 * {@link Command}s are executed.
+	 */
+	public boolean execute(C context) throws Exception {
+		return routes().select(keyExtractor.apply(context)).execute(context);
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc. Contexts are grouped by key, and each
+	 * group is executed as a batch.
+	 */
+	public BatchResult executeBatch(List<C> contexts) {
+		if (null == contexts) {
+			throw new IllegalArgumentException("Contexts may not be null");
+		}
+		Routes<C, K> current = routes();
+		Map<CompiledChain<C>, List<Integer>> groups = new HashMap<CompiledChain<C>, List<Integer>>();
+		for (int j = 0; j < contexts.size(); j++) {
+			CompiledChain<C> route = current.select(keyExtractor.apply(contexts.get(j)));
+			List<Integer> group = groups.get(route);
+			if (null == group) {
+				group = new ArrayList<Integer>();
+				groups.put(route, group);
+			}
+			group.add(j);
+		}
+		BatchResult outcome = new BatchResult(contexts.size());
+		for (Map.Entry<CompiledChain<C>, List<Integer>> group : groups.entrySet()) {
+			List<Integer> indexes = group.getValue();
+			List<C> batch = new ArrayList<C>(indexes.size());
+			for (int j : indexes) {
+				batch.add(contexts.get(j));
+			}
+			BatchResult step = group.getKey().executeBatch(batch);
+			for (int k = 0; k < indexes.size(); k++) {
+				if (null != step.getException(k)) {
+					outcome.setException(indexes.get(k), step.getException(k));
+				} else {
+					outcome.setResult(indexes.get(k), step.getResult(k));
+				}
+			}
+		}
+		return outcome;
+	}
+
+	private Routes<C, K> routes() {
+		Routes<C, K> current = this.routes;
+		return null == current ? freeze() : current;
+	}
+
+	private synchronized Routes<C, K> freeze() {
+		Routes<C, K> current = this.routes;
+		if (null == current) {
+			this.frozen = true;
+			current = new Routes<C, K>(commands, keys);
+			this.routes = current;
+		}
+		return current;
+	}
+
+	/**
+	 * <p>
+	 * The compiled sequence of {@link Command}s for every registered key, and
+	 * for everything else. {@link Filter} positions are resolved by
+	 * {@link CompiledChain} for each sequence.
+	 * </p>
+	 */
+	private static final class Routes<C, K> {
+		private final Map<K, CompiledChain<C>> byKey = new HashMap<K, CompiledChain<C>>();
+		private final CompiledChain<C> fallback;
+
+		Routes(List<Command<C>> commands, List<K> keys) {
+			Set<K> distinct = new LinkedHashSet<K>();
+			List<Command<C>> unkeyed = new ArrayList<Command<C>>();
+			for (int i = 0; i < commands.size(); i++) {
+				if (null == keys.get(i)) {
+					unkeyed.add(commands.get(i));
+				} else {
+					distinct.add(keys.get(i));
+				}
+			}
+			this.fallback = new CompiledChain<C>(unkeyed);
+			for (K key : distinct) {
+				List<Command<C>> sequence = new ArrayList<Command<C>>();
+				for (int i = 0; i < commands.size(); i++) {
+					K registered = keys.get(i);
+					if (null == registered || key.equals(registered)) {
+						sequence.add(commands.get(i));
+					}
+				}
+				byKey.put(key, new CompiledChain<C>(sequence));
+			}
+		}
+
+		CompiledChain<C> select(K key) {
+			if (null == key) {
+				return fallback;
+			}
+			CompiledChain<C> route = byKey.get(key);
+			return null == route ? fallback : route;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * A frozen {@link ChainBase} with the {@link Command}s of any nested
+ * {@link ChainBase}s inlined into one array, executed by a single loop rather
+ * than a call per level of nesting.
+ * </p>
+ * 
+ * <p>
+ * Inlining keeps the semantics of nesting, which are not those of one long
+ * chain. Each nested chain becomes a scope: a range of positions with its
+ * own {@link Filter}s. When a scope ends, whether because its last
+ * {@link Command} returned, one returned <code>PROCESSING_COMPLETE</code> or
+ * one threw, its {@link Filter}s are postprocessed there and then, before
+ * anything after the scope runs. A completion carries on outwards, ending
+ * every enclosing scope in turn. An exception that one of the scope's
+ * {@link Filter}s handles is not seen outside it, and execution resumes after
+ * the scope, just as the nested chain would have returned
+ * <code>CONTINUE_PROCESSING</code>; an unhandled one carries on to the
+ * enclosing scope as if thrown by the nested chain itself.
+ * </p>
+ */
+final class FlattenedChain<C> implements Command<C> {
+
+	/**
+	 * <p>
+	 * Every {@link Command} to execute, with nested chains replaced by their
+	 * own {@link Command}s.
+	 * </p>
+	 */
+	private final Command<C>[] commands;
+
+	/**
+	 * <p>
+	 * The innermost scope that each position of {@link #commands} belongs
+	 * to. Scope 0 is the outer chain.
+	 * </p>
+	 */
+	private final int[] scopeOf;
+
+	/**
+	 * <p>
+	 * The enclosing scope of each scope; unused for scope 0.
+	 * </p>
+	 */
+	private final int[] parent;
+
+	/**
+	 * <p>
+	 * The position just past the end of each scope.
+	 * </p>
+	 */
+	private final int[] end;
+
+	/**
+	 * <p>
+	 * The {@link Filter}s belonging directly to each scope, in order, and
+	 * their positions in {@link #commands}.
+	 * </p>
+	 */
+	private final Filter<C>[][] filters;
+	private final int[][] filterPositions;
+
+	@SuppressWarnings("unchecked")
+	private FlattenedChain(Builder<C> builder) {
+		this.commands = builder.commands.toArray(new Command[builder.commands.size()]);
+		this.scopeOf = toArray(builder.scopeOf);
+		this.parent = toArray(builder.parent);
+		this.end = toArray(builder.end);
+		int scopes = builder.parent.size();
+		this.filters = new Filter[scopes][];
+		this.filterPositions = new int[scopes][];
+		for (int s = 0; s < scopes; s++) {
+			List<Integer> positions = builder.filterPositions.get(s);
+			filters[s] = new Filter[positions.size()];
+			filterPositions[s] = toArray(positions);
+			for (int f = 0; f < positions.size(); f++) {
+				filters[s][f] = (Filter<C>) commands[positions.get(f)];
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Build the flattened form of a chain.
+	 * </p>
+	 * 
+	 * @param owner
+	 *            The chain being flattened, which is never inlined into
+	 *            itself, or <code>null</code>
+	 * @param source
+	 *            The {@link Command}s of a frozen chain
+	 * @return the flattened chain, or <code>null</code> if the chain
+	 *         contains no {@link ChainBase} that can be inlined
+	 */
+	static <C> FlattenedChain<C> flatten(ChainBase<C> owner, List<Command<C>> source) {
+		Builder<C> builder = new Builder<C>();
+		if (null != owner) {
+			builder.enclosing.put(owner, owner);
+		}
+		builder.parent.add(-1);
+		builder.end.add(0);
+		builder.filterPositions.add(new ArrayList<Integer>());
+		builder.add(source, 0);
+		builder.end.set(0, builder.commands.size());
+		return builder.inlined ? new FlattenedChain<C>(builder) : null;
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc.
+	 */
+	public boolean execute(C context) throws Exception {
+		final Command<C>[] commands = this.commands;
+		int scope = 0;
+		int i = 0;
+		while (true) {
+			// close the scopes that have run to their end
+			while (0 != scope && i == end[scope]) {
+				postprocess(scope, context, null, i - 1);
+				scope = parent[scope];
+			}
+			if (i == commands.length) {
+				postprocess(0, context, null, i - 1);
+				return CONTINUE_PROCESSING;
+			}
+			scope = scopeOf[i];
+			boolean result;
+			try {
+				result = commands[i].execute(context);
+			} catch (Exception toSave) {
+				// each scope sees the exception until one handles it
+				while (true) {
+					boolean handled = postprocess(scope, context, toSave, i);
+					if (0 == scope) {
+						if (handled) {
+							return CONTINUE_PROCESSING;
+						}
+						throw toSave;
+					}
+					if (handled) {
+						break;
+					}
+					scope = parent[scope];
+				}
+				i = end[scope];
+				scope = parent[scope];
+				continue;
+			}
+			if (Chain.PROCESSING_COMPLETE == result) {
+				while (true) {
+					postprocess(scope, context, null, i);
+					if (0 == scope) {
+						return PROCESSING_COMPLETE;
+					}
+					scope = parent[scope];
+				}
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Postprocess, in reverse order, the {@link Filter}s of a scope that have
+	 * been executed.
+	 * </p>
+	 * 
+	 * @param last
+	 *            The position of the last {@link Command} executed
+	 * @return whether any of them handled the exception
+	 */
+	private boolean postprocess(int scope, C context, Exception exception, int last) {
+		final Filter<C>[] filters = this.filters[scope];
+		final int[] positions = this.filterPositions[scope];
+		boolean handled = false;
+		for (int f = filters.length - 1; f >= 0; f--) {
+			if (positions[f] > last) {
+				continue;
+			}
+			try {
+				handled |= filters[f].postprocess(context, exception);
+			} catch (Exception ignoreMe) {
+
+			}
+		}
+		return handled;
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	private static final class Builder<C> {
+		final List<Command<C>> commands = new ArrayList<Command<C>>();
+		final List<Integer> scopeOf = new ArrayList<Integer>();
+		final List<Integer> parent = new ArrayList<Integer>();
+		final List<Integer> end = new ArrayList<Integer>();
+		final List<List<Integer>> filterPositions = new ArrayList<List<Integer>>();
+
+		/**
+		 * <p>
+		 * The chains being inlined, so that a chain nested within itself is
+		 * left alone rather than expanded for ever.
+		 * </p>
+		 */
+		final Map<Object, Object> enclosing = new IdentityHashMap<Object, Object>();
+		boolean inlined = false;
+
+		void add(List<Command<C>> source, int scope) {
+			for (Command<C> command : source) {
+				List<Command<C>> nested = null;
+				if (command instanceof ChainBase<?> && !enclosing.containsKey(command)) {
+					nested = ((ChainBase<C>) command).freezeForInlining();
+				}
+				if (null == nested) {
+					if (command instanceof Filter<?>) {
+						filterPositions.get(scope).add(commands.size());
+					}
+					commands.add(command);
+					scopeOf.add(scope);
+				} else if (!nested.isEmpty()) {
+					// an empty chain does nothing and can simply be dropped
+					int child = parent.size();
+					parent.add(scope);
+					end.add(0);
+					filterPositions.add(new ArrayList<Integer>());
+					enclosing.put(command, command);
+					add(nested, child);
+					enclosing.remove(command);
+					end.set(child, commands.size());
+					inlined = true;
+				} else {
+					inlined = true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * Decorator that cuts the tail latency of a {@link Command} calling a
+ * replicated backend. The {@link Command} is executed on an
+ * <code>Executor</code>; if it has not finished within the hedging delay, a
+ * second attempt is started, and whichever attempt succeeds first supplies
+ * the result. The other is cancelled, interrupting it if it is running. An
+ * attempt that throws an exception only decides the outcome if no other
+ * attempt is still running; one that throws an <code>Error</code> decides it
+ * at once.
+ * </p>
+ * 
+ * <p>
+ * The delay is either fixed or, with {@link #setAdaptiveDelay(double)}, a
+ * percentile of recent attempt latencies, so that only the slowest
+ * executions are hedged. Hedges are paid for from a budget that earns a
+ * fraction of a hedge per execution, so that a slow backend is not also
+ * sent twice the load; when the budget is spent, executions simply wait for
+ * their first attempt.
+ * </p>
+ * 
+ * <p>
+ * Two attempts must not work on the same context at once, so each attempt
+ * is given its own copy, made by the function passed to
+ * {@link #setContextCopier(UnaryOperator, BiConsumer)}, and the winner's copy
+ * is merged back into the caller's context if it returned normally; as when
+ * the {@link Command} runs unhedged and throws, no copy is merged when the
+ * execution fails. Without a copier, attempts share
+ * the context, which is only safe for {@link Command}s that do not modify
+ * it before they return.
+ * </p>
+ * 
+ * <p>
+ * A {@link Filter} is decorated by a {@link HedgedCommand} that is itself a
+ * {@link Filter}: the winning attempt is postprocessed when the chain
+ * postprocesses the decorator, while a losing attempt that got as far as
+ * executing is postprocessed, with its own outcome, as soon as it finishes.
+ * Each <code>execute()</code> of the decorated {@link Filter} is thus matched
+ * by exactly one <code>postprocess()</code>.
+ * </p>
+ */
+public class HedgedCommand<C> implements Command<C> {
+
+	private static final int SAMPLES = 1024;
+	private static final int RECOMPUTE_EVERY = 64;
+	private static final long MILLI_TOKENS = 1000L;
+
+	private final Command<C> command;
+	private final Filter<C> filter;
+	private final Executor executor;
+
+	private volatile long fixedDelayNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	private volatile double percentile = 0.0;
+	private volatile long adaptiveDelayNanos = -1L;
+	private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+	private final AtomicLong sampleCount = new AtomicLong();
+	private final AtomicBoolean recomputing = new AtomicBoolean();
+
+	private volatile long earnedPerExecution = 100L;
+	private volatile long maxTokens = 10 * MILLI_TOKENS;
+	private final AtomicLong tokens = new AtomicLong(10 * MILLI_TOKENS);
+
+	private volatile UnaryOperator<C> copier;
+	private volatile BiConsumer<C, C> merger;
+
+	private final LongAdder hedged = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private final LongAdder budgetExhausted = new LongAdder();
+
+	/**
+	 * <p>
+	 * Hedge a {@link Command}, returning a {@link Filter} if it is one.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to hedge
+	 * @param executor
+	 *            Runs the attempts
+	 * @return the decorator
+	 * @exception IllegalArgumentException
+	 *                if either argument is <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public static <C> HedgedCommand<C> of(Command<C> command, Executor executor) {
+		if (command instanceof Filter<?>) {
+			return new HedgedFilter<C>((Filter<C>) command, executor);
+		}
+		return new HedgedCommand<C>(command, executor);
+	}
+
+	@SuppressWarnings("unchecked")
+	private HedgedCommand(Command<C> command, Executor executor) {
+		if (null == command || null == executor) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		this.command = command;
+		this.filter = command instanceof Filter<?> ? (Filter<C>) command : null;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param delay
+	 *            How long the first attempt may run before a hedge is
+	 *            started; 10 milliseconds by default
+	 * @param unit
+	 *            The unit of <code>delay</code>
+	 */
+	public void setDelay(long delay, TimeUnit unit) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("Delay may not be negative");
+		}
+		this.fixedDelayNanos = unit.toNanos(delay);
+		this.percentile = 0.0;
+	}
+
+	/**
+	 * <p>
+	 * Hedge once an attempt has run for longer than the given percentile of
+	 * recent attempts. The fixed delay is used until enough attempts have
+	 * been seen.
+	 * </p>
+	 * 
+	 * @param percentile
+	 *            Between 0 and 1 exclusive, for example 0.95
+	 */
+	public void setAdaptiveDelay(double percentile) {
+		if (percentile <= 0.0 || percentile >= 1.0) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 1");
+		}
+		this.percentile = percentile;
+	}
+
+	/**
+	 * @param ratio
+	 *            Hedges allowed per execution on average, for example 0.1 for
+	 *            at most 10% extra load; 0.1 by default
+	 * @param burst
+	 *            Hedges that may be made in a row once the budget has built
+	 *            up; 10 by default
+	 */
+	public void setBudget(double ratio, int burst) {
+		if (ratio < 0.0 || ratio > 1.0 || burst < 1) {
+			throw new IllegalArgumentException("Ratio must be between 0 and 1 and burst at least 1");
+		}
+		this.earnedPerExecution = (long) (ratio * MILLI_TOKENS);
+		this.maxTokens = burst * MILLI_TOKENS;
+		this.tokens.set(Math.min(tokens.get(), maxTokens));
+	}
+
+	/**
+	 * @param copier
+	 *            Makes the copy of the context that an attempt works on
+	 * @param merger
+	 *            Merges the winning attempt's copy, its second argument,
+	 *            into the caller's context, its first; only called when the
+	 *            winning attempt returned normally
+	 */
+	public void setContextCopier(UnaryOperator<C> copier, BiConsumer<C, C> merger) {
+		if (null == copier || null == merger) {
+			throw new IllegalArgumentException("Arguments may not be null");
+		}
+		this.merger = merger;
+		this.copier = copier;
+	}
+
+	public boolean execute(C context) throws Exception {
+		earn();
+		Race<C> race = new Race<C>();
+		Attempt<C> primary = launch(race, context);
+		if (null == primary) {
+			// no thread to run it on, so no hedging either
+			return command.execute(context);
+		}
+		Attempt<C> hedge = null;
+		Attempt<C> winner;
+		try {
+			try {
+				winner = race.winner.get(currentDelayNanos(), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException slow) {
+				if (spend()) {
+					hedged.increment();
+					hedge = launch(race, context);
+				} else {
+					budgetExhausted.increment();
+				}
+				winner = race.winner.get();
+			}
+		} catch (InterruptedException interrupted) {
+			primary.cancel();
+			if (null != hedge) {
+				hedge.cancel();
+			}
+			throw interrupted;
+		} catch (ExecutionException impossible) {
+			throw new IllegalStateException(impossible.getCause());
+		}
+		if (winner != primary) {
+			primary.cancel();
+			hedgeWins.increment();
+		} else if (null != hedge) {
+			hedge.cancel();
+		}
+		if (null != winner.error) {
+			throw winner.error;
+		}
+		if (null != winner.exception) {
+			throw winner.exception;
+		}
+		if (winner.context != context) {
+			merger.accept(context, winner.context);
+		}
+		return winner.result;
+	}
+
+	/**
+	 * @return the delay after which an execution is currently hedged
+	 */
+	public long getCurrentDelay(TimeUnit unit) {
+		return unit.convert(currentDelayNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the number of hedges started
+	 */
+	public long getHedgedCount() {
+		return hedged.sum();
+	}
+
+	/**
+	 * @return the number of executions won by the hedge
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins.sum();
+	}
+
+	/**
+	 * @return the number of executions that would have been hedged but for
+	 *         the budget
+	 */
+	public long getBudgetExhaustedCount() {
+		return budgetExhausted.sum();
+	}
+
+	private Attempt<C> launch(Race<C> race, C context) {
+		UnaryOperator<C> copier = this.copier;
+		Attempt<C> attempt = new Attempt<C>(this, race, null == copier ? context : copier.apply(context));
+		race.pending.incrementAndGet();
+		try {
+			executor.execute(attempt.task);
+		} catch (RejectedExecutionException rejected) {
+			race.pending.decrementAndGet();
+			return null;
+		}
+		return attempt;
+	}
+
+	private long currentDelayNanos() {
+		long adaptive = adaptiveDelayNanos;
+		return percentile > 0.0 && adaptive >= 0 ? adaptive : fixedDelayNanos;
+	}
+
+	private void earn() {
+		long earned = earnedPerExecution;
+		long max = maxTokens;
+		long current;
+		while ((current = tokens.get()) < max && !tokens.compareAndSet(current, Math.min(max, current + earned))) {
+		}
+	}
+
+	private boolean spend() {
+		long current;
+		while ((current = tokens.get()) >= MILLI_TOKENS) {
+			if (tokens.compareAndSet(current, current - MILLI_TOKENS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <p>
+	 * Note the latency of an attempt, or a lower bound for one that was
+	 * cancelled, and every so often recompute the adaptive delay from the latest samples.
+	 * </p>
+	 */
+	private void sample(long nanos) {
+		long count = sampleCount.getAndIncrement();
+		samples.set((int) (count % SAMPLES), nanos);
+		double percentile = this.percentile;
+		if (percentile > 0.0 && count >= RECOMPUTE_EVERY && 0 == count % RECOMPUTE_EVERY
+				&& recomputing.compareAndSet(false, true)) {
+			try {
+				int size = (int) Math.min(count + 1, SAMPLES);
+				long[] sorted = new long[size];
+				for (int i = 0; i < size; i++) {
+					sorted[i] = samples.get(i);
+				}
+				Arrays.sort(sorted);
+				adaptiveDelayNanos = sorted[(int) Math.min(size - 1, Math.round(percentile * size))];
+			} finally {
+				recomputing.set(false);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * The attempts of one execution and the winner among them.
+	 * </p>
+	 */
+	private static final class Race<C> {
+		final CompletableFuture<Attempt<C>> winner = new CompletableFuture<Attempt<C>>();
+		final AtomicInteger pending = new AtomicInteger();
+	}
+
+	/**
+	 * <p>
+	 * One attempt at executing the {@link Command}, run through {@link #task}
+	 * so that it can be cancelled.
+	 * </p>
+	 */
+	private static final class Attempt<C> implements Callable<Void> {
+		final FutureTask<Void> task = new FutureTask<Void>(this);
+		final C context;
+		private final HedgedCommand<C> owner;
+		private final Race<C> race;
+		private final AtomicBoolean sampled = new AtomicBoolean();
+		private volatile long started;
+		boolean result;
+		Exception exception;
+		Error error;
+
+		Attempt(HedgedCommand<C> owner, Race<C> race, C context) {
+			this.owner = owner;
+			this.race = race;
+			this.context = context;
+		}
+
+		public Void call() {
+			started = System.nanoTime();
+			boolean won = false;
+			try {
+				result = owner.command.execute(context);
+			} catch (Exception toSave) {
+				exception = toSave;
+			} catch (Error toRethrow) {
+				error = toRethrow;
+			} finally {
+				sample();
+				// an Error is not worth waiting for the other attempt over
+				boolean last = 0 == race.pending.decrementAndGet();
+				won = (null == exception || last) && race.winner.complete(this);
+			}
+			if (!won && null != owner.filter && null == error) {
+				try {
+					owner.filter.postprocess(context, exception);
+				} catch (Exception ignoreMe) {
+
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * <p>
+		 * Cancel the attempt, noting the time it has run for as a sample: the
+		 * slow attempts that lose to a hedge are the ones that the adaptive
+		 * delay must not forget, and they took at least this long.
+		 * </p>
+		 */
+		void cancel() {
+			sample();
+			task.cancel(true);
+		}
+
+		private void sample() {
+			long started = this.started;
+			if (0L != started && sampled.compareAndSet(false, true)) {
+				owner.sample(System.nanoTime() - started);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * A {@link HedgedCommand} decorating a {@link Filter}.
+	 * </p>
+	 */
+	private static final class HedgedFilter<C> extends HedgedCommand<C> implements Filter<C> {
+		private final Filter<C> decorated;
+
+		HedgedFilter(Filter<C> filter, Executor executor) {
+			super(filter, executor);
+			this.decorated = filter;
+		}
+
+		public boolean postprocess(C context, Exception exception) {
+			return decorated.postprocess(context, exception);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * Stand-in for a {@link Command} that is expensive to create, for example
+ * one that opens connections or loads a model. The {@link Command} is
+ * created by the given factory on first execution, or earlier by
+ * {@link #prepare()}, which lets the creation happen on a background thread
+ * or during {@link ChainWarmer warm-up} instead of on a real request.
+ * </p>
+ * 
+ * <p>
+ * The {@link Command} is created once. Executions that arrive while it is
+ * being created wait for it, on a lock rather than a monitor so as not to
+ * pin virtual threads. If creation fails, the execution that attempted it
+ * fails with the factory's exception, and the next execution or
+ * {@link #prepare()} calls the factory again.
+ * </p>
+ */
+public class LazyCommand<C> implements Command<C> {
+
+	private final Supplier<? extends Command<C>> factory;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private volatile Command<C> command;
+
+	/**
+	 * <p>
+	 * Create a stand-in for a {@link Command}.
+	 * </p>
+	 * 
+	 * @param factory
+	 *            Creates the {@link Command}
+	 * @exception IllegalArgumentException
+	 *                if <code>factory</code> is <code>null</code>
+	 */
+	public static <C> LazyCommand<C> of(Supplier<? extends Command<C>> factory) {
+		return new LazyCommand<C>(factory);
+	}
+
+	/**
+	 * <p>
+	 * Create a stand-in for a {@link Filter}, which is a {@link Filter} itself
+	 * so that the chain postprocesses it.
+	 * </p>
+	 * 
+	 * @param factory
+	 *            Creates the {@link Filter}
+	 * @exception IllegalArgumentException
+	 *                if <code>factory</code> is <code>null</code>
+	 */
+	public static <C> LazyCommand<C> ofFilter(Supplier<? extends Filter<C>> factory) {
+		return new LazyFilter<C>(factory);
+	}
+
+	private LazyCommand(Supplier<? extends Command<C>> factory) {
+		if (null == factory) {
+			throw new IllegalArgumentException("Factory may not be null");
+		}
+		this.factory = factory;
+	}
+
+	public boolean execute(C context) throws Exception {
+		Command<C> created = this.command;
+		return (null == created ? prepare() : created).execute(context);
+	}
+
+	/**
+	 * <p>
+	 * Create the {@link Command} now, unless it has been created already.
+	 * </p>
+	 * 
+	 * @return the {@link Command}
+	 * @exception IllegalStateException
+	 *                if the factory returned <code>null</code>
+	 */
+	public Command<C> prepare() {
+		Command<C> created = this.command;
+		if (null != created) {
+			return created;
+		}
+		lock.lock();
+		try {
+			if (null == this.command) {
+				created = factory.get();
+				if (null == created) {
+					throw new IllegalStateException("Factory returned no command");
+				}
+				this.command = created;
+			}
+			return this.command;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Create the {@link Command} on the given <code>Executor</code>.
+	 * </p>
+	 * 
+	 * @param executor
+	 *            Runs the factory
+	 * @return a future completed once the {@link Command} has been created, or
+	 *         with the exception that creating it threw
+	 */
+	public CompletableFuture<Command<C>> prepare(Executor executor) {
+		return CompletableFuture.supplyAsync(this::prepare, executor);
+	}
+
+	/**
+	 * @return <code>true</code> once the {@link Command} has been created
+	 */
+	public boolean isPrepared() {
+		return null != command;
+	}
+
+	/**
+	 * <p>
+	 * A {@link LazyCommand} standing in for a {@link Filter}.
+	 * </p>
+	 */
+	private static final class LazyFilter<C> extends LazyCommand<C> implements Filter<C> {
+
+		LazyFilter(Supplier<? extends Filter<C>> factory) {
+			super(factory);
+		}
+
+		/**
+		 * <p>
+		 * Postprocess the {@link Filter}, unless creating it failed, in which
+		 * case it never executed and there is nothing to postprocess.
+		 * </p>
+		 */
+		@SuppressWarnings("unchecked")
+		public boolean postprocess(C context, Exception exception) {
+			return isPrepared() && ((Filter<C>) prepare()).postprocess(context, exception);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Outcome;
+import com.googlecode.chainpattern.OutcomeCommand;
+import com.googlecode.chainpattern.OutcomeFilter;
+
+/**
+ * <p>
+ * A chain of {@link OutcomeCommand}s that follows the algorithm in the
+ * {@link Chain} JavaDoc, with a failed {@link Outcome} taking the place of a
+ * thrown exception:
+ * </p>
+ * <ul>
+ * <li>Each {@link OutcomeCommand} is executed in turn until one of them
+ * returns {@link Outcome#COMPLETE} or a failure, or the end of the chain is
+ * reached.</li>
+ * <li>The <code>postprocess()</code> method of every {@link OutcomeFilter}
+ * that was executed is called in reverse order, with the failure if there
+ * was one. Exceptions thrown by <code>postprocess()</code> are discarded.</li>
+ * <li>If there was a failure that no <code>postprocess()</code> method
+ * handled, it is returned, never thrown. A handled failure results in
+ * {@link Outcome#CONTINUE}.</li>
+ * </ul>
+ * 
+ * <p>
+ * An {@link OutcomeCommand} that throws a <code>RuntimeException</code>
+ * anyway is treated as if it had returned a failure carrying that exception.
+ * Existing {@link com.googlecode.chainpattern.Command}s can be added through
+ * {@link OutcomeCommandAdapter#adapt}.
+ * </p>
+ */
+public class OutcomeChain<C> implements OutcomeCommand<C> {
+
+	/**
+	 * <p>
+	 * Flag indicating whether the configuration of our commands list has been
+	 * frozen by a call to the <code>execute()</code> method. Like the list
+	 * below, only accessed while holding this chain's monitor, so that a
+	 * command added while the first execution starts is either executed or
+	 * rejected.
+	 * </p>
+	 */
+	private boolean frozen = false;
+
+	private final List<OutcomeCommand<C>> commands = new ArrayList<OutcomeCommand<C>>();
+
+	private volatile OutcomeCommand<C>[] compiled;
+	private volatile OutcomeFilter<C>[] filters;
+
+	/**
+	 * <p>
+	 * Construct an {@link OutcomeChain} with no configured commands.
+	 * </p>
+	 */
+	public OutcomeChain() {
+
+	}
+
+	/**
+	 * <p>
+	 * Add an {@link OutcomeCommand} to this chain. Once
+	 * <code>execute()</code> has been called at least once, it is no longer
+	 * possible to add additional commands.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link OutcomeCommand} to be added
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public synchronized OutcomeChain<C> addCommand(OutcomeCommand<C> command) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (frozen) {
+			throw new IllegalStateException("A command may not be added to a chain once the chain has been executed");
+		}
+		commands.add(command);
+		return this;
+	}
+
+	public synchronized List<OutcomeCommand<C>> getCopyOfCommands() {
+		return Collections.unmodifiableList(new ArrayList<OutcomeCommand<C>>(commands));
+	}
+
+	/**
+	 * <p>
+	 * Execute the processing represented by this chain, as described in the
+	 * class JavaDoc.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed by this chain
+	 * 
+	 * @return the {@link Outcome} of the processing
+	 */
+	public Outcome execute(C context) {
+		OutcomeCommand<C>[] commands = this.compiled;
+		if (null == commands) {
+			commands = freeze();
+		}
+		final OutcomeFilter<C>[] filters = this.filters;
+		Outcome saved = Outcome.CONTINUE;
+		int last = -1;
+		for (int i = 0; i < commands.length; i++) {
+			last = i;
+			try {
+				saved = commands[i].execute(context);
+			} catch (RuntimeException unexpected) {
+				saved = Outcome.failed(unexpected);
+			}
+			if (null == saved) {
+				saved = Outcome.CONTINUE;
+			}
+			if (Outcome.CONTINUE != saved) {
+				break;
+			}
+		}
+		Outcome failure = saved.isFailed() ? saved : null;
+		boolean handled = false;
+		for (int i = last; i >= 0; i--) {
+			if (null == filters[i]) {
+				continue;
+			}
+			try {
+				handled |= filters[i].postprocess(context, failure);
+			} catch (Exception ignoreMe) {
+
+			}
+		}
+		if (null != failure && handled) {
+			return Outcome.CONTINUE;
+		}
+		return saved;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized OutcomeCommand<C>[] freeze() {
+		if (null != this.compiled) {
+			return this.compiled;
+		}
+		this.frozen = true;
+		OutcomeCommand<C>[] snapshot = commands.toArray(new OutcomeCommand[commands.size()]);
+		OutcomeFilter<C>[] filterAt = new OutcomeFilter[snapshot.length];
+		for (int i = 0; i < snapshot.length; i++) {
+			if (snapshot[i] instanceof OutcomeFilter<?>) {
+				filterAt[i] = (OutcomeFilter<C>) snapshot[i];
+			}
+		}
+		this.filters = filterAt;
+		this.compiled = snapshot;
+		return snapshot;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+import com.googlecode.chainpattern.Outcome;
+import com.googlecode.chainpattern.OutcomeCommand;
+import com.googlecode.chainpattern.OutcomeFilter;
+
+/**
+ * <p>
+ * Adapters between the throwing {@link Command} contract and the
+ * {@link OutcomeCommand} contract, in both directions. A {@link Filter} is
+ * adapted to an {@link OutcomeFilter} and vice versa, so that
+ * <code>postprocess()</code> is still called by the owning chain.
+ * </p>
+ */
+public final class OutcomeCommandAdapter {
+
+	private OutcomeCommandAdapter() {
+
+	}
+
+	/**
+	 * <p>
+	 * Adapt a throwing {@link Command} so that it can be added to an
+	 * {@link OutcomeChain}. An exception thrown by the {@link Command} becomes
+	 * a failed {@link Outcome}.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to adapt
+	 * @return an {@link OutcomeFilter} if <code>command</code> is a
+	 *         {@link Filter}, otherwise an {@link OutcomeCommand}
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 */
+	public static <C> OutcomeCommand<C> adapt(Command<C> command) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (command instanceof Filter<?>) {
+			return new FromFilter<C>((Filter<C>) command);
+		}
+		return new FromCommand<C>(command);
+	}
+
+	/**
+	 * <p>
+	 * Adapt an {@link OutcomeCommand}, for example an {@link OutcomeChain}, so
+	 * that it can be added to a {@link com.googlecode.chainpattern.Chain}. A
+	 * failed {@link Outcome} is thrown as its error.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link OutcomeCommand} to adapt
+	 * @return a {@link Filter} if <code>command</code> is an
+	 *         {@link OutcomeFilter}, otherwise a {@link Command}
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 */
+	public static <C> Command<C> toCommand(OutcomeCommand<C> command) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (command instanceof OutcomeFilter<?>) {
+			return new ToFilter<C>((OutcomeFilter<C>) command);
+		}
+		return new ToCommand<C>(command);
+	}
+
+	private static class FromCommand<C> implements OutcomeCommand<C> {
+		private final Command<C> command;
+
+		FromCommand(Command<C> command) {
+			this.command = command;
+		}
+
+		public Outcome execute(C context) {
+			try {
+				return Outcome.of(command.execute(context));
+			} catch (Exception e) {
+				return Outcome.failed(e);
+			}
+		}
+	}
+
+	private static final class FromFilter<C> extends FromCommand<C> implements OutcomeFilter<C> {
+		private final Filter<C> filter;
+
+		FromFilter(Filter<C> filter) {
+			super(filter);
+			this.filter = filter;
+		}
+
+		public boolean postprocess(C context, Outcome failure) {
+			return filter.postprocess(context, null == failure ? null : failure.getError());
+		}
+	}
+
+	private static class ToCommand<C> implements Command<C> {
+		private final OutcomeCommand<C> command;
+
+		ToCommand(OutcomeCommand<C> command) {
+			this.command = command;
+		}
+
+		public boolean execute(C context) throws Exception {
+			Outcome outcome = command.execute(context);
+			if (outcome.isFailed()) {
+				throw outcome.getError();
+			}
+			return outcome.isComplete();
+		}
+	}
+
+	private static final class ToFilter<C> extends ToCommand<C> implements Filter<C> {
+		private final OutcomeFilter<C> filter;
+
+		ToFilter(OutcomeFilter<C> filter) {
+			super(filter);
+			this.filter = filter;
+		}
+
+		public boolean postprocess(C context, Exception exception) {
+			return filter.postprocess(context, null == exception ? null : Outcome.failed(exception));
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * A {@link Command} that executes a group of independent {@link Command}s
+ * concurrently and waits for all of them before returning, so that a
+ * {@link Chain} pays for the slowest member rather than the sum of them. A
+ * {@link ParallelGroup} is added to a {@link Chain} like any other
+ * {@link Command}.
+ * </p>
+ * 
+ * <p>
+ * Members are run on the configured <code>Executor</code>, which defaults to
+ * the common <code>ForkJoinPool</code>; a virtual thread per task executor is
+ * a good choice for members that block. The first member always runs on the
+ * calling thread, which then runs itself any member that the
+ * <code>Executor</code> has not yet started, and waits for the others through
+ * <code>ForkJoinPool.managedBlock</code>. A group nested in another group, or
+ * executed by a task of the pool it forks to, therefore cannot starve the
+ * pool. Once the <code>Executor</code> rejects a member, that member and the
+ * ones after it are run on the calling thread too. Members must not depend on each other's changes to the context, and
+ * must tolerate being executed concurrently against it.
+ * </p>
+ * 
+ * <p>
+ * Results are combined as follows.
+ * </p>
+ * <ul>
+ * <li>Every member is executed, and all of them have finished before
+ * <code>execute()</code> returns.</li>
+ * <li>If any member threw an <code>Error</code>, the one thrown by the
+ * earliest added of those members is rethrown.</li>
+ * <li>Otherwise, if any member threw an exception, the exception thrown by the earliest
+ * added of those members is rethrown, so that the enclosing {@link Chain}
+ * passes it to the <code>postprocess()</code> methods of its {@link Filter}s.</li>
+ * <li>Otherwise <code>true</code> is returned if any member returned
+ * <code>true</code>.</li>
+ * <li>A {@link ParallelGroup} is itself a {@link Filter}: its
+ * <code>postprocess()</code> method calls that of each member that is a
+ * {@link Filter}, in reverse order of addition, discarding any exception they
+ * throw, and reports the exception as handled if any of them handled it.</li>
+ * </ul>
+ */
+public class ParallelGroup<C> implements Filter<C> {
+
+	/**
+	 * <p>
+	 * Flag indicating whether the configuration of our members has been frozen
+	 * by a call to the <code>execute()</code> method. Like the list below,
+	 * only accessed while holding this group's monitor, so that a member added
+	 * while the first execution starts is either executed or rejected.
+	 * </p>
+	 */
+	private boolean frozen = false;
+
+	private final List<Command<C>> commands = new ArrayList<Command<C>>();
+
+	private final Executor executor;
+
+	private volatile Command<C>[] members;
+
+	private volatile Filter<C>[] filters;
+
+	/**
+	 * <p>
+	 * Construct a {@link ParallelGroup} that runs its members on the common
+	 * <code>ForkJoinPool</code>.
+	 * </p>
+	 */
+	public ParallelGroup() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * <p>
+	 * Construct a {@link ParallelGroup} that runs its members on the given
+	 * <code>Executor</code>.
+	 * </p>
+	 * 
+	 * @param executor
+	 *            The executor to run members on
+	 * @exception IllegalArgumentException
+	 *                if <code>executor</code> is <code>null</code>
+	 */
+	public ParallelGroup(Executor executor) {
+		if (null == executor) {
+			throw new IllegalArgumentException("Executor may not be null");
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * <p>
+	 * Add a member to this group. Once <code>execute()</code> has been called
+	 * at least once, it is no longer possible to add additional members.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to be added
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public synchronized ParallelGroup<C> addCommand(Command<C> command) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (frozen) {
+			throw new IllegalStateException("A command may not be added to a group once the group has been executed");
+		}
+		commands.add(command);
+		return this;
+	}
+
+	public synchronized List<Command<C>> getCopyOfCommands() {
+		return Collections.unmodifiableList(new ArrayList<Command<C>>(commands));
+	}
+
+	/**
+	 * <p>
+	 * Execute every member concurrently, following the rules in the class
+	 * JavaDoc.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed by the members of this group
+	 * 
+	 * @exception Exception
+	 *                if thrown by one of the members
+	 * 
+	 * @return <code>true</code> if any member completed the processing of
+	 *         the context
+	 */
+	public boolean execute(final C context) throws Exception {
+		Command<C>[] snapshot = this.members;
+		if (null == snapshot) {
+			snapshot = freeze();
+		}
+		if (0 == snapshot.length) {
+			return CONTINUE_PROCESSING;
+		}
+		List<FutureTask<Boolean>> forked = new ArrayList<FutureTask<Boolean>>(snapshot.length - 1);
+		boolean forking = true;
+		for (int i = 1; i < snapshot.length; i++) {
+			final Command<C> member = snapshot[i];
+			FutureTask<Boolean> task = new FutureTask<Boolean>(() -> member.execute(context));
+			forked.add(task);
+			if (forking) {
+				try {
+					executor.execute(task);
+				} catch (RuntimeException rejected) {
+					// this member and the rest are run by the calling thread
+					// as it waits for them
+					forking = false;
+				}
+			}
+		}
+		boolean result = CONTINUE_PROCESSING;
+		Exception first = null;
+		Error error = null;
+		try {
+			result = snapshot[0].execute(context);
+		} catch (Exception toSave) {
+			first = toSave;
+		} catch (Error toRethrow) {
+			error = toRethrow;
+		}
+		// members the Executor has not started, or has rejected, are run
+		// here before waiting for any, so that none waits behind another;
+		// the Executor then finds them done and skips them
+		for (FutureTask<Boolean> task : forked) {
+			task.run();
+		}
+		for (FutureTask<Boolean> task : forked) {
+			try {
+				result |= awaitUninterruptibly(task);
+			} catch (ExecutionException failed) {
+				Throwable cause = failed.getCause();
+				if (cause instanceof Error) {
+					if (null == error) {
+						error = (Error) cause;
+					}
+				} else if (null == first) {
+					first = cause instanceof Exception ? (Exception) cause : failed;
+				}
+			}
+		}
+		if (null != error) {
+			throw error;
+		}
+		if (null != first) {
+			throw first;
+		}
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Call the <code>postprocess()</code> method of every member that is a
+	 * {@link Filter}, in reverse order of addition.
+	 * </p>
+	 */
+	public boolean postprocess(C context, Exception exception) {
+		Filter<C>[] snapshot = this.filters;
+		if (null == snapshot) {
+			return false;
+		}
+		boolean handled = false;
+		for (int i = snapshot.length - 1; i >= 0; i--) {
+			try {
+				handled |= snapshot[i].postprocess(context, exception);
+			} catch (Exception ignoreMe) {
+
+			}
+		}
+		return handled;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized Command<C>[] freeze() {
+		if (null != this.members) {
+			return this.members;
+		}
+		this.frozen = true;
+		Command<C>[] snapshot = commands.toArray(new Command[commands.size()]);
+		List<Filter<C>> memberFilters = new ArrayList<Filter<C>>();
+		for (Command<C> command : snapshot) {
+			if (command instanceof Filter<?>) {
+				memberFilters.add((Filter<C>) command);
+			}
+		}
+		this.filters = memberFilters.toArray(new Filter[memberFilters.size()]);
+		this.members = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * <p>
+	 * Wait for a member to finish. Members are always waited for, so that the
+	 * group never returns while one of them is still touching the context; an
+	 * interrupt is remembered and restored once the member has finished.
+	 * </p>
+	 */
+	private static boolean awaitUninterruptibly(final FutureTask<Boolean> task) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					if (!task.isDone()) {
+						ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+							public boolean block() throws InterruptedException {
+								try {
+									task.get();
+								} catch (ExecutionException failed) {
+									// reported by the get() below
+								}
+								return true;
+							}
+
+							public boolean isReleasable() {
+								return task.isDone();
+							}
+						});
+					}
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * A {@link Chain} whose {@link Command}s run as the stages of a pipeline, each
+ * on a thread of its own, so that a chain of CPU heavy {@link Command}s can
+ * keep as many cores busy as it has stages. While one context is in the
+ * second stage the next can already be in the first.
+ * </p>
+ * 
+ * <p>
+ * Contexts pass from each stage to the next through a bounded,
+ * single-producer single-consumer ring buffer. A context that completes or
+ * throws at some stage skips the stages after it, and travels back through
+ * the stages before it along a second set of rings, so that the
+ * <code>postprocess()</code> method of each {@link Filter} is called in
+ * reverse order on the thread that executed it. The results are those
+ * described in the {@link Chain} JavaDoc.
+ * </p>
+ * 
+ * <p>
+ * Every {@link Command} is a stage; to run several cheap {@link Command}s as
+ * one stage, add them as a nested {@link ChainBase}. At most
+ * <code>capacity</code> contexts are in the pipeline at once, and
+ * {@link #submit(Object)} waits for room beyond that. Since no ring can then
+ * fill up, stages never wait for one another. An idle stage spins, then
+ * yields, then parks until a context is handed to it, so it reacts quickly to
+ * a burst of work without holding a core once the burst is over. The stage
+ * threads start when the chain is frozen and stop once {@link #close()} has
+ * been called and the pipeline has drained.
+ * </p>
+ * 
+ * <p>
+ * An <code>Error</code> thrown by the <code>postprocess()</code> method of a
+ * {@link Filter} shuts the pipeline down: the context concerned and every
+ * other context still in the pipeline complete with that <code>Error</code>,
+ * no further {@link Command} is run, and later submissions are rejected as
+ * if the chain had been closed.
+ * </p>
+ */
+public class PipelinedChain<C> implements Chain<C>, AutoCloseable {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * <p>
+	 * Flag indicating whether the configuration of our commands list has been
+	 * frozen by a call to the <code>execute()</code> method. Like the list
+	 * below, only accessed while holding this chain's monitor, so that a
+	 * {@link Command} added while the first context is submitted either
+	 * becomes a stage or is rejected; submissions after the first read the
+	 * published {@link #stages} without locking.
+	 * </p>
+	 */
+	private boolean frozen = false;
+
+	private final List<Command<C>> commands = new ArrayList<Command<C>>();
+	private final int capacity;
+	private final ThreadFactory threadFactory;
+
+	private volatile Stage<C>[] stages;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile boolean closed = false;
+	private volatile Error failure;
+
+	/**
+	 * <p>
+	 * Construct a {@link PipelinedChain} that admits up to 1024 contexts at
+	 * once and runs its stages on daemon threads.
+	 * </p>
+	 */
+	public PipelinedChain() {
+		this(DEFAULT_CAPACITY, null);
+	}
+
+	/**
+	 * @param capacity
+	 *            The most contexts to have in the pipeline at once, rounded
+	 *            up to a power of two
+	 * @param threadFactory
+	 *            Creates the stage threads, or <code>null</code> for daemon
+	 *            threads
+	 * @exception IllegalArgumentException
+	 *                if <code>capacity</code> is less than 1
+	 */
+	public PipelinedChain(int capacity, ThreadFactory threadFactory) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+		}
+		this.capacity = 1 == capacity ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc. Each {@link Command} becomes a stage of
+	 * the pipeline.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 * @exception IllegalStateException
+	 *                if no further configuration is allowed
+	 */
+	public synchronized Chain<C> addCommand(Command<C> command) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (frozen) {
+			throw new IllegalStateException("A command may not be added to a chain once the chain has been executed");
+		}
+		commands.add(command);
+		return this;
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc. The calling thread waits while the
+	 * context passes through the pipeline.
+	 */
+	public boolean execute(C context) throws Exception {
+		try {
+			return submit(context).get();
+		} catch (ExecutionException failed) {
+			Throwable cause = failed.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw (Exception) cause;
+		}
+	}
+
+	/**
+	 * See the {@link Chain} JavaDoc. The whole batch is submitted before any
+	 * result is waited for, so the contexts fill the pipeline together.
+	 */
+	public BatchResult executeBatch(List<C> contexts) {
+		if (null == contexts) {
+			throw new IllegalArgumentException("Contexts may not be null");
+		}
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(contexts.size());
+		for (C context : contexts) {
+			futures.add(submit(context));
+		}
+		BatchResult outcome = new BatchResult(contexts.size());
+		for (int j = 0; j < futures.size(); j++) {
+			try {
+				outcome.setResult(j, futures.get(j).join());
+			} catch (RuntimeException failed) {
+				Throwable cause = failed.getCause();
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				outcome.setException(j, (Exception) cause);
+			}
+		}
+		return outcome;
+	}
+
+	/**
+	 * <p>
+	 * Pass a context into the pipeline, waiting while it is full.
+	 * </p>
+	 * 
+	 * @param context
+	 *            The context to be processed
+	 * @return a future completed with the result of processing the context,
+	 *         or with the exception that <code>execute()</code> would throw
+	 * @exception IllegalStateException
+	 *                if the chain has been closed
+	 */
+	public CompletableFuture<Boolean> submit(C context) {
+		Stage<C>[] stages = this.stages;
+		if (null == stages) {
+			stages = freeze();
+		}
+		Job<C> job = new Job<C>(context);
+		if (0 == stages.length) {
+			job.future.complete(CONTINUE_PROCESSING);
+			return job.future;
+		}
+		for (int idle = 0;; idle++) {
+			int current = inFlight.get();
+			if (current < capacity && inFlight.compareAndSet(current, current + 1)) {
+				break;
+			}
+			Stage.idle(idle);
+		}
+		// checked after admission, so that no stage can have exited yet
+		if (closed) {
+			release();
+			throw new IllegalStateException("The chain has been closed", failure);
+		}
+		stages[0].ingress.offer(job);
+		stages[0].signal();
+		return job.future;
+	}
+
+	/**
+	 * <p>
+	 * Stop accepting contexts. The stage threads finish the contexts already
+	 * in the pipeline and then exit.
+	 * </p>
+	 */
+	public void close() {
+		closed = true;
+		wakeAll();
+	}
+
+	/**
+	 * <p>
+	 * Shut the pipeline down after an <code>Error</code>; the stages complete
+	 * every context they still receive with it.
+	 * </p>
+	 */
+	private void fail(Error fatal) {
+		if (null == failure) {
+			failure = fatal;
+		}
+		close();
+	}
+
+	/**
+	 * <p>
+	 * Let another context in, waking the stages if they are only waiting for
+	 * the pipeline to drain.
+	 * </p>
+	 */
+	private void release() {
+		if (0 == inFlight.decrementAndGet() && closed) {
+			wakeAll();
+		}
+	}
+
+	private void wakeAll() {
+		Stage<C>[] stages = this.stages;
+		if (null != stages) {
+			for (Stage<C> stage : stages) {
+				LockSupport.unpark(stage.thread);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized Stage<C>[] freeze() {
+		if (null != stages) {
+			return stages;
+		}
+		this.frozen = true;
+		int size = commands.size();
+		Stage<C>[] built = new Stage[size];
+		boolean filterBefore = false;
+		for (int i = 0; i < size; i++) {
+			built[i] = new Stage<C>(this, i, commands.get(i), filterBefore, i == size - 1);
+			filterBefore |= commands.get(i) instanceof Filter<?>;
+		}
+		for (int i = 0; i < size; i++) {
+			built[i].previous = i > 0 ? built[i - 1] : null;
+			built[i].next = i < size - 1 ? built[i + 1] : null;
+		}
+		for (Stage<C> stage : built) {
+			if (null == threadFactory) {
+				stage.thread = new Thread(stage, "chain-pipeline-stage-" + stage.index);
+				stage.thread.setDaemon(true);
+			} else {
+				stage.thread = threadFactory.newThread(stage);
+			}
+		}
+		for (Stage<C> stage : built) {
+			stage.thread.start();
+		}
+		this.stages = built;
+		return built;
+	}
+
+	/**
+	 * <p>
+	 * The progress of one context through the pipeline.
+	 * </p>
+	 */
+	private static final class Job<C> {
+		final C context;
+		final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		boolean savedResult = CONTINUE_PROCESSING;
+		Exception savedException;
+		boolean handled;
+
+		Job(C context) {
+			this.context = context;
+		}
+	}
+
+	/**
+	 * <p>
+	 * One stage of the pipeline and the thread that runs it. Its forward ring
+	 * is fed only by the stage before it and its backward ring only by the
+	 * stage after it. The first stage's forward ring is fed by every
+	 * submitting thread and so takes multiple producers.
+	 * </p>
+	 */
+	private static final class Stage<C> implements Runnable {
+		final PipelinedChain<C> chain;
+		final int index;
+		final Command<C> command;
+		final Filter<C> filter;
+		final boolean filterBefore;
+		final boolean last;
+		final Ring<Job<C>> ingress;
+		final Ring<Job<C>> backward;
+		Stage<C> previous;
+		Stage<C> next;
+		Thread thread;
+		volatile boolean sleeping;
+
+		@SuppressWarnings("unchecked")
+		Stage(PipelinedChain<C> chain, int index, Command<C> command, boolean filterBefore, boolean last) {
+			this.chain = chain;
+			this.index = index;
+			this.command = command;
+			this.filter = command instanceof Filter<?> ? (Filter<C>) command : null;
+			this.filterBefore = filterBefore;
+			this.last = last;
+			this.ingress = new Ring<Job<C>>(chain.capacity, 0 == index);
+			this.backward = new Ring<Job<C>>(chain.capacity, false);
+		}
+
+		public void run() {
+			int idle = 0;
+			while (true) {
+				// returning contexts first, as they are closest to leaving
+				Job<C> job = backward.poll();
+				if (null != job) {
+					if (null != chain.failure) {
+						abort(job);
+					} else {
+						postprocess(job);
+					}
+				} else if (null != (job = ingress.poll())) {
+					if (null != chain.failure) {
+						abort(job);
+					} else {
+						execute(job);
+					}
+				} else {
+					if (drained()) {
+						return;
+					}
+					await(idle++);
+					continue;
+				}
+				idle = 0;
+			}
+		}
+
+		private void execute(Job<C> job) {
+			try {
+				job.savedResult = command.execute(job.context);
+			} catch (Exception toSave) {
+				job.savedException = toSave;
+			} catch (Error fatal) {
+				chain.release();
+				job.future.completeExceptionally(fatal);
+				return;
+			}
+			if (null == job.savedException && Chain.CONTINUE_PROCESSING == job.savedResult && !last) {
+				next.ingress.offer(job);
+				next.signal();
+			} else {
+				postprocess(job);
+			}
+		}
+
+		private void postprocess(Job<C> job) {
+			if (null != filter) {
+				try {
+					job.handled |= filter.postprocess(job.context, job.savedException);
+				} catch (Exception ignoreMe) {
+
+				} catch (Error fatal) {
+					chain.fail(fatal);
+					abort(job);
+					return;
+				}
+			}
+			if (filterBefore) {
+				previous.backward.offer(job);
+				previous.signal();
+				return;
+			}
+			chain.release();
+			if (null != job.savedException && !job.handled) {
+				job.future.completeExceptionally(job.savedException);
+			} else {
+				job.future.complete(job.savedResult);
+			}
+		}
+
+		private void abort(Job<C> job) {
+			chain.release();
+			job.future.completeExceptionally(chain.failure);
+		}
+
+		private boolean drained() {
+			return chain.closed && 0 == chain.inFlight.get();
+		}
+
+		/**
+		 * <p>
+		 * Wait for work. Once spinning and yielding have found none, the stage
+		 * parks until {@link #signal()} or the chain wakes it. The flag is set
+		 * before the rings are checked a last time, and read by
+		 * {@link #signal()} after a ring has been written, so one of the two
+		 * sides always sees the other.
+		 * </p>
+		 */
+		private void await(int round) {
+			if (round < 200) {
+				idle(round);
+				return;
+			}
+			sleeping = true;
+			if (backward.isEmpty() && ingress.isEmpty() && !drained()) {
+				LockSupport.park(this);
+			}
+			sleeping = false;
+		}
+
+		/**
+		 * <p>
+		 * Wake the stage if it is parked, after a context has been offered to
+		 * one of its rings.
+		 * </p>
+		 */
+		void signal() {
+			// orders the write to the ring before the read of the flag
+			VarHandle.fullFence();
+			if (sleeping) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		static void idle(int round) {
+			if (round < 100) {
+				Thread.onSpinWait();
+			} else if (round < 200) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(20000L);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Bounded ring buffer with a single consumer. Callers guarantee that it
+	 * never holds more than its capacity, which the admission limit of the
+	 * chain ensures, so {@link #offer(Object)} never has to wait. The
+	 * consumer takes slots in order, and a slot is full once its element has
+	 * been written with an ordered store, so neither side reads the other's
+	 * index. With several producers each claims a slot with an atomic
+	 * increment first.
+	 * </p>
+	 */
+	static final class Ring<E> {
+		private final AtomicReferenceArray<E> slots;
+		private final int mask;
+		private final AtomicLong sharedTail;
+		private long tail;
+		private long head;
+
+		Ring(int capacity, boolean multiProducer) {
+			this.slots = new AtomicReferenceArray<E>(capacity);
+			this.mask = capacity - 1;
+			this.sharedTail = multiProducer ? new AtomicLong() : null;
+		}
+
+		void offer(E element) {
+			long t = null == sharedTail ? tail++ : sharedTail.getAndIncrement();
+			slots.lazySet((int) (t & mask), element);
+		}
+
+		boolean isEmpty() {
+			return null == slots.get((int) (head & mask));
+		}
+
+		E poll() {
+			int slot = (int) (head & mask);
+			E element = slots.get(slot);
+			if (null == element) {
+				return null;
+			}
+			slots.lazySet(slot, null);
+			head++;
+			return element;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * One position of a chain built by {@link ChainSpecializer}. This class is
+ * never used as loaded: {@link ChainSpecializer} defines a fresh copy of its
+ * bytecode for every position of every specialized chain, so that the JIT
+ * profiles each copy's calls on its own. The call to the {@link Command} and
+ * the call to the next step therefore only ever see one receiver class, and
+ * both can be inlined.
+ * </p>
+ * 
+ * <p>
+ * Because the copies live in their own class loaders, this class may only
+ * refer to public types of the parent loader.
+ * </p>
+ */
+final class SpecializedStep<C> implements Command<C> {
+
+	/**
+	 * <p>
+	 * Thrown from a step to the steps before it once a {@link Filter} has
+	 * handled an exception. It still carries the exception, since the
+	 * remaining {@link Filter}s are entitled to see it.
+	 * </p>
+	 */
+	public static final class Handled extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public final Exception exception;
+
+		public Handled(Exception exception) {
+			super(null, null, false, false);
+			this.exception = exception;
+		}
+	}
+
+	private final Command<C> command;
+
+	/**
+	 * <p>
+	 * {@link #command} if it is a {@link Filter}, otherwise <code>null</code>.
+	 * </p>
+	 */
+	private final Filter<C> filter;
+
+	/**
+	 * <p>
+	 * The step for the following position, or <code>null</code> if this is
+	 * the last one.
+	 * </p>
+	 */
+	private final Command<C> next;
+
+	@SuppressWarnings("unchecked")
+	public SpecializedStep(Command<C> command, Command<C> next) {
+		this.command = command;
+		this.filter = command instanceof Filter<?> ? (Filter<C>) command : null;
+		this.next = next;
+	}
+
+	/**
+	 * <p>
+	 * Execute this position and every following one, then, if this position
+	 * holds a {@link Filter}, postprocess it. Unwinding the calls back through
+	 * the steps postprocesses the {@link Filter}s in reverse order, just as
+	 * {@link CompiledChain} does.
+	 * </p>
+	 */
+	public boolean execute(C context) throws Exception {
+		if (null == filter) {
+			if (Command.PROCESSING_COMPLETE == command.execute(context)) {
+				return Command.PROCESSING_COMPLETE;
+			}
+			return null != next && next.execute(context);
+		}
+		boolean savedResult = Command.CONTINUE_PROCESSING;
+		Exception savedException = null;
+		Handled handled = null;
+		try {
+			savedResult = command.execute(context);
+			if (Command.CONTINUE_PROCESSING == savedResult && null != next) {
+				savedResult = next.execute(context);
+			}
+		} catch (Handled alreadyHandled) {
+			handled = alreadyHandled;
+			savedException = alreadyHandled.exception;
+		} catch (Exception toSave) {
+			savedException = toSave;
+		}
+		boolean handledHere = false;
+		try {
+			handledHere = filter.postprocess(context, savedException);
+		} catch (Exception ignoreMe) {
+
+		}
+		if (null == savedException) {
+			return savedResult;
+		} else if (null != handled) {
+			throw handled;
+		} else if (handledHere) {
+			throw new Handled(savedException);
+		} else {
+			throw savedException;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2001-2004 The Apache Software Foundation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.googlecode.chainpattern.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+import com.googlecode.chainpattern.AsyncCommand;
+import com.googlecode.chainpattern.AsyncFilter;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+/**
+ * <p>
+ * Adapts a synchronous {@link Command} to the {@link AsyncCommand} contract so
+ * that it can be added to an {@link AsyncChainBase}. A {@link Filter} is
+ * adapted to an {@link AsyncFilter}, so its <code>postprocess()</code> method
+ * is still called by the owning chain.
+ * </p>
+ * 
+ * <p>
+ * Without an <code>Executor</code> the wrapped {@link Command} runs on the
+ * thread that starts it and the returned stage is already complete. With an
+ * <code>Executor</code>, it runs on that executor instead, which keeps a
+ * blocking {@link Command} off the thread driving the chain.
+ * </p>
+ */
+public class SyncCommandAdapter<C> implements AsyncCommand<C> {
+
+	private final Command<C> command;
+	private final Executor executor;
+
+	/**
+	 * <p>
+	 * Adapt a {@link Command} to run on the calling thread.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to adapt
+	 * @return an {@link AsyncFilter} if <code>command</code> is a
+	 *         {@link Filter}, otherwise an {@link AsyncCommand}
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 */
+	public static <C> AsyncCommand<C> adapt(Command<C> command) {
+		return adapt(command, null);
+	}
+
+	/**
+	 * <p>
+	 * Adapt a {@link Command} to run on the given <code>Executor</code>.
+	 * </p>
+	 * 
+	 * @param command
+	 *            The {@link Command} to adapt
+	 * @param executor
+	 *            The executor to run <code>command</code> on, or
+	 *            <code>null</code> to run it on the calling thread
+	 * @return an {@link AsyncFilter} if <code>command</code> is a
+	 *         {@link Filter}, otherwise an {@link AsyncCommand}
+	 * @exception IllegalArgumentException
+	 *                if <code>command</code> is <code>null</code>
+	 */
+	public static <C> AsyncCommand<C> adapt(Command<C> command, Executor executor) {
+		if (null == command) {
+			throw new IllegalArgumentException("Commands may not be null");
+		}
+		if (command instanceof Filter<?>) {
+			return new FilterAdapter<C>((Filter<C>) command, executor);
+		}
+		return new SyncCommandAdapter<C>(command, executor);
+	}
+
+	SyncCommandAdapter(Command<C> command, Executor executor) {
+		this.command = command;
+		this.executor = executor;
+	}
+
+	public CompletionStage<Boolean> execute(final C context) {
+		if (null == executor) {
+			CompletableFuture<Boolean> stage = new CompletableFuture<Boolean>();
+			try {
+				stage.complete(command.execute(context));
+			} catch (Exception e) {
+				stage.completeExceptionally(e);
+			}
+			return stage;
+		}
+		final CompletableFuture<Boolean> stage = new CompletableFuture<Boolean>();
+		executor.execute(() -> {
+			try {
+				stage.complete(command.execute(context));
+			} catch (Throwable t) {
+				stage.completeExceptionally(t);
+			}
+		});
+		return stage;
+	}
+
+	/**
+	 * <p>
+	 * Adapter for a {@link Filter}. The <code>postprocess()</code> method is
+	 * always called on the thread that drives the chain, as it is expected to
+	 * be cheap.
+	 * </p>
+	 */
+	private static final class FilterAdapter<C> extends SyncCommandAdapter<C> implements AsyncFilter<C> {
+		private final Filter<C> filter;
+
+		FilterAdapter(Filter<C> filter, Executor executor) {
+			super(filter, executor);
+			this.filter = filter;
+		}
+
+		public CompletionStage<Boolean> postprocess(C context, Exception exception) {
+			return CompletableFuture.completedFuture(filter.postprocess(context, exception));
+		}
+	}
+}
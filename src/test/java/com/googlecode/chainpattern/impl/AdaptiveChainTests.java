@@ -0,0 +1,106 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class AdaptiveChainTests {
+	private AdaptiveChain<Boolean> chain;
+	private Command<Boolean> first;
+	private Command<Boolean> never;
+	private Command<Boolean> always;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() throws Exception {
+		chain = new AdaptiveChain<Boolean>();
+		chain.setSampleRate(1);
+		chain.setReorderInterval(10);
+		first = mock(Command.class);
+		never = mock(Command.class);
+		always = mock(Command.class);
+		when(first.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(never.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(always.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+	}
+
+	@Test
+	public void initialOrderIsTheOrderOfAddition() {
+		chain.addCommand(first);
+		chain.addCommutativeGroup(Arrays.asList(never, always));
+		assertEquals(Arrays.asList(first, never, always), chain.getCurrentOrder());
+	}
+
+	@Test
+	public void likelyTerminatorMovesToTheFrontOfItsGroup() throws Exception {
+		chain.addCommand(first);
+		chain.addCommutativeGroup(Arrays.asList(never, always));
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Chain.PROCESSING_COMPLETE, chain.execute(true));
+		}
+
+		assertEquals(Arrays.asList(first, always, never), chain.getCurrentOrder());
+	}
+
+	@Test
+	public void fixedCommandsAreNeverMoved() throws Exception {
+		chain.addCommutativeGroup(Arrays.asList(never));
+		chain.addCommand(always);
+		chain.addCommand(first);
+
+		for (int i = 0; i < 20; i++) {
+			chain.execute(true);
+		}
+
+		assertEquals(Arrays.asList(never, always, first), chain.getCurrentOrder());
+	}
+
+	@Test
+	public void filtersArePostprocessedInReverseOfTheExecutedOrder() throws Exception {
+		List<String> calls = new ArrayList<String>();
+		chain.addCommutativeGroup(Arrays.asList(new Recording("a", Chain.CONTINUE_PROCESSING, calls),
+				new Recording("b", Chain.PROCESSING_COMPLETE, calls)));
+		for (int i = 0; i < 10; i++) {
+			chain.execute(true);
+		}
+		calls.clear();
+
+		chain.execute(true);
+
+		assertEquals(Arrays.asList("execute b", "postprocess b"), calls);
+	}
+
+	private static class Recording implements Filter<Boolean> {
+		private final String name;
+		private final boolean result;
+		private final List<String> calls;
+
+		Recording(String name, boolean result, List<String> calls) {
+			this.name = name;
+			this.result = result;
+			this.calls = calls;
+		}
+
+		public boolean execute(Boolean context) throws Exception {
+			calls.add("execute " + name);
+			return result;
+		}
+
+		public boolean postprocess(Boolean context, Exception exception) {
+			calls.add("postprocess " + name);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.internal.verification.Times;
+
+import com.googlecode.chainpattern.AsyncCommand;
+import com.googlecode.chainpattern.AsyncFilter;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class AsyncChainBaseTests {
+	AsyncChainBase<Boolean> chain;
+	private AsyncCommand<Boolean> command1;
+	private AsyncCommand<Boolean> command2;
+	private AsyncFilter<Boolean> filterCommand1;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		chain = new AsyncChainBase<Boolean>();
+		command1 = mock(AsyncCommand.class);
+		command2 = mock(AsyncCommand.class);
+		filterCommand1 = mock(AsyncFilter.class);
+	}
+
+	@Test
+	public void noItemsInTheChainThenContinueProcessing() throws Exception {
+		assertEquals(Chain.CONTINUE_PROCESSING, get(chain.execute(true)));
+	}
+
+	@Test(timeout = 10000)
+	public void longChainOfCompletedStagesDoesNotRecurse() throws Exception {
+		final int[] executed = new int[1];
+		AsyncCommand<Boolean> filter = SyncCommandAdapter.adapt(new Filter<Boolean>() {
+			public boolean execute(Boolean context) {
+				executed[0]++;
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public boolean postprocess(Boolean context, Exception exception) {
+				return false;
+			}
+		});
+		for (int i = 0; i < 20000; i++) {
+			chain.addCommand(filter);
+		}
+		assertEquals(Chain.CONTINUE_PROCESSING, get(chain.execute(true)));
+		assertEquals(20000, executed[0]);
+	}
+
+	@Test
+	public void completeStopsTheChain() throws Exception {
+		chain.addCommand(command1);
+		chain.addCommand(command2);
+		when(command1.execute(true)).thenReturn(done(Chain.PROCESSING_COMPLETE));
+
+		assertEquals(Chain.PROCESSING_COMPLETE, get(chain.execute(true)));
+
+		verify(command2, new Times(0)).execute(true);
+	}
+
+	@Test
+	public void nextCommandWaitsForThePreviousStage() throws Exception {
+		CompletableFuture<Boolean> pending = new CompletableFuture<Boolean>();
+		chain.addCommand(command1);
+		chain.addCommand(command2);
+		when(command1.execute(true)).thenReturn(pending);
+		when(command2.execute(true)).thenReturn(done(Chain.PROCESSING_COMPLETE));
+
+		CompletionStage<Boolean> result = chain.execute(true);
+
+		assertFalse(result.toCompletableFuture().isDone());
+		verify(command2, new Times(0)).execute(true);
+		pending.complete(Chain.CONTINUE_PROCESSING);
+		assertEquals(Chain.PROCESSING_COMPLETE, get(result));
+	}
+
+	@Test
+	public void failedStageIsRethrownWhenNotHandled() throws Exception {
+		Exception e = new Exception();
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		chain.addCommand(command2);
+		when(filterCommand1.execute(true)).thenReturn(done(Chain.CONTINUE_PROCESSING));
+		when(filterCommand1.postprocess(true, e)).thenReturn(done(false));
+		when(command1.execute(true)).thenReturn(failed(e));
+
+		try {
+			get(chain.execute(true));
+			fail("Should have thrown");
+		} catch (ExecutionException ex) {
+			assertSame(e, ex.getCause());
+		}
+		verify(filterCommand1).postprocess(true, e);
+		verify(command2, new Times(0)).execute(true);
+	}
+
+	@Test
+	public void thrownExceptionHandledByFilter() throws Exception {
+		Exception e = new RuntimeException();
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		when(filterCommand1.execute(true)).thenReturn(done(Chain.CONTINUE_PROCESSING));
+		when(filterCommand1.postprocess(true, e)).thenReturn(done(true));
+		when(command1.execute(true)).thenThrow(e);
+
+		assertEquals(Chain.CONTINUE_PROCESSING, get(chain.execute(true)));
+	}
+
+	@Test
+	public void failedPostprocessIsDiscarded() throws Exception {
+		chain.addCommand(filterCommand1);
+		when(filterCommand1.execute(true)).thenReturn(done(Chain.PROCESSING_COMPLETE));
+		when(filterCommand1.postprocess(true, null)).thenReturn(failed(new Exception()));
+
+		assertEquals(Chain.PROCESSING_COMPLETE, get(chain.execute(true)));
+	}
+
+	@Test
+	public void synchronousCommandsAreAdapted() throws Exception {
+		final List<String> calls = new ArrayList<String>();
+		chain.addCommand(SyncCommandAdapter.adapt(new Filter<Boolean>() {
+			public boolean execute(Boolean context) throws Exception {
+				calls.add("execute filter");
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public boolean postprocess(Boolean context, Exception exception) {
+				calls.add("postprocess filter");
+				return false;
+			}
+		}));
+		chain.addCommand(SyncCommandAdapter.adapt(new Command<Boolean>() {
+			public boolean execute(Boolean context) throws Exception {
+				calls.add("execute command");
+				return Chain.PROCESSING_COMPLETE;
+			}
+		}));
+
+		assertTrue(get(chain.execute(true)));
+		assertEquals(Arrays.asList("execute filter", "execute command", "postprocess filter"), calls);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void addCannotBeCalledAfterExecute() throws Exception {
+		chain.execute(true);
+		chain.addCommand(command1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullCommandsAreNotAllowed() throws Exception {
+		chain.addCommand(null);
+	}
+
+	private static Boolean get(CompletionStage<Boolean> stage) throws Exception {
+		return stage.toCompletableFuture().get();
+	}
+
+	private static CompletionStage<Boolean> done(boolean value) {
+		return CompletableFuture.completedFuture(value);
+	}
+
+	private static CompletionStage<Boolean> failed(Exception e) {
+		CompletableFuture<Boolean> stage = new CompletableFuture<Boolean>();
+		stage.completeExceptionally(e);
+		return stage;
+	}
+}
@@ -0,0 +1,211 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class CachingCommandTests {
+	private AtomicInteger executions;
+	private CachingCommand<Lookup, String, String> caching;
+
+	static class Lookup {
+		final String key;
+		String value;
+
+		Lookup(String key) {
+			this.key = key;
+		}
+	}
+
+	@Before
+	public void setup() {
+		executions = new AtomicInteger();
+		caching = cache(new Command<Lookup>() {
+			public boolean execute(Lookup context) throws Exception {
+				executions.incrementAndGet();
+				context.value = context.key.toUpperCase();
+				return context.key.startsWith("done");
+			}
+		});
+	}
+
+	private static CachingCommand<Lookup, String, String> cache(Command<Lookup> command) {
+		return new CachingCommand<Lookup, String, String>(command, c -> c.key, c -> c.value, (c, v) -> c.value = v);
+	}
+
+	@Test
+	public void hitAppliesTheCachedValueWithoutExecuting() throws Exception {
+		caching.execute(new Lookup("a"));
+		Lookup second = new Lookup("a");
+
+		assertEquals(Chain.CONTINUE_PROCESSING, caching.execute(second));
+
+		assertEquals("A", second.value);
+		assertEquals(1, executions.get());
+		assertEquals(1, caching.getHitCount());
+		assertEquals(1, caching.getMissCount());
+	}
+
+	@Test
+	public void resultIsCachedToo() throws Exception {
+		assertEquals(Chain.PROCESSING_COMPLETE, caching.execute(new Lookup("done")));
+		assertEquals(Chain.PROCESSING_COMPLETE, caching.execute(new Lookup("done")));
+		assertEquals(1, executions.get());
+	}
+
+	@Test
+	public void contextsWithoutAKeyBypassTheCache() throws Exception {
+		CachingCommand<Lookup, String, String> byValue = new CachingCommand<Lookup, String, String>(
+				new Command<Lookup>() {
+					public boolean execute(Lookup context) throws Exception {
+						executions.incrementAndGet();
+						return Chain.CONTINUE_PROCESSING;
+					}
+				}, c -> c.value, c -> c.value, (c, v) -> c.value = v);
+		byValue.execute(new Lookup("a"));
+		byValue.execute(new Lookup("a"));
+		assertEquals(2, executions.get());
+		assertEquals(0, byValue.size());
+	}
+
+	@Test
+	public void exceptionsAreNotCached() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		CachingCommand<Lookup, String, String> failing = cache(new Command<Lookup>() {
+			public boolean execute(Lookup context) throws Exception {
+				if (calls.incrementAndGet() == 1) {
+					throw new Exception();
+				}
+				context.value = "ok";
+				return Chain.CONTINUE_PROCESSING;
+			}
+		});
+		try {
+			failing.execute(new Lookup("a"));
+		} catch (Exception expected) {
+		}
+		Lookup retry = new Lookup("a");
+		failing.execute(retry);
+		assertEquals("ok", retry.value);
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() throws Exception {
+		caching.setMaximumSize(2);
+		caching.execute(new Lookup("a"));
+		caching.execute(new Lookup("b"));
+		caching.execute(new Lookup("a"));
+		caching.execute(new Lookup("c"));
+
+		assertEquals(2, caching.size());
+		assertEquals(1, caching.getEvictionCount());
+		caching.execute(new Lookup("a"));
+		assertEquals(3, executions.get());
+	}
+
+	@Test
+	public void leastFrequentlyUsedIsEvicted() throws Exception {
+		caching.setMaximumSize(2);
+		caching.setEviction(CachingCommand.Eviction.LFU);
+		caching.execute(new Lookup("a"));
+		caching.execute(new Lookup("a"));
+		caching.execute(new Lookup("a"));
+		caching.execute(new Lookup("b"));
+		caching.execute(new Lookup("c"));
+
+		caching.execute(new Lookup("a"));
+		assertEquals(3, executions.get());
+	}
+
+	@Test
+	public void expiredEntriesAreRecomputed() throws Exception {
+		caching.setTimeToLive(1, TimeUnit.MILLISECONDS);
+		caching.execute(new Lookup("a"));
+		Thread.sleep(5);
+		caching.execute(new Lookup("a"));
+		assertEquals(2, executions.get());
+	}
+
+	@Test
+	public void concurrentMissesAreCoalesced() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CachingCommand<Lookup, String, String> slow = cache(new Command<Lookup>() {
+			public boolean execute(Lookup context) throws Exception {
+				executions.incrementAndGet();
+				started.countDown();
+				release.await(5, TimeUnit.SECONDS);
+				context.value = "slow";
+				return Chain.CONTINUE_PROCESSING;
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> first = executor.submit(() -> slow.execute(new Lookup("a")));
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			final Lookup waiting = new Lookup("a");
+			Future<?> second = executor.submit(() -> slow.execute(waiting));
+			assertNull(waiting.value);
+			release.countDown();
+			first.get(5, TimeUnit.SECONDS);
+			second.get(5, TimeUnit.SECONDS);
+			assertEquals("slow", waiting.value);
+			assertEquals(1, executions.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void hitsDuringEvictionNeverFailAnExecution() throws Exception {
+		caching.setMaximumSize(50);
+		caching.setEviction(CachingCommand.Eviction.LFU);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; t++) {
+				final int seed = t;
+				futures.add(pool.submit(() -> {
+					Random random = new Random(seed);
+					for (int i = 0; i < 20000; i++) {
+						Lookup lookup = new Lookup("k" + random.nextInt(200));
+						caching.execute(lookup);
+						assertEquals(lookup.key.toUpperCase(), lookup.value);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertTrue(caching.getEvictionCount() > 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void filtersCannotBeMemoized() {
+		cache(mock(Filter.class));
+	}
+}
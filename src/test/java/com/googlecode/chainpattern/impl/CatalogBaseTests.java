@@ -0,0 +1,101 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+
+public class CatalogBaseTests {
+	private CatalogBase<Boolean> catalog;
+	private Command<Boolean> command1;
+	private Command<Boolean> command2;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		catalog = new CatalogBase<Boolean>();
+		command1 = mock(Command.class);
+		command2 = mock(Command.class);
+	}
+
+	@Test
+	public void unknownNamesReturnNull() {
+		assertNull(catalog.getCommand("missing"));
+	}
+
+	@Test
+	public void addedCommandsCanBeLookedUp() {
+		assertNull(catalog.addCommand("a", command1));
+		assertSame(command1, catalog.getCommand("a"));
+		Iterator<String> names = catalog.getNames();
+		assertEquals("a", names.next());
+		assertFalse(names.hasNext());
+	}
+
+	@Test
+	public void addingUnderAnExistingNameReplaces() {
+		catalog.addCommand("a", command1);
+		assertSame(command1, catalog.addCommand("a", command2));
+		assertSame(command2, catalog.getCommand("a"));
+	}
+
+	@Test
+	public void replaceOnlySucceedsForTheExpectedCommand() {
+		catalog.addCommand("a", command1);
+		assertFalse(catalog.replaceCommand("a", command2, command2));
+		assertSame(command1, catalog.getCommand("a"));
+		assertTrue(catalog.replaceCommand("a", command1, command2));
+		assertSame(command2, catalog.getCommand("a"));
+	}
+
+	@Test
+	public void inFlightLookupsKeepTheOldCommand() throws Exception {
+		ChainBase<Boolean> oldChain = new ChainBase<Boolean>();
+		oldChain.addCommand(command1);
+		catalog.addCommand("a", oldChain);
+		Command<Boolean> inFlight = catalog.getCommand("a");
+		ChainBase<Boolean> newChain = new ChainBase<Boolean>();
+		newChain.addCommand(command2);
+		catalog.addCommand("a", newChain);
+		when(command1.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+
+		assertTrue(inFlight.execute(true));
+		assertSame(newChain, catalog.getCommand("a"));
+	}
+
+	@Test
+	public void removedCommandsAreNoLongerFound() {
+		catalog.addCommand("a", command1);
+		assertSame(command1, catalog.removeCommand("a"));
+		assertNull(catalog.getCommand("a"));
+		assertNull(catalog.removeCommand("a"));
+	}
+
+	@Test
+	public void executeRunsTheNamedCommand() throws Exception {
+		catalog.addCommand("a", command1);
+		when(command1.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+		assertTrue(catalog.execute("a", true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void executingAnUnknownNameFails() throws Exception {
+		catalog.execute("missing", true);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullCommandsAreNotAllowed() {
+		catalog.addCommand("a", null);
+	}
+}
@@ -1,6 +1,7 @@
 package com.googlecode.chainpattern.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -8,11 +9,26 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.internal.verification.Times;
 
+import com.googlecode.chainpattern.BatchCommand;
+import com.googlecode.chainpattern.BatchResult;
 import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.ChainInstrumentation;
 import com.googlecode.chainpattern.Command;
 import com.googlecode.chainpattern.Filter;
 
@@ -172,4 +188,318 @@ public class ChainBaseTests {
 		chain.getCopyOfCommands().add(command2);
 	}
 
+	@Test
+	public void returnedCopyOfCommandsIsASnapshot() {
+		chain.addCommand(command1);
+		List<Command<Boolean>> copy = chain.getCopyOfCommands();
+
+		chain.addCommand(command2);
+
+		assertEquals(1, copy.size());
+		assertEquals(2, chain.getCopyOfCommands().size());
+	}
+
+	@Test
+	public void filtersArePostprocessedInReverseOrder() throws Exception {
+		List<String> postprocessed = new ArrayList<String>();
+		chain.addCommand(new RecordingFilter("first", postprocessed));
+		chain.addCommand(command1);
+		chain.addCommand(new RecordingFilter("second", postprocessed));
+		when(command1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+
+		assertEquals(Chain.CONTINUE_PROCESSING, chain.execute(true));
+
+		assertEquals(Arrays.asList("second", "first"), postprocessed);
+	}
+
+	@Test
+	public void filtersAfterTheCompletingCommandAreNotPostprocessed() throws Exception {
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		chain.addCommand(filterCommand2);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command1.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+
+		assertEquals(Chain.PROCESSING_COMPLETE, chain.execute(true));
+
+		verify(filterCommand1).postprocess(true, null);
+		verify(filterCommand2, new Times(0)).execute(true);
+		verify(filterCommand2, new Times(0)).postprocess(true, null);
+	}
+
+	@Test
+	public void everyFilterIsPostprocessedEvenOnceTheExceptionIsHandled() throws Exception {
+		chain.addCommand(filterCommand1);
+		chain.addCommand(filterCommand2);
+		chain.addCommand(command1);
+		Exception e = new Exception();
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(filterCommand2.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command1.execute(true)).thenThrow(e);
+		when(filterCommand2.postprocess(true, e)).thenReturn(true);
+
+		assertEquals(Chain.CONTINUE_PROCESSING, chain.execute(true));
+
+		verify(filterCommand2).postprocess(true, e);
+		verify(filterCommand1).postprocess(true, e);
+	}
+
+	@Test
+	public void repeatedExecutionsReuseTheSameConfiguration() throws Exception {
+		chain.addCommand(filterCommand1);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+
+		chain.execute(true);
+		chain.execute(true);
+
+		verify(filterCommand1, new Times(2)).execute(true);
+		verify(filterCommand1, new Times(2)).postprocess(true, null);
+	}
+
+	@Test
+	public void batchCommandReceivesTheWholeBatchInOneCall() throws Exception {
+		final List<List<Boolean>> batches = new ArrayList<List<Boolean>>();
+		chain.addCommand(new BatchCommand<Boolean>() {
+			public boolean execute(Boolean context) throws Exception {
+				fail("Should have been called with the batch");
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public void executeBatch(List<Boolean> contexts, BatchResult results) throws Exception {
+				batches.add(new ArrayList<Boolean>(contexts));
+				for (int i = 0; i < contexts.size(); i++) {
+					results.setResult(i, contexts.get(i));
+				}
+			}
+		});
+
+		BatchResult result = chain.executeBatch(Arrays.asList(true, false, true));
+
+		assertEquals(1, batches.size());
+		assertEquals(Arrays.asList(true, false, true), batches.get(0));
+		assertEquals(Chain.PROCESSING_COMPLETE, result.getResult(0));
+		assertEquals(Chain.CONTINUE_PROCESSING, result.getResult(1));
+		assertEquals(Chain.PROCESSING_COMPLETE, result.getResult(2));
+	}
+
+	@Test
+	public void chainWithoutBatchSupportExecutesEachContext() throws Exception {
+		final Exception e = new Exception();
+		Chain<Boolean> plain = new Chain<Boolean>() {
+			public Chain<Boolean> addCommand(Command<Boolean> command) {
+				return this;
+			}
+
+			public boolean execute(Boolean context) throws Exception {
+				if (null == context) {
+					throw e;
+				}
+				return context;
+			}
+		};
+
+		BatchResult result = plain.executeBatch(Arrays.asList(true, null, false));
+
+		assertEquals(Chain.PROCESSING_COMPLETE, result.getResult(0));
+		assertSame(e, result.getException(1));
+		assertEquals(Chain.CONTINUE_PROCESSING, result.getResult(2));
+	}
+
+	@Test
+	public void completedContextsDropOutOfTheBatch() throws Exception {
+		chain.addCommand(command1);
+		chain.addCommand(command2);
+		when(command1.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+		when(command1.execute(false)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command2.execute(false)).thenReturn(Chain.CONTINUE_PROCESSING);
+
+		BatchResult result = chain.executeBatch(Arrays.asList(true, false));
+
+		assertEquals(Chain.PROCESSING_COMPLETE, result.getResult(0));
+		assertEquals(Chain.CONTINUE_PROCESSING, result.getResult(1));
+		verify(command2, new Times(0)).execute(true);
+		verify(command2).execute(false);
+	}
+
+	@Test
+	public void batchExceptionsArePostprocessedPerContext() throws Exception {
+		Exception e = new Exception();
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		chain.addCommand(command2);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(filterCommand1.execute(false)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command1.execute(true)).thenThrow(e);
+		when(command1.execute(false)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command2.execute(false)).thenReturn(Chain.PROCESSING_COMPLETE);
+		when(filterCommand1.postprocess(true, e)).thenReturn(false);
+
+		BatchResult result = chain.executeBatch(Arrays.asList(true, false));
+
+		assertSame(e, result.getException(0));
+		assertNull(result.getException(1));
+		assertEquals(Chain.PROCESSING_COMPLETE, result.getResult(1));
+		verify(filterCommand1).postprocess(true, e);
+		verify(filterCommand1).postprocess(false, null);
+		verify(command2, new Times(0)).execute(true);
+	}
+
+	@Test
+	public void commandsAddedWhileExecutionStartsAreEitherAllSeenOrRejected() throws Exception {
+		final int adders = 4;
+		final int executors = 4;
+		ExecutorService pool = Executors.newFixedThreadPool(adders + executors);
+		try {
+			for (int round = 0; round < 200; round++) {
+				final ChainBase<Boolean> shared = new ChainBase<Boolean>();
+				final Set<Command<Boolean>> added = ConcurrentHashMap.newKeySet();
+				final Set<Integer> executedCounts = ConcurrentHashMap.newKeySet();
+				final AtomicInteger executions = new AtomicInteger();
+				final CyclicBarrier start = new CyclicBarrier(adders + executors);
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int a = 0; a < adders; a++) {
+					futures.add(pool.submit(() -> {
+						start.await();
+						for (int i = 0; i < 50; i++) {
+							Command<Boolean> command = context -> {
+								executions.incrementAndGet();
+								return Chain.CONTINUE_PROCESSING;
+							};
+							try {
+								shared.addCommand(command);
+								added.add(command);
+							} catch (IllegalStateException frozen) {
+								break;
+							}
+						}
+						return null;
+					}));
+				}
+				for (int e = 0; e < executors; e++) {
+					futures.add(pool.submit(() -> {
+						start.await();
+						for (int i = 0; i < 10; i++) {
+							int before = executions.get();
+							shared.execute(true);
+							executedCounts.add(shared.getCopyOfCommands().size());
+							assertTrue(executions.get() - before >= shared.getCopyOfCommands().size());
+						}
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get(10, TimeUnit.SECONDS);
+				}
+
+				List<Command<Boolean>> frozen = shared.getCopyOfCommands();
+				assertEquals(added.size(), frozen.size());
+				assertTrue(added.containsAll(frozen));
+				assertEquals(1, executedCounts.size());
+				assertEquals(executors * 10 * frozen.size(), executions.get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void instrumentationThatFailsToInitialiseIsLeftOut() throws Exception {
+		final AtomicInteger reported = new AtomicInteger();
+		ChainBase<Boolean> nested = new ChainBase<Boolean>();
+		nested.addCommand(context -> Chain.PROCESSING_COMPLETE);
+		nested.setInstrumentation(new ChainInstrumentation() {
+			public void chainFrozen(List<? extends Command<?>> commands) {
+				throw new IllegalStateException("refused");
+			}
+
+			public void commandExecuted(int index, long elapsedNanos, boolean result) {
+				reported.incrementAndGet();
+			}
+
+			public void commandFailed(int index, long elapsedNanos, Exception exception) {
+
+			}
+
+			public void exceptionHandled(int index, Exception exception) {
+
+			}
+		});
+		ChainBase<Boolean> outer = new ChainBase<Boolean>();
+		outer.setInlineNestedChains(true);
+		outer.addCommand(nested);
+
+		assertEquals(Chain.PROCESSING_COMPLETE, outer.execute(true));
+		assertEquals(Chain.PROCESSING_COMPLETE, outer.execute(true));
+		assertEquals(1, outer.executeBatch(Arrays.asList(true)).size());
+		assertEquals(0, reported.get());
+	}
+
+	@Test
+	public void racingFirstExecutionsFreezeOnce() throws Exception {
+		final int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 200; round++) {
+				final AtomicInteger frozenCount = new AtomicInteger();
+				final AtomicInteger reportedBeforeFrozen = new AtomicInteger();
+				final ChainBase<Boolean> shared = new ChainBase<Boolean>();
+				shared.addCommand(context -> Chain.CONTINUE_PROCESSING);
+				shared.setInstrumentation(new ChainInstrumentation() {
+					public void chainFrozen(List<? extends Command<?>> commands) {
+						frozenCount.incrementAndGet();
+					}
+
+					public void commandExecuted(int index, long elapsedNanos, boolean result) {
+						if (0 == frozenCount.get()) {
+							reportedBeforeFrozen.incrementAndGet();
+						}
+					}
+
+					public void commandFailed(int index, long elapsedNanos, Exception exception) {
+
+					}
+
+					public void exceptionHandled(int index, Exception exception) {
+
+					}
+				});
+				final CyclicBarrier start = new CyclicBarrier(threads);
+				List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+				for (int t = 0; t < threads; t++) {
+					futures.add(pool.submit(() -> {
+						start.await();
+						return shared.execute(true);
+					}));
+				}
+				for (Future<Boolean> future : futures) {
+					assertEquals(Chain.CONTINUE_PROCESSING, future.get(10, TimeUnit.SECONDS));
+				}
+
+				assertEquals(1, frozenCount.get());
+				assertEquals(0, reportedBeforeFrozen.get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static class RecordingFilter implements Filter<Boolean> {
+		private final String name;
+		private final List<String> postprocessed;
+
+		RecordingFilter(String name, List<String> postprocessed) {
+			this.name = name;
+			this.postprocessed = postprocessed;
+		}
+
+		public boolean execute(Boolean context) throws Exception {
+			return Chain.CONTINUE_PROCESSING;
+		}
+
+		public boolean postprocess(Boolean context, Exception exception) {
+			postprocessed.add(name);
+			return false;
+		}
+	}
+
 }
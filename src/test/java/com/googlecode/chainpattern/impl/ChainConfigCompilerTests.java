@@ -0,0 +1,48 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChainConfigCompilerTests {
+
+	@Test
+	public void configurationIsReadAsUtf8() throws Exception {
+		File properties = File.createTempFile("chains", ".properties");
+		File index = File.createTempFile("chains", ".idx");
+		try {
+			Files.write(properties.toPath(), ("gr\u00f6\u00dfe = " + ChainConfigLoaderTests.Append.class.getName())
+					.getBytes(StandardCharsets.UTF_8));
+
+			assertEquals(0, ChainConfigCompiler.run(new String[] { properties.getPath(), index.getPath() },
+					new PrintStream(new ByteArrayOutputStream())));
+
+			List<String> names;
+			try (InputStream in = new FileInputStream(index)) {
+				names = new ChainConfigLoader().loadIndex(in, new CatalogBase<Object>());
+			}
+			assertEquals(Arrays.asList("gr\u00f6\u00dfe"), names);
+		} finally {
+			properties.delete();
+			index.delete();
+		}
+	}
+
+	@Test
+	public void failuresAreReportedAsAStatus() {
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+		assertEquals(1, ChainConfigCompiler.run(new String[] { "only one" }, new PrintStream(err)));
+		assertEquals(2, ChainConfigCompiler.run(new String[] { "no such file", "out" }, new PrintStream(err)));
+	}
+}
@@ -0,0 +1,110 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+
+public class ChainConfigLoaderTests {
+	static final AtomicInteger created = new AtomicInteger();
+
+	public static class Append implements Command<List<String>> {
+		public Append() {
+			created.incrementAndGet();
+		}
+
+		public boolean execute(List<String> context) throws Exception {
+			context.add("append");
+			return Chain.CONTINUE_PROCESSING;
+		}
+	}
+
+	public static Command<List<String>> stop() {
+		created.incrementAndGet();
+		return context -> {
+			context.add("stop");
+			return Chain.PROCESSING_COMPLETE;
+		};
+	}
+
+	private static final String CONFIG = "main = " + Append.class.getName() + ", @shared, "
+			+ ChainConfigLoaderTests.class.getName() + "#stop, " + Append.class.getName() + "\n" + "shared = "
+			+ Append.class.getName() + "\n" + "unused = " + Append.class.getName() + "\n" + "broken = com.example.Missing\n";
+
+	private CatalogBase<List<String>> catalog;
+
+	@Before
+	public void setup() {
+		created.set(0);
+		catalog = new CatalogBase<List<String>>();
+	}
+
+	@Test
+	public void loadingCreatesNoCommands() throws Exception {
+		List<String> names = new ChainConfigLoader().load(new StringReader(CONFIG), catalog);
+
+		assertEquals(Arrays.asList("broken", "main", "shared", "unused"), names);
+		assertEquals(0, created.get());
+	}
+
+	@Test
+	public void commandsAreCreatedOnFirstExecutionOfTheirChain() throws Exception {
+		new ChainConfigLoader().load(new StringReader(CONFIG), catalog);
+		List<String> trace = new ArrayList<String>();
+
+		assertEquals(Chain.PROCESSING_COMPLETE, catalog.execute("main", trace));
+		catalog.execute("main", new ArrayList<String>());
+
+		assertEquals(Arrays.asList("append", "append", "stop"), trace);
+		// main's two commands plus shared's one; unused is never built
+		assertEquals(4, created.get());
+		assertFalse(((ChainConfigLoader.LazyChain<?>) catalog.getCommand("unused")).isInstantiated());
+	}
+
+	@Test
+	public void compiledIndexLoadsTheSameChains() throws Exception {
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		ChainConfigLoader.compile(new StringReader(CONFIG), index);
+		assertTrue(index.size() < CONFIG.length());
+
+		List<String> names = new ChainConfigLoader().loadIndex(new ByteArrayInputStream(index.toByteArray()), catalog);
+		List<String> trace = new ArrayList<String>();
+		catalog.execute("main", trace);
+
+		assertEquals(Arrays.asList("broken", "main", "shared", "unused"), names);
+		assertEquals(Arrays.asList("append", "append", "stop"), trace);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void badDefinitionsFailOnFirstExecution() throws Exception {
+		new ChainConfigLoader().load(new StringReader(CONFIG), catalog);
+
+		catalog.execute("broken", new ArrayList<String>());
+	}
+
+	@Test(expected = IOException.class)
+	public void indexIsRecognised() throws Exception {
+		new ChainConfigLoader().loadIndex(new ByteArrayInputStream("main = x".getBytes()), catalog);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void configuredChainsCannotBeModified() throws Exception {
+		new ChainConfigLoader().load(new StringReader(CONFIG), catalog);
+
+		((Chain<List<String>>) catalog.getCommand("main")).addCommand(new Append());
+	}
+}
@@ -0,0 +1,161 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.LimitExceededException;
+
+public class ChainExecutorTests {
+	private CountDownLatch release;
+	private AtomicInteger running;
+	private AtomicInteger mostRunning;
+	private Command<String> blocking;
+
+	@Before
+	public void setup() {
+		release = new CountDownLatch(1);
+		running = new AtomicInteger();
+		mostRunning = new AtomicInteger();
+		blocking = new Command<String>() {
+			public boolean execute(String context) throws Exception {
+				mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				release.await();
+				running.decrementAndGet();
+				return Chain.PROCESSING_COMPLETE;
+			}
+		};
+	}
+
+	@After
+	public void teardown() {
+		release.countDown();
+	}
+
+	@Test
+	public void resultOfExecutionCompletesTheFuture() throws Exception {
+		ChainBase<String> chain = new ChainBase<String>();
+		chain.addCommand(blocking);
+		ChainExecutor<String> executor = new ChainExecutor<String>(chain, 4);
+		CompletableFuture<Boolean> future = executor.submit("a");
+		release.countDown();
+		assertEquals(Chain.PROCESSING_COMPLETE, future.get(5, TimeUnit.SECONDS));
+		executor.close();
+	}
+
+	@Test
+	public void exceptionOfExecutionCompletesTheFuture() throws Exception {
+		final IllegalStateException failure = new IllegalStateException();
+		ChainExecutor<String> executor = new ChainExecutor<String>(new Command<String>() {
+			public boolean execute(String context) {
+				throw failure;
+			}
+		}, 4);
+		try {
+			executor.submit("a").get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException thrown) {
+			assertSame(failure, thrown.getCause());
+			return;
+		} finally {
+			executor.close();
+		}
+		assertTrue("Exception expected", false);
+	}
+
+	@Test
+	public void admissionIsBounded() throws Exception {
+		ChainExecutor<String> executor = new ChainExecutor<String>(blocking, 2);
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+		futures.add(executor.submit("a"));
+		futures.add(executor.submit("b"));
+		assertEquals(2, executor.getInFlight());
+		try {
+			executor.submit("c", 20, TimeUnit.MILLISECONDS);
+			assertTrue("LimitExceededException expected", false);
+		} catch (LimitExceededException expected) {
+
+		}
+		release.countDown();
+		for (CompletableFuture<Boolean> future : futures) {
+			future.get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(2, mostRunning.get());
+		executor.close();
+		assertEquals(0, executor.getInFlight());
+	}
+
+	@Test
+	public void manyBlockingExecutionsRunAtOnce() throws Exception {
+		ChainExecutor<String> executor = new ChainExecutor<String>(blocking, 200);
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+		for (int i = 0; i < 200; i++) {
+			futures.add(executor.submit("x" + i));
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (running.get() < 200 && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(200, running.get());
+		release.countDown();
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+		executor.close();
+	}
+
+	@Test
+	public void threadFactoryCreatesAThreadPerExecution() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		ChainExecutor<String> executor = new ChainExecutor<String>(new Command<String>() {
+			public boolean execute(String context) {
+				return Chain.CONTINUE_PROCESSING;
+			}
+		}, 2, runnable -> {
+			created.incrementAndGet();
+			return new Thread(runnable);
+		});
+		for (int i = 0; i < 3; i++) {
+			executor.submit("a").get(5, TimeUnit.SECONDS);
+		}
+		executor.close();
+		assertEquals(3, created.get());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closedExecutorRejectsContexts() throws Exception {
+		ChainExecutor<String> executor = new ChainExecutor<String>(blocking, 1);
+		release.countDown();
+		executor.close();
+		executor.submit("a");
+	}
+
+	@Test
+	public void closeWaitsForRunningExecutions() throws Exception {
+		final ChainExecutor<String> executor = new ChainExecutor<String>(blocking, 2);
+		CompletableFuture<Boolean> future = executor.submit("a");
+		Thread closer = new Thread(executor::close);
+		closer.start();
+		closer.join(50);
+		assertTrue(closer.isAlive());
+		release.countDown();
+		closer.join(5000);
+		assertTrue(future.isDone());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullCommandIsRejected() {
+		new ChainExecutor<String>(null, 1);
+	}
+}
@@ -0,0 +1,93 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+import com.googlecode.chainpattern.impl.ChainMetrics.CommandSnapshot;
+
+public class ChainMetricsTests {
+	private ChainBase<Boolean> chain;
+	private ChainMetrics metrics;
+	private Command<Boolean> command1;
+	private Filter<Boolean> filterCommand1;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		chain = new ChainBase<Boolean>();
+		metrics = new ChainMetrics();
+		chain.setInstrumentation(metrics);
+		command1 = mock(Command.class);
+		filterCommand1 = mock(Filter.class);
+	}
+
+	@Test
+	public void countsInvocationsAndCompletions() throws Exception {
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(filterCommand1.execute(false)).thenReturn(Chain.PROCESSING_COMPLETE);
+		when(command1.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+
+		chain.execute(true);
+		chain.execute(true);
+		chain.execute(false);
+
+		List<CommandSnapshot> snapshot = metrics.snapshot();
+		assertEquals(2, snapshot.size());
+		assertEquals(3, snapshot.get(0).getInvocations());
+		assertEquals(1, snapshot.get(0).getCompletions());
+		assertEquals(2, snapshot.get(1).getInvocations());
+		assertEquals(2, snapshot.get(1).getCompletions());
+		long histogramTotal = 0;
+		for (long count : snapshot.get(0).getHistogram()) {
+			histogramTotal += count;
+		}
+		assertEquals(3, histogramTotal);
+	}
+
+	@Test
+	public void countsThrownAndHandledExceptions() throws Exception {
+		Exception e = new Exception();
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command1.execute(true)).thenThrow(e);
+		when(filterCommand1.postprocess(true, e)).thenReturn(true);
+
+		chain.execute(true);
+
+		List<CommandSnapshot> snapshot = metrics.snapshot();
+		assertEquals(1, snapshot.get(1).getExceptions());
+		assertEquals(1, snapshot.get(0).getHandledExceptions());
+		assertEquals(0, snapshot.get(0).getExceptions());
+	}
+
+	@Test
+	public void percentileIsTheUpperBoundOfItsBucket() {
+		long[] histogram = new long[ChainMetrics.BUCKETS];
+		histogram[ChainMetrics.bucketOf(1000)] = 99;
+		histogram[ChainMetrics.bucketOf(1000000)] = 1;
+		CommandSnapshot snapshot = new CommandSnapshot("c", 100, 0, 0, 0, 0, histogram);
+
+		assertEquals(1023, snapshot.getPercentileNanos(50));
+		assertEquals(1023, snapshot.getPercentileNanos(99));
+		assertTrue(snapshot.getPercentileNanos(100) >= 1000000);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void instrumentationCannotBeChangedAfterExecute() throws Exception {
+		chain.execute(true);
+		chain.setInstrumentation(null);
+	}
+}
@@ -0,0 +1,268 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.ExecutionResult;
+
+public class ChainProcessorTests {
+	private Command<Integer> command;
+	private ExecutorService pool;
+
+	@Before
+	public void setup() {
+		command = new Command<Integer>() {
+			public boolean execute(Integer context) throws Exception {
+				if (context % 10 == 7) {
+					throw new IllegalStateException("seven");
+				}
+				// later contexts finish first
+				Thread.sleep(context % 3);
+				return context % 2 == 0;
+			}
+		};
+		pool = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void teardown() {
+		pool.shutdownNow();
+	}
+
+	private static class Collector implements Flow.Subscriber<ExecutionResult<Integer>> {
+		final List<ExecutionResult<Integer>> results = Collections.synchronizedList(new ArrayList<ExecutionResult<Integer>>());
+		final CountDownLatch done = new CountDownLatch(1);
+		final long initialDemand;
+		Flow.Subscription subscription;
+		Throwable error;
+
+		Collector(long initialDemand) {
+			this.initialDemand = initialDemand;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(initialDemand);
+		}
+
+		public void onNext(ExecutionResult<Integer> item) {
+			results.add(item);
+		}
+
+		public void onError(Throwable throwable) {
+			error = throwable;
+			done.countDown();
+		}
+
+		public void onComplete() {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Upstream that records what was requested and emits on demand.
+	 */
+	private static class CountingSubscription implements Flow.Subscription {
+		final Flow.Subscriber<Integer> subscriber;
+		long requested;
+		int next;
+		boolean cancelled;
+
+		CountingSubscription(Flow.Subscriber<Integer> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			requested += n;
+		}
+
+		void emit() {
+			subscriber.onNext(next++);
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private void publish(ChainProcessor<Integer> processor, int count) {
+		try (SubmissionPublisher<Integer> publisher = new SubmissionPublisher<Integer>(pool, 8)) {
+			publisher.subscribe(processor);
+			for (int i = 0; i < count; i++) {
+				publisher.submit(i);
+			}
+		}
+	}
+
+	@Test
+	public void orderedResultsFollowArrivalOrder() throws Exception {
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(command, pool, 4, true);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+
+		publish(processor, 100);
+
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		assertNull(collector.error);
+		assertEquals(100, collector.results.size());
+		for (int i = 0; i < 100; i++) {
+			ExecutionResult<Integer> result = collector.results.get(i);
+			assertEquals(i, result.getContext().intValue());
+			assertEquals(i % 10 == 7, result.isFailed());
+			assertEquals(i % 2 == 0 && i % 10 != 7, result.isComplete());
+		}
+	}
+
+	@Test
+	public void unorderedResultsAllArrive() throws Exception {
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(command, pool, 4, false);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+
+		publish(processor, 100);
+
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		List<Integer> contexts = collector.results.stream().map(ExecutionResult::getContext).sorted()
+				.collect(Collectors.toList());
+		assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), contexts);
+	}
+
+	@Test
+	public void upstreamIsOnlyAskedForWhatDownstreamWants() {
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(command, Runnable::run, 4, true);
+		Collector collector = new Collector(2);
+		processor.subscribe(collector);
+		CountingSubscription upstream = new CountingSubscription(processor);
+		processor.onSubscribe(upstream);
+
+		assertEquals(2, upstream.requested);
+		upstream.emit();
+		upstream.emit();
+		assertEquals(2, upstream.requested);
+		assertEquals(2, collector.results.size());
+
+		collector.subscription.request(10);
+		assertEquals(6, upstream.requested);
+	}
+
+	@Test
+	public void parallelismCapsOutstandingContexts() {
+		List<Runnable> parked = new ArrayList<Runnable>();
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(command, parked::add, 3, true);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		CountingSubscription upstream = new CountingSubscription(processor);
+		processor.onSubscribe(upstream);
+
+		assertEquals(3, upstream.requested);
+		upstream.emit();
+		upstream.emit();
+		upstream.emit();
+		assertEquals(3, upstream.requested);
+
+		parked.get(0).run();
+		assertEquals(4, upstream.requested);
+		assertEquals(1, collector.results.size());
+	}
+
+	@Test
+	public void completionWaitsForOutstandingResults() {
+		List<Runnable> parked = new ArrayList<Runnable>();
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(command, parked::add, 3, false);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		CountingSubscription upstream = new CountingSubscription(processor);
+		processor.onSubscribe(upstream);
+		upstream.emit();
+
+		processor.onComplete();
+		assertEquals(1, collector.done.getCount());
+
+		parked.get(0).run();
+		assertEquals(0, collector.done.getCount());
+		assertEquals(1, collector.results.size());
+	}
+
+	@Test
+	public void errorFromAnExecutionFailsTheStream() {
+		final AssertionError error = new AssertionError();
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(context -> {
+			if (1 == context) {
+				throw error;
+			}
+			return Chain.CONTINUE_PROCESSING;
+		}, Runnable::run, 3, true);
+		Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		CountingSubscription upstream = new CountingSubscription(processor);
+		processor.onSubscribe(upstream);
+
+		upstream.emit();
+		upstream.emit();
+		upstream.emit();
+
+		assertEquals(0, collector.done.getCount());
+		assertSame(error, collector.error);
+		assertEquals(1, collector.results.size());
+		assertTrue(upstream.cancelled);
+	}
+
+	@Test
+	public void cancellingDownstreamCancelsUpstream() {
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(command, Runnable::run, 3, false);
+		Collector collector = new Collector(1);
+		processor.subscribe(collector);
+		CountingSubscription upstream = new CountingSubscription(processor);
+		processor.onSubscribe(upstream);
+
+		collector.subscription.cancel();
+
+		assertTrue(upstream.cancelled);
+	}
+
+	@Test
+	public void secondSubscriberIsRejected() {
+		ChainProcessor<Integer> processor = new ChainProcessor<Integer>(command, Runnable::run, 1, false);
+		processor.subscribe(new Collector(1));
+		Collector second = new Collector(1);
+
+		processor.subscribe(second);
+
+		assertTrue(second.error instanceof IllegalStateException);
+	}
+
+	@Test
+	public void streamHelperCapturesOutcomes() {
+		ChainBase<Integer> chain = new ChainBase<Integer>();
+		chain.addCommand(command);
+
+		List<ExecutionResult<Integer>> results = ChainProcessor.process(chain, IntStream.range(0, 20).boxed().parallel())
+				.collect(Collectors.toList());
+
+		assertEquals(20, results.size());
+		assertEquals(Chain.PROCESSING_COMPLETE, results.get(4).isComplete());
+		assertTrue(results.get(17).isFailed());
+		assertFalse(results.get(5).isFailed());
+	}
+}
@@ -0,0 +1,181 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class ChainRecorderTests {
+	private ChainRecorder recorder;
+	private ChainBase<String> chain;
+	private IllegalStateException failure;
+
+	@Before
+	public void setup() {
+		recorder = new ChainRecorder(4);
+		failure = new IllegalStateException("boom");
+		chain = new ChainBase<String>();
+		chain.setInstrumentation(recorder);
+		chain.addCommand(new Filter<String>() {
+			public boolean execute(String context) throws Exception {
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public boolean postprocess(String context, Exception exception) {
+				return "handle".equals(context);
+			}
+
+			public String toString() {
+				return "filter";
+			}
+		});
+		chain.addCommand(new Command<String>() {
+			public boolean execute(String context) throws Exception {
+				if ("slow".equals(context)) {
+					Thread.sleep(20);
+				}
+				if ("handle".equals(context) || "throw".equals(context)) {
+					throw failure;
+				}
+				if ("error".equals(context)) {
+					throw new AssertionError();
+				}
+				return "complete".equals(context);
+			}
+
+			public String toString() {
+				return "worker";
+			}
+		});
+		chain.addCommand(context -> Chain.CONTINUE_PROCESSING);
+	}
+
+	@Test
+	public void nothingIsRecordedByDefault() throws Exception {
+		chain.execute("slow");
+
+		assertTrue(recorder.getTraces().isEmpty());
+	}
+
+	@Test
+	public void sampledExecutionsAreRecordedInDetail() throws Exception {
+		recorder.setSampleRate(1.0);
+
+		chain.execute("complete");
+		chain.execute("handle");
+		try {
+			chain.execute("throw");
+		} catch (IllegalStateException expected) {
+
+		}
+
+		List<ChainRecorder.Trace> traces = recorder.getTraces();
+		assertEquals(3, traces.size());
+		ChainRecorder.Trace completed = traces.get(0);
+		assertEquals(Arrays.asList("filter", "worker"), completed.getCommands());
+		assertEquals(1, completed.getCompletedAt());
+		assertTrue(completed.getResult());
+		assertTrue(completed.isSampled());
+
+		ChainRecorder.Trace handled = traces.get(1);
+		assertEquals(1, handled.getFailedAt());
+		assertSame(failure, handled.getFailure());
+		assertTrue(Arrays.equals(new int[] { 0 }, handled.getHandledBy()));
+		assertFalse(handled.isRethrown());
+
+		ChainRecorder.Trace rethrown = traces.get(2);
+		assertTrue(rethrown.isRethrown());
+		assertEquals(0, rethrown.getHandledBy().length);
+	}
+
+	@Test
+	public void recordingContinuesAfterAnError() throws Exception {
+		recorder.setSampleRate(1.0);
+
+		try {
+			chain.execute("error");
+		} catch (AssertionError expected) {
+
+		}
+		chain.execute("complete");
+
+		List<ChainRecorder.Trace> traces = recorder.getTraces();
+		assertEquals(2, traces.size());
+		assertTrue(traces.get(1).getResult());
+	}
+
+	@Test
+	public void slowExecutionsAreRecordedWithoutSampling() throws Exception {
+		recorder.setSlowThreshold(10, TimeUnit.MILLISECONDS);
+
+		chain.execute("fast");
+		chain.execute("slow");
+
+		List<ChainRecorder.Trace> traces = recorder.getTraces();
+		assertEquals(1, traces.size());
+		assertTrue(traces.get(0).isSlow());
+		assertFalse(traces.get(0).isSampled());
+		assertEquals(3, traces.get(0).getCommands().size());
+		assertTrue(traces.get(0).getCommandNanos(1) >= TimeUnit.MILLISECONDS.toNanos(10));
+	}
+
+	@Test
+	public void oldestRecordsAreOverwritten() throws Exception {
+		recorder.setSampleRate(1.0);
+
+		for (int i = 0; i < 10; i++) {
+			chain.execute(i % 2 == 0 ? "complete" : "fast");
+		}
+
+		List<ChainRecorder.Trace> traces = recorder.getTraces();
+		assertEquals(4, traces.size());
+		// executions 6 to 9 remain, and even ones complete at the second command
+		assertEquals(2, traces.get(0).getCommands().size());
+		assertEquals(3, traces.get(1).getCommands().size());
+	}
+
+	@Test
+	public void concurrentRecordingKeepsRecordsConsistent() throws Exception {
+		recorder.setSampleRate(1.0);
+		chain.execute("fast");
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; t++) {
+				futures.add(pool.submit(() -> {
+					for (int i = 0; i < 2000; i++) {
+						chain.execute(i % 2 == 0 ? "complete" : "fast");
+					}
+					return null;
+				}));
+			}
+			while (!futures.stream().allMatch(Future::isDone)) {
+				for (ChainRecorder.Trace trace : recorder.getTraces()) {
+					boolean complete = 1 == trace.getCompletedAt();
+					assertEquals(complete ? 2 : 3, trace.getCommands().size());
+					assertEquals(complete, trace.getResult());
+				}
+			}
+			for (Future<?> future : futures) {
+				future.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
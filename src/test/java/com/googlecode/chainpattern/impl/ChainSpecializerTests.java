@@ -0,0 +1,149 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class ChainSpecializerTests {
+
+	private static class Step implements Command<List<String>> {
+		final int index;
+		final int behaviour;
+
+		Step(int index, int behaviour) {
+			this.index = index;
+			this.behaviour = behaviour;
+		}
+
+		public boolean execute(List<String> trace) throws Exception {
+			trace.add("execute " + index);
+			switch (behaviour) {
+			case 1:
+				return Chain.PROCESSING_COMPLETE;
+			case 2:
+				throw new IllegalStateException("thrown by " + index);
+			default:
+				return Chain.CONTINUE_PROCESSING;
+			}
+		}
+	}
+
+	private static class FilterStep extends Step implements Filter<List<String>> {
+		final boolean handles;
+		final boolean throwsFromPostprocess;
+
+		FilterStep(int index, int behaviour, boolean handles, boolean throwsFromPostprocess) {
+			super(index, behaviour);
+			this.handles = handles;
+			this.throwsFromPostprocess = throwsFromPostprocess;
+		}
+
+		public boolean postprocess(List<String> trace, Exception exception) {
+			trace.add("postprocess " + index + " " + (null == exception ? null : exception.getMessage()));
+			if (throwsFromPostprocess) {
+				throw new IllegalArgumentException();
+			}
+			return handles;
+		}
+	}
+
+	private static String run(Command<List<String>> chain, List<String> trace) {
+		try {
+			return "returned " + chain.execute(trace);
+		} catch (Exception e) {
+			return "threw " + e.getMessage();
+		}
+	}
+
+	@Test
+	public void specializedChainsBehaveLikeCompiledChains() {
+		Random random = new Random(42);
+		for (int round = 0; round < 2000; round++) {
+			List<Command<List<String>>> commands = new ArrayList<Command<List<String>>>();
+			int length = random.nextInt(8);
+			for (int i = 0; i < length; i++) {
+				int behaviour = random.nextInt(10) < 7 ? 0 : 1 + random.nextInt(2);
+				if (random.nextBoolean()) {
+					commands.add(new FilterStep(i, behaviour, random.nextBoolean(), random.nextInt(5) == 0));
+				} else {
+					commands.add(new Step(i, behaviour));
+				}
+			}
+			Command<List<String>> specialized = ChainSpecializer.specialize(commands);
+			assertNotNull(specialized);
+			List<String> expectedTrace = new ArrayList<String>();
+			List<String> actualTrace = new ArrayList<String>();
+
+			String expected = run(new CompiledChain<List<String>>(commands), expectedTrace);
+			String actual = run(specialized, actualTrace);
+
+			assertEquals(commands.toString(), expected, actual);
+			assertEquals(expectedTrace, actualTrace);
+		}
+	}
+
+	@Test
+	public void everyPositionGetsItsOwnClass() throws Exception {
+		List<Command<List<String>>> commands = new ArrayList<Command<List<String>>>();
+		commands.add(new Step(0, 0));
+		commands.add(new Step(1, 0));
+
+		Command<List<String>> specialized = ChainSpecializer.specialize(commands);
+
+		Command<?> first = stepAfter(specialized, "head");
+		Command<?> second = stepAfter(first, "next");
+		assertEquals(SpecializedStep.class.getName(), first.getClass().getName());
+		assertNotSame(SpecializedStep.class, first.getClass());
+		assertNotSame(first.getClass(), second.getClass());
+	}
+
+	private static Command<?> stepAfter(Object step, String fieldName) throws Exception {
+		Field field = step.getClass().getDeclaredField(fieldName);
+		field.setAccessible(true);
+		return (Command<?>) field.get(step);
+	}
+
+	@Test
+	public void longChainsAreNotSpecialized() {
+		List<Command<List<String>>> commands = Collections.nCopies(ChainSpecializer.MAX_LENGTH + 1,
+				(Command<List<String>>) new Step(0, 0));
+
+		assertNull(ChainSpecializer.specialize(commands));
+	}
+
+	@Test
+	public void specializedChainBaseExecutes() throws Exception {
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.setSpecialized(true);
+		chain.addCommand(new FilterStep(0, 0, true, false));
+		chain.addCommand(new Step(1, 2));
+		List<String> trace = new ArrayList<String>();
+
+		assertTrue(ChainSpecializer.isAvailable());
+		assertEquals(Chain.CONTINUE_PROCESSING, chain.execute(trace));
+		assertEquals(3, trace.size());
+		assertEquals("postprocess 0 thrown by 1", trace.get(2));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void specializationCannotChangeOnceFrozen() throws Exception {
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.execute(new ArrayList<String>());
+
+		chain.setSpecialized(true);
+	}
+}
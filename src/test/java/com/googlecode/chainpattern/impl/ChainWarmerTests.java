@@ -0,0 +1,195 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+
+public class ChainWarmerTests {
+	private AtomicInteger executions;
+	private Command<List<String>> counting;
+
+	@Before
+	public void setup() {
+		executions = new AtomicInteger();
+		counting = context -> {
+			executions.incrementAndGet();
+			return Chain.CONTINUE_PROCESSING;
+		};
+	}
+
+	@Test
+	public void runsTheConfiguredIterations() {
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(counting, ArrayList::new);
+		warmer.setIterations(250);
+		warmer.setSettling(100, 0.0);
+		assertEquals(ChainWarmer.State.NOT_STARTED, warmer.getProgress().getState());
+		assertFalse(warmer.isReady());
+		ChainWarmer.Progress progress = warmer.run();
+		assertEquals(ChainWarmer.State.COMPLETED, progress.getState());
+		assertEquals(250, progress.getIterations());
+		assertEquals(250, executions.get());
+		assertTrue(progress.getMedianLatency(TimeUnit.NANOSECONDS) >= 0);
+		assertTrue(warmer.isReady());
+	}
+
+	@Test
+	public void stopsOnceLatencySettles() {
+		Command<List<String>> steady = context -> {
+			executions.incrementAndGet();
+			long until = System.nanoTime() + 100000;
+			while (System.nanoTime() < until) {
+				Thread.onSpinWait();
+			}
+			return Chain.CONTINUE_PROCESSING;
+		};
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(steady, ArrayList::new);
+		warmer.setIterations(1000000);
+		warmer.setSettling(20, 0.5);
+		ChainWarmer.Progress progress = warmer.run();
+		assertEquals(ChainWarmer.State.SETTLED, progress.getState());
+		assertTrue(progress.getIterations() < 1000000);
+		assertEquals(progress.getIterations(), executions.get());
+	}
+
+	@Test
+	public void failuresAreCounted() {
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(context -> {
+			if (0 == executions.incrementAndGet() % 2) {
+				throw new IllegalStateException();
+			}
+			return Chain.CONTINUE_PROCESSING;
+		}, ArrayList::new);
+		warmer.setIterations(10);
+		warmer.setSettling(10, 0.0);
+		assertEquals(5, warmer.run().getFailures());
+	}
+
+	@Test
+	public void lazyCommandsArePreparedFirst() {
+		final List<String> order = new ArrayList<String>();
+		ChainBase<List<String>> nested = new ChainBase<List<String>>();
+		nested.addCommand(LazyCommand.of(() -> {
+			order.add("created");
+			return counting;
+		}));
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.addCommand(context -> {
+			order.add("executed");
+			return Chain.CONTINUE_PROCESSING;
+		});
+		chain.addCommand(nested);
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(chain, ArrayList::new);
+		warmer.setIterations(1);
+		ChainWarmer.Progress progress = warmer.run();
+		assertEquals(1, progress.getPrepared());
+		assertEquals("created", order.get(0));
+		assertEquals("executed", order.get(1));
+	}
+
+	@Test
+	public void catalogChainsArePrepared() throws Exception {
+		CatalogBase<List<String>> catalog = new CatalogBase<List<String>>();
+		new ChainConfigLoader().load(new StringReader("configured = "
+				+ ChainConfigLoaderTests.Append.class.getName()), catalog);
+		catalog.addCommand("lazy", LazyCommand.of(() -> counting));
+		assertEquals(2, ChainWarmer.prepare(catalog));
+		assertTrue(((ChainConfigLoader.LazyChain<?>) catalog.getCommand("configured")).isInstantiated());
+		assertTrue(((LazyCommand<?>) catalog.getCommand("lazy")).isPrepared());
+	}
+
+	@Test
+	public void progressIsVisibleWhileWarmingUpInTheBackground() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(context -> {
+			if (1 == executions.incrementAndGet()) {
+				release.await();
+			}
+			return Chain.CONTINUE_PROCESSING;
+		}, ArrayList::new);
+		warmer.setIterations(100);
+		warmer.setSettling(10, 0.0);
+		CompletableFuture<ChainWarmer.Progress> future = warmer.start();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (ChainWarmer.State.RUNNING != warmer.getProgress().getState() && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(ChainWarmer.State.RUNNING, warmer.getProgress().getState());
+		assertFalse(warmer.isReady());
+		release.countDown();
+		assertEquals(100, future.get(5, TimeUnit.SECONDS).getIterations());
+		assertTrue(warmer.isReady());
+	}
+
+	@Test
+	public void errorWhileRunningIsReported() throws Exception {
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(context -> {
+			if (5 == executions.incrementAndGet()) {
+				throw new AssertionError("broken");
+			}
+			return Chain.CONTINUE_PROCESSING;
+		}, ArrayList::new);
+		warmer.setIterations(100);
+		try {
+			warmer.run();
+			assertTrue("AssertionError expected", false);
+		} catch (AssertionError expected) {
+
+		}
+		assertEquals(ChainWarmer.State.FAILED, warmer.getProgress().getState());
+		assertTrue(warmer.getProgress().getFailure() instanceof AssertionError);
+		assertFalse(warmer.isReady());
+	}
+
+	@Test
+	public void secondWarmUpIsRejectedWhileOneIsRunning() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(context -> {
+			release.await();
+			return Chain.CONTINUE_PROCESSING;
+		}, ArrayList::new);
+		warmer.setIterations(1);
+		CompletableFuture<ChainWarmer.Progress> future = warmer.start();
+		try {
+			warmer.run();
+			assertTrue("IllegalStateException expected", false);
+		} catch (IllegalStateException expected) {
+
+		}
+		release.countDown();
+		future.get(5, TimeUnit.SECONDS);
+		assertEquals(ChainWarmer.State.COMPLETED, warmer.run().getState());
+	}
+
+	@Test
+	public void failedPreparationIsReported() throws Exception {
+		final IllegalStateException failure = new IllegalStateException();
+		ChainWarmer<List<String>> warmer = new ChainWarmer<List<String>>(LazyCommand.<List<String>> of(() -> {
+			throw failure;
+		}), ArrayList::new);
+		try {
+			warmer.start().get(5, TimeUnit.SECONDS);
+			assertTrue("Exception expected", false);
+		} catch (ExecutionException expected) {
+			assertSame(failure, expected.getCause());
+		}
+		assertEquals(ChainWarmer.State.FAILED, warmer.getProgress().getState());
+		assertSame(failure, warmer.getProgress().getFailure());
+		assertFalse(warmer.isReady());
+	}
+}
@@ -0,0 +1,171 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+import com.googlecode.chainpattern.LimitExceededException;
+
+public class ConcurrencyLimitingCommandTests {
+	private CountDownLatch entered;
+	private CountDownLatch release;
+	private Command<String> blocking;
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		entered = new CountDownLatch(2);
+		release = new CountDownLatch(1);
+		blocking = new Command<String>() {
+			public boolean execute(String context) throws Exception {
+				entered.countDown();
+				release.await();
+				return Chain.CONTINUE_PROCESSING;
+			}
+		};
+		executor = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void teardown() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	private static ConcurrencyLimitingCommand.AimdLimit fixed(int limit) {
+		return new ConcurrencyLimitingCommand.AimdLimit(limit, limit, limit, 1, TimeUnit.HOURS, 0.5);
+	}
+
+	private void fillSlots(final ConcurrencyLimitingCommand<String> limited) throws Exception {
+		for (int i = 0; i < 2; i++) {
+			executor.submit(() -> limited.execute("x"));
+		}
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = LimitExceededException.class)
+	public void executionBeyondTheLimitIsRejected() throws Exception {
+		ConcurrencyLimitingCommand<String> limited = new ConcurrencyLimitingCommand<String>(blocking, fixed(2));
+		fillSlots(limited);
+
+		limited.execute("x");
+	}
+
+	@Test
+	public void rejectionResultIsReturnedInsteadOfThrowing() throws Exception {
+		ConcurrencyLimitingCommand<String> limited = new ConcurrencyLimitingCommand<String>(blocking, fixed(2));
+		limited.setRejectionResult(Chain.PROCESSING_COMPLETE);
+		fillSlots(limited);
+
+		assertEquals(Chain.PROCESSING_COMPLETE, limited.execute("x"));
+		assertEquals(1, limited.getRejectedCount());
+		assertEquals(2, limited.getInFlight());
+	}
+
+	@Test
+	public void waitingExecutionRunsOnceASlotIsFreed() throws Exception {
+		ConcurrencyLimitingCommand<String> limited = new ConcurrencyLimitingCommand<String>(blocking, fixed(2));
+		limited.setMaxWait(5, TimeUnit.SECONDS);
+		fillSlots(limited);
+		Future<Boolean> waiting = Executors.newSingleThreadExecutor().submit(() -> limited.execute("x"));
+		Thread.sleep(20);
+
+		release.countDown();
+
+		assertEquals(Chain.CONTINUE_PROCESSING, waiting.get(5, TimeUnit.SECONDS));
+		assertEquals(0, limited.getRejectedCount());
+	}
+
+	@Test
+	public void slotIsReleasedWhenTheCommandThrows() throws Exception {
+		ConcurrencyLimitingCommand<String> limited = new ConcurrencyLimitingCommand<String>(new Command<String>() {
+			public boolean execute(String context) throws Exception {
+				throw new IllegalStateException();
+			}
+		}, fixed(1));
+		for (int i = 0; i < 3; i++) {
+			try {
+				limited.execute("x");
+			} catch (IllegalStateException expected) {
+
+			}
+		}
+
+		assertEquals(0, limited.getInFlight());
+		assertEquals(0, limited.getRejectedCount());
+	}
+
+	@Test
+	public void aimdGrowsOnFastExecutionsAndBacksOffOnSlowOnes() {
+		ConcurrencyLimitingCommand.AimdLimit aimd = new ConcurrencyLimitingCommand.AimdLimit(4, 1, 10, 1,
+				TimeUnit.MILLISECONDS, 0.5);
+		for (int i = 0; i < 4; i++) {
+			aimd.onSample(1000, 4, false);
+		}
+		assertEquals(5, aimd.getLimit());
+
+		aimd.onSample(TimeUnit.MILLISECONDS.toNanos(5), 5, false);
+		assertEquals(2, aimd.getLimit());
+
+		aimd.onSample(0, 2, true);
+		aimd.onSample(0, 2, true);
+		assertEquals(1, aimd.getLimit());
+	}
+
+	@Test
+	public void gradientShrinksWhenLatencyRisesAboveTheMinimum() {
+		ConcurrencyLimitingCommand.GradientLimit gradient = new ConcurrencyLimitingCommand.GradientLimit(100, 1,
+				1000, 1.0, 1000);
+		gradient.onSample(1000, 100, false);
+		int unloaded = gradient.getLimit();
+		assertTrue(unloaded > 100);
+
+		for (int i = 0; i < 10; i++) {
+			gradient.onSample(10000, unloaded, false);
+		}
+		assertTrue(gradient.getLimit() < unloaded);
+	}
+
+	@Test
+	public void gradientDoesNotGrowWhileTheLimitIsUnused() {
+		ConcurrencyLimitingCommand.GradientLimit gradient = new ConcurrencyLimitingCommand.GradientLimit(100, 1,
+				1000, 1.0, 1000);
+		gradient.onSample(1000, 1, false);
+
+		assertEquals(100, gradient.getLimit());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void worksInsideAChain() throws Exception {
+		Command<String> command = mock(Command.class);
+		ChainBase<String> chain = new ChainBase<String>();
+		chain.addCommand(new ConcurrencyLimitingCommand<String>(command, fixed(1)));
+
+		assertEquals(Chain.CONTINUE_PROCESSING, chain.execute("x"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void probeIntervalMustBePositive() {
+		new ConcurrencyLimitingCommand.GradientLimit(10, 1, 100, 0.2, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	@SuppressWarnings("unchecked")
+	public void filtersCannotBeLimited() {
+		new ConcurrencyLimitingCommand<String>(mock(Filter.class), fixed(1));
+	}
+}
@@ -0,0 +1,132 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+
+public class ContextBaseTests {
+	private ContextSchema schema;
+	private ContextSchema.Key<String> user;
+	private ContextSchema.IntKey attempts;
+	private ContextSchema.LongKey bytes;
+	private ContextSchema.DoubleKey score;
+
+	@Before
+	public void setup() {
+		schema = new ContextSchema();
+		user = schema.key("user", String.class);
+		attempts = schema.intKey("attempts");
+		bytes = schema.longKey("bytes");
+		score = schema.doubleKey("score");
+	}
+
+	@Test
+	public void attributesAreStoredBySlot() {
+		ContextBase context = schema.newContext();
+
+		assertNull(context.put(user, "alice"));
+		context.setInt(attempts, 3);
+		context.setLong(bytes, 1L << 40);
+		context.setDouble(score, 0.5);
+
+		assertEquals("alice", context.put(user, "bob"));
+		assertEquals("bob", context.get(user));
+		assertEquals(3, context.getInt(attempts));
+		assertEquals(1L << 40, context.getLong(bytes));
+		assertEquals(0.5, context.getDouble(score), 0.0);
+	}
+
+	@Test
+	public void keysAreInternedByName() {
+		assertSame(user, schema.key("user", String.class));
+		assertSame(attempts, schema.intKey("attempts"));
+		assertEquals(Arrays.asList("user", "attempts", "bytes", "score"), schema.getNames());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aNameHasOneType() {
+		schema.longKey("attempts");
+	}
+
+	@Test
+	public void rejectedDeclarationsTakeNoSlot() {
+		try {
+			schema.key("attempts", String.class);
+			fail("Should have thrown");
+		} catch (IllegalArgumentException expected) {
+
+		}
+		try {
+			schema.intKey("user");
+			fail("Should have thrown");
+		} catch (IllegalArgumentException expected) {
+
+		}
+
+		assertEquals(1, schema.key("session", Object.class).slot);
+		assertEquals(1, schema.intKey("retries").slot);
+	}
+
+	@Test
+	public void resetClearsEverySlot() {
+		ContextBase context = schema.newContext();
+		context.put(user, "alice");
+		context.setInt(attempts, 3);
+		context.setLong(bytes, 4);
+		context.setDouble(score, 1.5);
+
+		context.reset();
+
+		assertNull(context.get(user));
+		assertEquals(0, context.getInt(attempts));
+		assertEquals(0, context.getLong(bytes));
+		assertEquals(0.0, context.getDouble(score), 0.0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void schemaIsFrozenByTheFirstContext() {
+		schema.newContext();
+
+		schema.key("late", Object.class);
+	}
+
+	@Test
+	public void existingKeysCanStillBeLookedUpOnceFrozen() {
+		schema.newContext();
+
+		assertSame(score, schema.doubleKey("score"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void keysFromAnotherSchemaAreRejected() {
+		ContextSchema other = new ContextSchema();
+		other.key("user", String.class);
+
+		schema.newContext().get(other.key("user", String.class));
+	}
+
+	@Test
+	public void pooledContextPassesThroughAChain() throws Exception {
+		ChainBase<ContextBase> chain = new ChainBase<ContextBase>();
+		chain.addCommand(context -> {
+			context.setInt(attempts, context.getInt(attempts) + 1);
+			return Chain.CONTINUE_PROCESSING;
+		});
+		ContextBase context = schema.newContext();
+
+		for (int i = 0; i < 3; i++) {
+			context.reset();
+			chain.execute(context);
+		}
+
+		assertEquals(1, context.getInt(attempts));
+	}
+}
@@ -0,0 +1,126 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.internal.verification.Times;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.DeadlineExceededException;
+import com.googlecode.chainpattern.Filter;
+
+public class DeadlineChainTests {
+	private DeadlineChain<Boolean> chain;
+	private Command<Boolean> command1;
+	private Filter<Boolean> filterCommand1;
+	private Command<Boolean> sleeper;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		chain = new DeadlineChain<Boolean>();
+		command1 = mock(Command.class);
+		filterCommand1 = mock(Filter.class);
+		sleeper = new Command<Boolean>() {
+			public boolean execute(Boolean context) throws Exception {
+				Thread.sleep(10000);
+				return Chain.CONTINUE_PROCESSING;
+			}
+		};
+	}
+
+	@Test
+	public void withoutADeadlineBehavesLikeChainBase() throws Exception {
+		chain.addCommand(command1, 1, TimeUnit.NANOSECONDS);
+		when(command1.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+		assertTrue(chain.execute(true));
+	}
+
+	@Test
+	public void withinTheDeadlineBehavesLikeChainBase() throws Exception {
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command1.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+
+		assertTrue(chain.execute(true, 10, TimeUnit.SECONDS));
+		verify(filterCommand1).postprocess(true, null);
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+
+	@Test
+	public void commandsAreNotStartedOnceTheDeadlineHasPassed() throws Exception {
+		chain.addCommand(command1);
+		try {
+			chain.execute(true, 0, TimeUnit.SECONDS);
+			fail("Should have thrown");
+		} catch (DeadlineExceededException expected) {
+		}
+		verify(command1, new Times(0)).execute(true);
+	}
+
+	@Test
+	public void overrunningCommandIsInterruptedAndFiltersArePostprocessed() throws Exception {
+		chain.addCommand(filterCommand1);
+		chain.addCommand(sleeper, 50, TimeUnit.MILLISECONDS);
+		chain.addCommand(command1);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+
+		long start = System.nanoTime();
+		try {
+			chain.execute(true, 10, TimeUnit.SECONDS);
+			fail("Should have thrown");
+		} catch (DeadlineExceededException expected) {
+			assertTrue(expected.getCause() instanceof InterruptedException);
+			verify(filterCommand1).postprocess(true, expected);
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		verify(command1, new Times(0)).execute(true);
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+
+	@Test
+	public void callersInterruptIsKeptWhenACommandOverruns() throws Exception {
+		chain.addCommand(context -> {
+			long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+			while (System.nanoTime() < end) {
+				Thread.onSpinWait();
+			}
+			return Chain.CONTINUE_PROCESSING;
+		}, 10, TimeUnit.MILLISECONDS);
+
+		Thread.currentThread().interrupt();
+		try {
+			chain.execute(true, 10, TimeUnit.SECONDS);
+			fail("Should have thrown");
+		} catch (DeadlineExceededException expected) {
+		}
+		assertTrue(Thread.interrupted());
+	}
+
+	@Test
+	public void filtersMayHandleTheTimeout() throws Exception {
+		chain.addCommand(new Filter<Boolean>() {
+			public boolean execute(Boolean context) throws Exception {
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public boolean postprocess(Boolean context, Exception exception) {
+				return exception instanceof DeadlineExceededException;
+			}
+		});
+		chain.addCommand(sleeper);
+
+		assertEquals(Chain.CONTINUE_PROCESSING, chain.execute(true, 20, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,105 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.internal.verification.Times;
+
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class DispatchChainTests {
+	private DispatchChain<String, String> chain;
+	private Command<String> commandA;
+	private Command<String> commandB;
+	private Command<String> fallback;
+	private Filter<String> filterCommand1;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		chain = new DispatchChain<String, String>(c -> c.substring(0, 1));
+		commandA = mock(Command.class);
+		commandB = mock(Command.class);
+		fallback = mock(Command.class);
+		filterCommand1 = mock(Filter.class);
+	}
+
+	@Test
+	public void onlyTheCommandsForTheKeyAreExecuted() throws Exception {
+		chain.addCommand("a", commandA);
+		chain.addCommand("b", commandB);
+		when(commandA.execute("a1")).thenReturn(Chain.PROCESSING_COMPLETE);
+
+		assertEquals(Chain.PROCESSING_COMPLETE, chain.execute("a1"));
+
+		verify(commandB, new Times(0)).execute("a1");
+	}
+
+	@Test
+	public void unregisteredKeysOnlySeeCommandsForEveryContext() throws Exception {
+		chain.addCommand("a", commandA);
+		chain.addCommand(fallback);
+		when(fallback.execute("z")).thenReturn(Chain.PROCESSING_COMPLETE);
+
+		assertEquals(Chain.PROCESSING_COMPLETE, chain.execute("z"));
+
+		verify(commandA, new Times(0)).execute("z");
+	}
+
+	@Test
+	public void commandsForEveryContextKeepTheirPosition() throws Exception {
+		chain.addCommand(filterCommand1);
+		chain.addCommand("a", commandA);
+		chain.addCommand(fallback);
+		Exception e = new Exception();
+		when(filterCommand1.execute("a1")).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(commandA.execute("a1")).thenThrow(e);
+		when(filterCommand1.postprocess("a1", e)).thenReturn(false);
+
+		try {
+			chain.execute("a1");
+			fail("Should have thrown");
+		} catch (Exception ex) {
+			assertSame(e, ex);
+		}
+
+		verify(filterCommand1).postprocess("a1", e);
+		verify(fallback, new Times(0)).execute("a1");
+	}
+
+	@Test
+	public void batchesAreSplitByKey() throws Exception {
+		chain.addCommand("a", commandA);
+		chain.addCommand("b", commandB);
+		when(commandA.execute("a1")).thenReturn(Chain.PROCESSING_COMPLETE);
+		when(commandB.execute("b1")).thenReturn(Chain.CONTINUE_PROCESSING);
+
+		BatchResult result = chain.executeBatch(Arrays.asList("b1", "a1", "c1"));
+
+		assertEquals(Chain.CONTINUE_PROCESSING, result.getResult(0));
+		assertEquals(Chain.PROCESSING_COMPLETE, result.getResult(1));
+		assertEquals(Chain.CONTINUE_PROCESSING, result.getResult(2));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void addCannotBeCalledAfterExecute() throws Exception {
+		chain.execute("a");
+		chain.addCommand("a", commandA);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullKeysAreNotAllowed() {
+		chain.addCommand(null, commandA);
+	}
+}
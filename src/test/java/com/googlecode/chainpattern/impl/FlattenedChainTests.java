@@ -0,0 +1,191 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class FlattenedChainTests {
+
+	private static class Step implements Command<List<String>> {
+		final String name;
+		final int behaviour;
+
+		Step(String name, int behaviour) {
+			this.name = name;
+			this.behaviour = behaviour;
+		}
+
+		public boolean execute(List<String> trace) throws Exception {
+			trace.add("execute " + name);
+			switch (behaviour) {
+			case 1:
+				return Chain.PROCESSING_COMPLETE;
+			case 2:
+				throw new IllegalStateException("thrown by " + name);
+			default:
+				return Chain.CONTINUE_PROCESSING;
+			}
+		}
+
+		public String toString() {
+			return name + ":" + behaviour;
+		}
+	}
+
+	private static class FilterStep extends Step implements Filter<List<String>> {
+		final boolean handles;
+
+		FilterStep(String name, int behaviour, boolean handles) {
+			super(name, behaviour);
+			this.handles = handles;
+		}
+
+		public boolean postprocess(List<String> trace, Exception exception) {
+			trace.add("postprocess " + name + " " + (null == exception ? null : exception.getMessage()));
+			return handles;
+		}
+
+		public String toString() {
+			return super.toString() + (handles ? "/handles" : "");
+		}
+	}
+
+	/**
+	 * A chain shape; leaves are Steps, inner nodes nested chains.
+	 */
+	private static Object randomShape(Random random, String prefix, int depth) {
+		List<Object> shape = new ArrayList<Object>();
+		int length = random.nextInt(5);
+		for (int i = 0; i < length; i++) {
+			String name = prefix + i;
+			if (depth < 3 && random.nextInt(4) == 0) {
+				shape.add(randomShape(random, name + ".", depth + 1));
+			} else {
+				int behaviour = random.nextInt(10) < 7 ? 0 : 1 + random.nextInt(2);
+				shape.add(random.nextBoolean() ? new FilterStep(name, behaviour, random.nextBoolean()) : new Step(
+						name, behaviour));
+			}
+		}
+		return shape;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ChainBase<List<String>> build(Object shape, boolean inline) {
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.setInlineNestedChains(inline);
+		for (Object element : (List<Object>) shape) {
+			chain.addCommand(element instanceof List<?> ? build(element, false) : (Command<List<String>>) element);
+		}
+		return chain;
+	}
+
+	private static String run(Command<List<String>> chain, List<String> trace) {
+		try {
+			return "returned " + chain.execute(trace);
+		} catch (Exception e) {
+			return "threw " + e.getMessage();
+		}
+	}
+
+	@Test
+	public void inlinedChainsBehaveLikeNestedOnes() throws Exception {
+		Random random = new Random(11);
+		for (int round = 0; round < 5000; round++) {
+			Object shape = randomShape(random, "", 0);
+			List<String> expectedTrace = new ArrayList<String>();
+			List<String> actualTrace = new ArrayList<String>();
+
+			String expected = run(build(shape, false), expectedTrace);
+			String actual = run(build(shape, true), actualTrace);
+
+			assertEquals(shape.toString(), expected, actual);
+			assertEquals(shape.toString(), expectedTrace, actualTrace);
+		}
+	}
+
+	@Test
+	public void handledExceptionResumesAfterTheNestedChain() throws Exception {
+		ChainBase<List<String>> nested = new ChainBase<List<String>>();
+		nested.addCommand(new FilterStep("filter", 0, true));
+		nested.addCommand(new Step("thrower", 2));
+		ChainBase<List<String>> outer = new ChainBase<List<String>>();
+		outer.setInlineNestedChains(true);
+		outer.addCommand(nested);
+		outer.addCommand(new Step("after", 0));
+		List<String> trace = new ArrayList<String>();
+
+		assertEquals(Chain.CONTINUE_PROCESSING, outer.execute(trace));
+
+		assertEquals(Arrays.asList("execute filter", "execute thrower", "postprocess filter thrown by thrower",
+				"execute after"), trace);
+	}
+
+	@Test
+	public void onlyPlainChainBasesAreInlined() {
+		List<Command<List<String>>> commands = new ArrayList<Command<List<String>>>();
+		commands.add(new Step("a", 0));
+		commands.add(new ChainBase<List<String>>() {
+		});
+		ChainBase<List<String>> instrumented = new ChainBase<List<String>>();
+		instrumented.setInstrumentation(new ChainMetrics());
+		commands.add(instrumented);
+
+		assertNull(FlattenedChain.flatten(null, commands));
+
+		commands.add(new ChainBase<List<String>>());
+		assertNotNull(FlattenedChain.flatten(null, commands));
+	}
+
+	@Test(timeout = 5000)
+	public void chainNestedWithinItselfIsNotInlined() throws Exception {
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.setInlineNestedChains(true);
+		chain.addCommand(context -> {
+			context.add("execute");
+			return context.size() == 3 ? Chain.PROCESSING_COMPLETE : Chain.CONTINUE_PROCESSING;
+		});
+		chain.addCommand(chain);
+		List<String> trace = new ArrayList<String>();
+		assertEquals(Chain.PROCESSING_COMPLETE, chain.execute(trace));
+		assertEquals(Arrays.asList("execute", "execute", "execute"), trace);
+	}
+
+	@Test(timeout = 5000)
+	public void chainsNestedWithinEachOtherAreNotInlined() throws Exception {
+		ChainBase<List<String>> outer = new ChainBase<List<String>>();
+		ChainBase<List<String>> inner = new ChainBase<List<String>>();
+		outer.setInlineNestedChains(true);
+		inner.setInlineNestedChains(true);
+		inner.addCommand(context -> {
+			context.add("execute");
+			return context.size() == 3 ? Chain.PROCESSING_COMPLETE : Chain.CONTINUE_PROCESSING;
+		});
+		inner.addCommand(outer);
+		outer.addCommand(inner);
+		List<String> trace = new ArrayList<String>();
+		assertEquals(Chain.PROCESSING_COMPLETE, inner.execute(trace));
+		assertEquals(Arrays.asList("execute", "execute", "execute"), trace);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void inlinedChainsAreFrozen() throws Exception {
+		ChainBase<List<String>> nested = new ChainBase<List<String>>();
+		ChainBase<List<String>> outer = new ChainBase<List<String>>();
+		outer.setInlineNestedChains(true);
+		outer.addCommand(nested);
+		outer.execute(new ArrayList<String>());
+
+		nested.addCommand(new Step("late", 0));
+	}
+}
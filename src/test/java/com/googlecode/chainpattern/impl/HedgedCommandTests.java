@@ -0,0 +1,268 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class HedgedCommandTests {
+	private ExecutorService executor;
+	private CountDownLatch primaryInterrupted;
+	private AtomicInteger attempts;
+
+	@Before
+	public void setup() {
+		executor = Executors.newCachedThreadPool();
+		primaryInterrupted = new CountDownLatch(1);
+		attempts = new AtomicInteger();
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * The first attempt of every execution hangs until interrupted, later
+	 * attempts return at once.
+	 */
+	private class SlowFirstAttempt implements Command<List<String>> {
+		public boolean execute(List<String> context) throws Exception {
+			if (1 == attempts.incrementAndGet() % 2) {
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException expected) {
+					primaryInterrupted.countDown();
+					throw expected;
+				}
+			}
+			context.add("done");
+			return Chain.PROCESSING_COMPLETE;
+		}
+	}
+
+	@Test
+	public void fastCommandIsNotHedged() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new Command<List<String>>() {
+			public boolean execute(List<String> context) {
+				context.add("done");
+				return Chain.PROCESSING_COMPLETE;
+			}
+		}, executor);
+		hedged.setDelay(1, TimeUnit.SECONDS);
+		List<String> context = new ArrayList<String>();
+		assertEquals(Chain.PROCESSING_COMPLETE, hedged.execute(context));
+		assertEquals(Collections.singletonList("done"), context);
+		assertEquals(0, hedged.getHedgedCount());
+	}
+
+	@Test
+	public void slowAttemptIsHedgedAndCancelled() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new SlowFirstAttempt(), executor);
+		hedged.setDelay(20, TimeUnit.MILLISECONDS);
+		List<String> context = Collections.synchronizedList(new ArrayList<String>());
+		long start = System.nanoTime();
+		assertEquals(Chain.PROCESSING_COMPLETE, hedged.execute(context));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertEquals(Collections.singletonList("done"), context);
+		assertEquals(1, hedged.getHedgedCount());
+		assertEquals(1, hedged.getHedgeWinCount());
+		assertTrue(primaryInterrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void budgetCapsTheNumberOfHedges() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new Command<List<String>>() {
+			public boolean execute(List<String> context) throws Exception {
+				Thread.sleep(5);
+				return Chain.CONTINUE_PROCESSING;
+			}
+		}, executor);
+		hedged.setDelay(0, TimeUnit.MILLISECONDS);
+		hedged.setBudget(0.0, 2);
+		for (int i = 0; i < 5; i++) {
+			hedged.execute(new ArrayList<String>());
+		}
+		assertEquals(2, hedged.getHedgedCount());
+		assertEquals(3, hedged.getBudgetExhaustedCount());
+	}
+
+	@Test
+	public void attemptsWorkOnCopiesAndTheWinnerIsMerged() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new SlowFirstAttempt(), executor);
+		hedged.setDelay(20, TimeUnit.MILLISECONDS);
+		final List<List<String>> copies = Collections.synchronizedList(new ArrayList<List<String>>());
+		hedged.setContextCopier(original -> {
+			List<String> copy = new ArrayList<String>(original);
+			copies.add(copy);
+			return copy;
+		}, (original, winner) -> {
+			original.clear();
+			original.addAll(winner);
+		});
+		List<String> context = new ArrayList<String>();
+		context.add("start");
+		hedged.execute(context);
+		assertEquals(2, copies.size());
+		assertEquals(2, context.size());
+		assertEquals("done", context.get(1));
+		assertEquals(Collections.singletonList("start"), copies.get(0));
+	}
+
+	@Test
+	public void failedAttemptIsNotMerged() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(context -> {
+			context.add("partial");
+			throw new IllegalStateException("fails");
+		}, executor);
+		hedged.setContextCopier(original -> new ArrayList<String>(original), (original, winner) -> {
+			original.clear();
+			original.addAll(winner);
+		});
+		List<String> context = new ArrayList<String>();
+		context.add("start");
+		try {
+			hedged.execute(context);
+			fail("Should have thrown");
+		} catch (IllegalStateException expected) {
+
+		}
+		assertEquals(Collections.singletonList("start"), context);
+	}
+
+	@Test
+	public void failureWaitsForTheOtherAttempt() throws Exception {
+		final CountDownLatch hedgeStarted = new CountDownLatch(1);
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new Command<List<String>>() {
+			public boolean execute(List<String> context) throws Exception {
+				if (1 == attempts.incrementAndGet()) {
+					hedgeStarted.await();
+					throw new IllegalStateException("first fails");
+				}
+				hedgeStarted.countDown();
+				Thread.sleep(50);
+				return Chain.PROCESSING_COMPLETE;
+			}
+		}, executor);
+		hedged.setDelay(10, TimeUnit.MILLISECONDS);
+		assertEquals(Chain.PROCESSING_COMPLETE, hedged.execute(new ArrayList<String>()));
+	}
+
+	@Test
+	public void failureOfEveryAttemptIsThrown() throws Exception {
+		final IllegalStateException failure = new IllegalStateException();
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new Command<List<String>>() {
+			public boolean execute(List<String> context) {
+				throw failure;
+			}
+		}, executor);
+		try {
+			hedged.execute(new ArrayList<String>());
+		} catch (IllegalStateException thrown) {
+			assertSame(failure, thrown);
+			return;
+		}
+		assertTrue("Exception expected", false);
+	}
+
+	@Test(timeout = 5000)
+	public void errorIsRethrown() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new Command<List<String>>() {
+			public boolean execute(List<String> context) throws Exception {
+				if (1 == attempts.incrementAndGet()) {
+					Thread.sleep(10000);
+				}
+				throw new AssertionError("broken");
+			}
+		}, executor);
+		hedged.setDelay(10, TimeUnit.MILLISECONDS);
+		try {
+			hedged.execute(new ArrayList<String>());
+		} catch (AssertionError thrown) {
+			assertEquals("broken", thrown.getMessage());
+			assertEquals(1, hedged.getHedgedCount());
+			return;
+		}
+		assertTrue("AssertionError expected", false);
+	}
+
+	@Test
+	public void cancelledAttemptsKeepTheAdaptiveDelayUp() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new SlowFirstAttempt(), executor);
+		hedged.setDelay(20, TimeUnit.MILLISECONDS);
+		hedged.setAdaptiveDelay(0.9);
+		hedged.setBudget(1.0, 10);
+		for (int i = 0; i < 80; i++) {
+			hedged.execute(Collections.synchronizedList(new ArrayList<String>()));
+		}
+		assertEquals(80, hedged.getHedgeWinCount());
+		assertTrue(hedged.getCurrentDelay(TimeUnit.MILLISECONDS) >= 10);
+	}
+
+	@Test
+	public void everyFilterExecutionIsPostprocessedOnce() throws Exception {
+		final AtomicInteger postprocessed = new AtomicInteger();
+		final CountDownLatch loserPostprocessed = new CountDownLatch(1);
+		final SlowFirstAttempt slow = new SlowFirstAttempt();
+		Filter<List<String>> filter = new Filter<List<String>>() {
+			public boolean execute(List<String> context) throws Exception {
+				return slow.execute(context);
+			}
+
+			public boolean postprocess(List<String> context, Exception exception) {
+				postprocessed.incrementAndGet();
+				if (exception instanceof InterruptedException) {
+					loserPostprocessed.countDown();
+				}
+				return false;
+			}
+		};
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(filter, executor);
+		assertTrue(hedged instanceof Filter<?>);
+		hedged.setDelay(20, TimeUnit.MILLISECONDS);
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.addCommand(hedged);
+		chain.execute(Collections.synchronizedList(new ArrayList<String>()));
+		assertTrue(loserPostprocessed.await(5, TimeUnit.SECONDS));
+		assertEquals(2, attempts.get());
+		assertEquals(2, postprocessed.get());
+	}
+
+	@Test
+	public void adaptiveDelayFollowsObservedLatency() throws Exception {
+		HedgedCommand<List<String>> hedged = HedgedCommand.of(new Command<List<String>>() {
+			public boolean execute(List<String> context) {
+				return Chain.CONTINUE_PROCESSING;
+			}
+		}, executor);
+		hedged.setDelay(10, TimeUnit.SECONDS);
+		hedged.setAdaptiveDelay(0.95);
+		assertEquals(10, hedged.getCurrentDelay(TimeUnit.SECONDS));
+		for (int i = 0; i < 200; i++) {
+			hedged.execute(new ArrayList<String>());
+		}
+		assertTrue(hedged.getCurrentDelay(TimeUnit.MILLISECONDS) < 1000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullCommandIsRejected() {
+		HedgedCommand.of(null, executor);
+	}
+}
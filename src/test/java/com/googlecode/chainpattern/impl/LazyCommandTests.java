@@ -0,0 +1,139 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class LazyCommandTests {
+	private AtomicInteger created;
+	private Command<List<String>> append;
+
+	@Before
+	public void setup() {
+		created = new AtomicInteger();
+		append = context -> {
+			context.add("append");
+			return Chain.CONTINUE_PROCESSING;
+		};
+	}
+
+	@Test
+	public void commandIsCreatedOnFirstExecution() throws Exception {
+		LazyCommand<List<String>> lazy = LazyCommand.of(() -> {
+			created.incrementAndGet();
+			return append;
+		});
+		assertFalse(lazy.isPrepared());
+		assertEquals(0, created.get());
+		List<String> context = new ArrayList<String>();
+		lazy.execute(context);
+		lazy.execute(context);
+		assertTrue(lazy.isPrepared());
+		assertEquals(1, created.get());
+		assertEquals(Arrays.asList("append", "append"), context);
+	}
+
+	@Test
+	public void commandIsCreatedInTheBackground() throws Exception {
+		final List<Thread> creators = new ArrayList<Thread>();
+		LazyCommand<List<String>> lazy = LazyCommand.of(() -> {
+			creators.add(Thread.currentThread());
+			return append;
+		});
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertSame(append, lazy.prepare(executor).get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(lazy.isPrepared());
+		lazy.execute(new ArrayList<String>());
+		assertEquals(1, creators.size());
+		assertFalse(Thread.currentThread() == creators.get(0));
+	}
+
+	@Test
+	public void failedCreationIsRetried() throws Exception {
+		LazyCommand<List<String>> lazy = LazyCommand.of(() -> {
+			if (1 == created.incrementAndGet()) {
+				throw new IllegalStateException("not yet");
+			}
+			return append;
+		});
+		try {
+			lazy.execute(new ArrayList<String>());
+			assertTrue("Exception expected", false);
+		} catch (IllegalStateException expected) {
+
+		}
+		assertFalse(lazy.isPrepared());
+		lazy.execute(new ArrayList<String>());
+		assertTrue(lazy.isPrepared());
+	}
+
+	@Test
+	public void filterIsPostprocessed() throws Exception {
+		LazyCommand<List<String>> lazy = LazyCommand.ofFilter(() -> new Filter<List<String>>() {
+			public boolean execute(List<String> context) {
+				context.add("execute");
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public boolean postprocess(List<String> context, Exception exception) {
+				context.add("postprocess");
+				return false;
+			}
+		});
+		assertTrue(lazy instanceof Filter<?>);
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.addCommand(lazy);
+		List<String> context = new ArrayList<String>();
+		chain.execute(context);
+		assertEquals(Arrays.asList("execute", "postprocess"), context);
+	}
+
+	@Test
+	public void filterThatCouldNotBeCreatedIsNotPostprocessed() throws Exception {
+		final List<String> trace = new ArrayList<String>();
+		LazyCommand<List<String>> lazy = LazyCommand.ofFilter(() -> {
+			created.incrementAndGet();
+			throw new IllegalStateException("unavailable");
+		});
+		ChainBase<List<String>> chain = new ChainBase<List<String>>();
+		chain.addCommand(lazy);
+		try {
+			chain.execute(trace);
+			assertTrue("Exception expected", false);
+		} catch (IllegalStateException expected) {
+
+		}
+		assertEquals(1, created.get());
+		assertTrue(trace.isEmpty());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void nullFromTheFactoryIsRejected() {
+		LazyCommand.<String> of(() -> null).prepare();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullFactoryIsRejected() {
+		LazyCommand.of(null);
+	}
+}
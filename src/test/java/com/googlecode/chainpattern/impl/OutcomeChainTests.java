@@ -0,0 +1,122 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.internal.verification.Times;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+import com.googlecode.chainpattern.Outcome;
+import com.googlecode.chainpattern.OutcomeCommand;
+import com.googlecode.chainpattern.OutcomeFilter;
+
+public class OutcomeChainTests {
+	private static final Outcome INVALID = Outcome.failed(400, "invalid");
+
+	private OutcomeChain<Boolean> chain;
+	private OutcomeCommand<Boolean> command1;
+	private OutcomeCommand<Boolean> command2;
+	private OutcomeFilter<Boolean> filterCommand1;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		chain = new OutcomeChain<Boolean>();
+		command1 = mock(OutcomeCommand.class);
+		command2 = mock(OutcomeCommand.class);
+		filterCommand1 = mock(OutcomeFilter.class);
+	}
+
+	@Test
+	public void noItemsInTheChainThenContinue() {
+		assertSame(Outcome.CONTINUE, chain.execute(true));
+	}
+
+	@Test
+	public void completeStopsTheChain() {
+		chain.addCommand(command1);
+		chain.addCommand(command2);
+		when(command1.execute(true)).thenReturn(Outcome.COMPLETE);
+
+		assertSame(Outcome.COMPLETE, chain.execute(true));
+		verify(command2, new Times(0)).execute(true);
+	}
+
+	@Test
+	public void unhandledFailureIsReturnedNotThrown() {
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		chain.addCommand(command2);
+		when(filterCommand1.execute(true)).thenReturn(Outcome.CONTINUE);
+		when(command1.execute(true)).thenReturn(INVALID);
+
+		Outcome outcome = chain.execute(true);
+
+		assertSame(INVALID, outcome);
+		assertEquals(400, outcome.getErrorCode());
+		assertEquals(0, outcome.getError().getStackTrace().length);
+		verify(filterCommand1).postprocess(true, INVALID);
+		verify(command2, new Times(0)).execute(true);
+	}
+
+	@Test
+	public void handledFailureContinues() {
+		chain.addCommand(filterCommand1);
+		chain.addCommand(command1);
+		when(filterCommand1.execute(true)).thenReturn(Outcome.CONTINUE);
+		when(command1.execute(true)).thenReturn(INVALID);
+		when(filterCommand1.postprocess(true, INVALID)).thenReturn(true);
+
+		assertSame(Outcome.CONTINUE, chain.execute(true));
+	}
+
+	@Test
+	public void runtimeExceptionsBecomeFailures() {
+		RuntimeException e = new RuntimeException();
+		chain.addCommand(command1);
+		when(command1.execute(true)).thenThrow(e);
+
+		assertSame(e, chain.execute(true).getError());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void throwingCommandsAndFiltersAreAdapted() throws Exception {
+		Exception e = new Exception();
+		Filter<Boolean> filter = mock(Filter.class);
+		Command<Boolean> throwing = mock(Command.class);
+		when(filter.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(throwing.execute(true)).thenThrow(e);
+		chain.addCommand(OutcomeCommandAdapter.adapt(filter));
+		chain.addCommand(OutcomeCommandAdapter.adapt(throwing));
+
+		assertSame(e, chain.execute(true).getError());
+		verify(filter).postprocess(true, e);
+	}
+
+	@Test
+	public void outcomeChainsCanBeUsedAsCommands() throws Exception {
+		chain.addCommand(command1);
+		when(command1.execute(true)).thenReturn(INVALID);
+		ChainBase<Boolean> outer = new ChainBase<Boolean>();
+		outer.addCommand(OutcomeCommandAdapter.toCommand(chain));
+
+		try {
+			outer.execute(true);
+			fail("Should have thrown");
+		} catch (Exception ex) {
+			assertSame(INVALID.getError(), ex);
+		}
+		when(command1.execute(false)).thenReturn(Outcome.COMPLETE);
+		assertTrue(outer.execute(false));
+	}
+}
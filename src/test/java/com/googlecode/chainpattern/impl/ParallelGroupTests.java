@@ -0,0 +1,209 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class ParallelGroupTests {
+	private ExecutorService executor;
+	private ParallelGroup<Boolean> group;
+	private Command<Boolean> command1;
+	private Command<Boolean> command2;
+	private Filter<Boolean> filterCommand1;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		executor = Executors.newCachedThreadPool();
+		group = new ParallelGroup<Boolean>(executor);
+		command1 = mock(Command.class);
+		command2 = mock(Command.class);
+		filterCommand1 = mock(Filter.class);
+	}
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void emptyGroupContinuesProcessing() throws Exception {
+		assertEquals(Chain.CONTINUE_PROCESSING, group.execute(true));
+	}
+
+	@Test
+	public void membersRunConcurrently() throws Exception {
+		final CountDownLatch bothStarted = new CountDownLatch(2);
+		Command<Boolean> waiter = new Command<Boolean>() {
+			public boolean execute(Boolean context) throws Exception {
+				bothStarted.countDown();
+				if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+					throw new IllegalStateException("members did not run concurrently");
+				}
+				return Chain.CONTINUE_PROCESSING;
+			}
+		};
+		group.addCommand(waiter);
+		group.addCommand(waiter);
+
+		assertEquals(Chain.CONTINUE_PROCESSING, group.execute(true));
+	}
+
+	@Test
+	public void completeIfAnyMemberCompletes() throws Exception {
+		group.addCommand(command1);
+		group.addCommand(command2);
+		when(command1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command2.execute(true)).thenReturn(Chain.PROCESSING_COMPLETE);
+
+		assertEquals(Chain.PROCESSING_COMPLETE, group.execute(true));
+		verify(command1).execute(true);
+	}
+
+	@Test
+	public void exceptionOfTheEarliestFailingMemberIsThrown() throws Exception {
+		Exception e1 = new Exception();
+		Exception e2 = new Exception();
+		group.addCommand(command1);
+		group.addCommand(command2);
+		when(command1.execute(true)).thenThrow(e1);
+		when(command2.execute(true)).thenThrow(e2);
+
+		try {
+			group.execute(true);
+			fail("Should have thrown");
+		} catch (Exception ex) {
+			assertSame(e1, ex);
+		}
+		verify(command2).execute(true);
+	}
+
+	@Test
+	public void errorIsRethrownOnceEveryMemberHasFinished() throws Exception {
+		final AtomicBoolean finished = new AtomicBoolean();
+		final AssertionError error = new AssertionError();
+		group.addCommand(new Command<Boolean>() {
+			public boolean execute(Boolean context) throws Exception {
+				Thread.sleep(100);
+				finished.set(true);
+				return CONTINUE_PROCESSING;
+			}
+		});
+		group.addCommand(new Command<Boolean>() {
+			public boolean execute(Boolean context) {
+				throw error;
+			}
+		});
+
+		try {
+			group.execute(true);
+			fail("Should have thrown");
+		} catch (AssertionError ex) {
+			assertSame(error, ex);
+		}
+		assertTrue(finished.get());
+	}
+
+	@Test
+	public void membersRejectedBySaturatedExecutorRunOnTheCaller() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger executed = new AtomicInteger();
+		final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		ThreadPoolExecutor saturated = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>());
+		try {
+			saturated.execute(() -> {
+				try {
+					release.await();
+				} catch (InterruptedException ignoreMe) {
+
+				}
+			});
+			group = new ParallelGroup<Boolean>(saturated);
+			for (int i = 0; i < 3; i++) {
+				group.addCommand(context -> {
+					threads.add(Thread.currentThread());
+					executed.incrementAndGet();
+					return Chain.CONTINUE_PROCESSING;
+				});
+			}
+
+			assertEquals(Chain.CONTINUE_PROCESSING, group.execute(true));
+			assertEquals(3, executed.get());
+			assertEquals(Collections.singleton(Thread.currentThread()), threads);
+		} finally {
+			release.countDown();
+			saturated.shutdownNow();
+		}
+	}
+
+	@Test
+	public void nestedGroupsDoNotStarveASingleThread() throws Exception {
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			final AtomicInteger executed = new AtomicInteger();
+			Command<Boolean> counting = new Command<Boolean>() {
+				public boolean execute(Boolean context) {
+					executed.incrementAndGet();
+					return CONTINUE_PROCESSING;
+				}
+			};
+			ParallelGroup<Boolean> outer = new ParallelGroup<Boolean>(single);
+			for (int i = 0; i < 2; i++) {
+				ParallelGroup<Boolean> inner = new ParallelGroup<Boolean>(single);
+				inner.addCommand(counting);
+				inner.addCommand(counting);
+				outer.addCommand(inner);
+			}
+			outer.execute(true);
+			assertEquals(4, executed.get());
+		} finally {
+			single.shutdownNow();
+		}
+	}
+
+	@Test
+	public void memberFiltersArePostprocessedByTheEnclosingChain() throws Exception {
+		Exception e = new Exception();
+		group.addCommand(filterCommand1);
+		group.addCommand(command1);
+		when(filterCommand1.execute(true)).thenReturn(Chain.CONTINUE_PROCESSING);
+		when(command1.execute(true)).thenThrow(e);
+		when(filterCommand1.postprocess(true, e)).thenReturn(true);
+		ChainBase<Boolean> chain = new ChainBase<Boolean>();
+		chain.addCommand(group);
+
+		assertEquals(Chain.CONTINUE_PROCESSING, chain.execute(true));
+		verify(filterCommand1).postprocess(true, e);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void addCannotBeCalledAfterExecute() throws Exception {
+		group.execute(true);
+		group.addCommand(command1);
+	}
+}
@@ -0,0 +1,334 @@
+package com.googlecode.chainpattern.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.googlecode.chainpattern.BatchResult;
+import com.googlecode.chainpattern.Chain;
+import com.googlecode.chainpattern.Command;
+import com.googlecode.chainpattern.Filter;
+
+public class PipelinedChainTests {
+
+	private static class Step implements Command<List<String>> {
+		final int index;
+		final int behaviour;
+
+		Step(int index, int behaviour) {
+			this.index = index;
+			this.behaviour = behaviour;
+		}
+
+		public boolean execute(List<String> trace) throws Exception {
+			trace.add("execute " + index);
+			switch (behaviour) {
+			case 1:
+				return Chain.PROCESSING_COMPLETE;
+			case 2:
+				throw new IllegalStateException("thrown by " + index);
+			default:
+				return Chain.CONTINUE_PROCESSING;
+			}
+		}
+	}
+
+	private static class FilterStep extends Step implements Filter<List<String>> {
+		final boolean handles;
+
+		FilterStep(int index, int behaviour, boolean handles) {
+			super(index, behaviour);
+			this.handles = handles;
+		}
+
+		public boolean postprocess(List<String> trace, Exception exception) {
+			trace.add("postprocess " + index + " " + (null == exception ? null : exception.getMessage()));
+			return handles;
+		}
+	}
+
+	private static String run(Command<List<String>> chain, List<String> trace) {
+		try {
+			return "returned " + chain.execute(trace);
+		} catch (Exception e) {
+			return "threw " + e.getMessage();
+		}
+	}
+
+	@Test
+	public void pipelinedChainsBehaveLikeCompiledChains() {
+		Random random = new Random(7);
+		for (int round = 0; round < 200; round++) {
+			List<Command<List<String>>> commands = new ArrayList<Command<List<String>>>();
+			PipelinedChain<List<String>> pipelined = new PipelinedChain<List<String>>();
+			int length = random.nextInt(6);
+			for (int i = 0; i < length; i++) {
+				int behaviour = random.nextInt(10) < 7 ? 0 : 1 + random.nextInt(2);
+				Command<List<String>> command = random.nextBoolean() ? new FilterStep(i, behaviour, random
+						.nextBoolean()) : new Step(i, behaviour);
+				commands.add(command);
+				pipelined.addCommand(command);
+			}
+			List<String> expectedTrace = new ArrayList<String>();
+			List<String> actualTrace = new ArrayList<String>();
+
+			String expected = run(new CompiledChain<List<String>>(commands), expectedTrace);
+			String actual = run(pipelined, actualTrace);
+			pipelined.close();
+
+			assertEquals(commands.toString(), expected, actual);
+			assertEquals(expectedTrace, actualTrace);
+		}
+	}
+
+	@Test
+	public void stagesRunOnTheirOwnThreadsAndPostprocessOnTheSameOne() throws Exception {
+		final Set<Thread> executing = ConcurrentHashMap.newKeySet();
+		final List<Thread> filterThreads = new ArrayList<Thread>();
+		PipelinedChain<String> chain = new PipelinedChain<String>();
+		chain.addCommand(new Filter<String>() {
+			public boolean execute(String context) throws Exception {
+				filterThreads.add(Thread.currentThread());
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public boolean postprocess(String context, Exception exception) {
+				filterThreads.add(Thread.currentThread());
+				return false;
+			}
+		});
+		chain.addCommand(context -> executing.add(Thread.currentThread()) && false);
+
+		chain.execute("x");
+		chain.close();
+
+		assertEquals(2, filterThreads.size());
+		assertEquals(filterThreads.get(0), filterThreads.get(1));
+		assertFalse(executing.contains(filterThreads.get(0)));
+		assertFalse(executing.contains(Thread.currentThread()));
+	}
+
+	@Test
+	public void manyContextsFlowThroughASmallPipeline() throws Exception {
+		PipelinedChain<long[]> chain = new PipelinedChain<long[]>(8, null);
+		for (int i = 0; i < 4; i++) {
+			final int stage = i;
+			chain.addCommand(context -> {
+				context[stage] = context[0] + stage;
+				return Chain.CONTINUE_PROCESSING;
+			});
+		}
+		List<long[]> contexts = new ArrayList<long[]>();
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+		for (int j = 0; j < 10000; j++) {
+			long[] context = new long[] { j, 0, 0, 0 };
+			contexts.add(context);
+			futures.add(chain.submit(context));
+		}
+		for (CompletableFuture<Boolean> future : futures) {
+			assertFalse(future.get(10, TimeUnit.SECONDS));
+		}
+		chain.close();
+
+		for (int j = 0; j < contexts.size(); j++) {
+			assertTrue(Arrays.equals(new long[] { j, j + 1, j + 2, j + 3 }, contexts.get(j)));
+		}
+	}
+
+	@Test
+	public void batchCarriesEachOutcome() {
+		PipelinedChain<Integer> chain = new PipelinedChain<Integer>();
+		chain.addCommand(context -> {
+			if (context == 2) {
+				throw new IllegalStateException();
+			}
+			return context == 1;
+		});
+
+		BatchResult result = chain.executeBatch(Arrays.asList(0, 1, 2));
+		chain.close();
+
+		assertFalse(result.getResult(0));
+		assertTrue(result.getResult(1));
+		assertNull(result.getException(1));
+		assertTrue(result.getException(2) instanceof IllegalStateException);
+	}
+
+	@Test
+	public void closedChainRejectsSubmissions() throws Exception {
+		PipelinedChain<String> chain = new PipelinedChain<String>();
+		chain.addCommand(context -> Chain.CONTINUE_PROCESSING);
+		chain.execute("x");
+		chain.close();
+
+		Set<String> messages = new HashSet<String>();
+		try {
+			chain.submit("y");
+		} catch (IllegalStateException expected) {
+			messages.add(expected.getMessage());
+		}
+		assertEquals(1, messages.size());
+	}
+
+	@Test
+	public void idleStagesParkUntilSignalled() throws Exception {
+		final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+		PipelinedChain<String> chain = new PipelinedChain<String>(16, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			threads.add(thread);
+			return thread;
+		});
+		chain.addCommand(context -> Chain.CONTINUE_PROCESSING);
+		chain.addCommand(context -> Chain.CONTINUE_PROCESSING);
+		chain.execute("x");
+
+		for (Thread thread : threads) {
+			for (int i = 0; i < 500 && Thread.State.WAITING != thread.getState(); i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(Thread.State.WAITING, thread.getState());
+		}
+		assertFalse(chain.execute("y"));
+
+		chain.close();
+		for (Thread thread : threads) {
+			thread.join(5000);
+			assertFalse(thread.isAlive());
+		}
+	}
+
+	@Test
+	public void errorFromPostprocessShutsThePipelineDown() throws Exception {
+		final AssertionError error = new AssertionError();
+		final CountDownLatch release = new CountDownLatch(1);
+		PipelinedChain<String> chain = new PipelinedChain<String>();
+		chain.addCommand(new Filter<String>() {
+			public boolean execute(String context) {
+				return Chain.CONTINUE_PROCESSING;
+			}
+
+			public boolean postprocess(String context, Exception exception) {
+				if ("fatal".equals(context)) {
+					throw error;
+				}
+				return false;
+			}
+		});
+		chain.addCommand(context -> {
+			if ("fatal".equals(context)) {
+				return Chain.CONTINUE_PROCESSING;
+			}
+			release.await();
+			return Chain.CONTINUE_PROCESSING;
+		});
+
+		CompletableFuture<Boolean> fatal = chain.submit("fatal");
+		CompletableFuture<Boolean> waiting = chain.submit("waiting");
+		CompletableFuture<Boolean> queued = chain.submit("queued");
+		try {
+			fatal.get(5, TimeUnit.SECONDS);
+			fail("Should have thrown");
+		} catch (ExecutionException expected) {
+			assertSame(error, expected.getCause());
+		}
+		release.countDown();
+		for (CompletableFuture<Boolean> future : Arrays.asList(waiting, queued)) {
+			try {
+				future.get(5, TimeUnit.SECONDS);
+			} catch (ExecutionException expected) {
+				assertSame(error, expected.getCause());
+			}
+		}
+		assertTrue(waiting.isCompletedExceptionally());
+		assertTrue(queued.isCompletedExceptionally());
+		try {
+			chain.submit("later");
+			fail("Should have thrown");
+		} catch (IllegalStateException expected) {
+			assertSame(error, expected.getCause());
+		}
+	}
+
+	@Test
+	public void commandsAddedWhileExecutionStartsAreEitherAllStagesOrRejected() throws Exception {
+		final int adders = 2;
+		final int executors = 2;
+		ExecutorService pool = Executors.newFixedThreadPool(adders + executors);
+		try {
+			for (int round = 0; round < 20; round++) {
+				final PipelinedChain<String> shared = new PipelinedChain<String>(16, null);
+				final Set<Command<String>> added = ConcurrentHashMap.newKeySet();
+				final AtomicInteger executions = new AtomicInteger();
+				final CyclicBarrier start = new CyclicBarrier(adders + executors);
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int a = 0; a < adders; a++) {
+					futures.add(pool.submit(() -> {
+						start.await();
+						for (int i = 0; i < 10; i++) {
+							Command<String> command = context -> {
+								executions.incrementAndGet();
+								return Chain.CONTINUE_PROCESSING;
+							};
+							try {
+								shared.addCommand(command);
+								added.add(command);
+							} catch (IllegalStateException frozen) {
+								break;
+							}
+						}
+						return null;
+					}));
+				}
+				for (int e = 0; e < executors; e++) {
+					futures.add(pool.submit(() -> {
+						start.await();
+						for (int i = 0; i < 10; i++) {
+							shared.execute("x");
+						}
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get(10, TimeUnit.SECONDS);
+				}
+				shared.close();
+
+				assertEquals(executors * 10 * added.size(), executions.get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void commandsCannotBeAddedOnceFrozen() throws Exception {
+		PipelinedChain<String> chain = new PipelinedChain<String>();
+		chain.execute("x");
+
+		chain.addCommand(context -> Chain.CONTINUE_PROCESSING);
+	}
+}